@@ -1,36 +1,101 @@
 package main;
 
 import java.io.File;
+import java.io.FileOutputStream;
 import java.io.IOException;
+import java.io.OutputStream;
+import java.io.OutputStreamWriter;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
 
-import script.ScriptGenerator;
-import script.model.EditOp;
+import script.DiffEngine;
+import script.model.EditOpWriter;
 import script.model.EditScript;
+import script.model.EditScriptWriter;
 import tree.Tree;
-import tree.TreeBuilder;
 
 public class LAS {
 
 	public static void main(String[] args) {
-		File a = null;
-		File b = null;
-		if(args.length > 0){
-			b = new File(args[0]);
-			a = new File(args[1]);
-		} else {
-			System.out.println("You must specify two files to be compared.");
+		boolean stream = false;
+		File output = null;
+		String format = "text";
+		List<File> files = new ArrayList<>();
+		for(int i=0; i<args.length; i++){
+			if(args[i].equals("--stream")){
+				//Print ops while the script is generated.
+				stream = true;
+			}else if(args[i].equals("--output") && i + 1 < args.length){
+				output = new File(args[++i]);
+			}else if(args[i].equals("--format") && i + 1 < args.length){
+				format = args[++i];
+			}else{
+				files.add(new File(args[i]));
+			}
+		}
+		boolean binary = format.equals("binary");
+		if(files.size() != 2 || !binary && !EditOpWriter.FORMATS.contains(format)){
+			System.out.println(files.size() != 2 ? "You must specify two files to be compared." : "Unknown format " + format + ".");
+			System.out.println("Usage: LAS [--stream] [--output file] [--format text|jsonl|csv|binary] before after");
+			return;
 		}
+		File b = files.get(0);
+		File a = files.get(1);
+		ExecutorService executor = Executors.newFixedThreadPool(2);
+		DiffEngine engine = new DiffEngine();
 		try {
-			Tree before = TreeBuilder.buildTreeFromFile(b);
-			Tree after = TreeBuilder.buildTreeFromFile(a);
+			//Two versions are parsed concurrently.
+			List<Future<Tree>> trees = engine.buildPairAsync(b, a, executor);
+			Tree before = trees.get(0).get();
+			Tree after = trees.get(1).get();
 
-			EditScript script = ScriptGenerator.generateScript(before, after);
-			for(EditOp op : script.getEditOps()){
-				System.out.println(op);
+			OutputStream out = output == null ? System.out : new FileOutputStream(output);
+			EditScript script;
+			try {
+				if(binary){
+					EditScriptWriter writer = new EditScriptWriter(out);
+					if(stream){
+						writer.beginScript();
+						script = engine.diff(before, after, writer);
+						writer.endScript(script);
+					}else{
+						script = engine.diff(before, after);
+						writer.write(script);
+					}
+					writer.flush();
+				}else{
+					EditOpWriter writer = EditOpWriter.create(format, new OutputStreamWriter(out, StandardCharsets.UTF_8));
+					if(stream){
+						script = engine.diff(before, after, writer);
+					}else{
+						script = engine.diff(before, after);
+						writer.write(script);
+					}
+					writer.flush();
+				}
+			} finally {
+				//Standard output is flushed but left open.
+				if(output != null)
+					out.close();
 			}
+			if(script.isDegraded())
+				System.err.println("Matching was cut short at " + script.getDegradedPhase()
+						+ " by the " + script.getDegradedReason() + ".");
 
+		} catch (ExecutionException e) {
+			e.getCause().printStackTrace();
 		} catch (IOException e) {
 			e.printStackTrace();
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+		} finally {
+			executor.shutdown();
+			engine.close();
 		}
 
 	}
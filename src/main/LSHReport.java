@@ -0,0 +1,101 @@
+package main;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.FileReader;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+
+import script.DiffConfig;
+import script.DiffEngine;
+import script.model.EditScript;
+import tree.Tree;
+import tree.TreeBuilder;
+
+/**
+ * Reports the recall, precision and time of MinHash candidate retrieval against exact matching on a corpus.
+ * Recall is the share of similar pairs of exact matching which are still found, and precision is the share
+ * of similarities computed which reach the threshold. Matching of a configuration may take other paths
+ * than exact matching, so recall is an estimate.
+ *
+ * Usage: LSHReport &lt;pairs file&gt; [hashes:bands ...]
+ * Each line of the pairs file has the paths of a file before and after a change, separated by a space.
+ */
+public class LSHReport {
+
+	public static void main(String[] args) throws IOException {
+		if(args.length == 0){
+			System.out.println("Usage: LSHReport <pairs file> [hashes:bands ...]");
+			return;
+		}
+		List<Tree[]> pairs = readPairs(new File(args[0]));
+		List<String> configs = new ArrayList<>();
+		for(int i=1; i<args.length; i++){
+			configs.add(args[i]);
+		}
+		if(configs.isEmpty()){
+			configs.add("32:8");
+			configs.add("64:16");
+			configs.add("128:32");
+		}
+		DiffConfig base = DiffConfig.getDefault();
+		System.out.println("config\ttime(ms)\tsimilarity\tsimilar pairs\trecall\tprecision\tsimilar matches\tedit ops");
+		long[] exact = run(pairs, base.toBuilder().lsh(false, base.getLSHHashes(), base.getLSHBands()).build());
+		print("exact", exact, exact);
+		for(String config : configs){
+			String[] values = config.split(":");
+			DiffConfig lsh = base.toBuilder().lsh(true, Integer.parseInt(values[0]), Integer.parseInt(values[1])).build();
+			print(config, run(pairs, lsh), exact);
+		}
+	}
+
+	/**
+	 * Build trees of the pairs of a file once, since diffs do not change them.
+	 */
+	private static List<Tree[]> readPairs(File file) throws IOException {
+		List<Tree[]> pairs = new ArrayList<>();
+		try(BufferedReader br = new BufferedReader(new FileReader(file))){
+			String line;
+			while((line = br.readLine()) != null){
+				String[] files = line.trim().split("\\s+");
+				if(files.length >= 2)
+					pairs.add(new Tree[] { TreeBuilder.buildTreeFromFile(new File(files[0])),
+							TreeBuilder.buildTreeFromFile(new File(files[1])) });
+			}
+		}
+		return pairs;
+	}
+
+	private static void print(String config, long[] result, long[] exact) {
+		double recall = exact[2] == 0 ? 1.0d : (double)result[2] / exact[2];
+		double precision = result[1] == 0 ? 1.0d : (double)result[2] / result[1];
+		System.out.println(config + "\t" + result[0] + "\t" + result[1] + "\t" + result[2]
+				+ "\t" + String.format("%.3f", recall) + "\t" + String.format("%.3f", precision)
+				+ "\t" + result[3] + "\t" + result[4]);
+	}
+
+	/**
+	 * Diff all pairs with a configuration.
+	 *
+	 * @return the time in milliseconds, the numbers of similarities computed, similar pairs, nodes matched
+	 * by similarity, and edit ops.
+	 */
+	private static long[] run(List<Tree[]> pairs, DiffConfig config) {
+		long[] result = new long[5];
+		long time = 0;
+		try(DiffEngine engine = new DiffEngine(config)){
+			for(Tree[] pair : pairs){
+				long start = System.nanoTime();
+				EditScript script = engine.diff(pair[0], pair[1]);
+				time += System.nanoTime() - start;
+				result[1] += script.similarityCount;
+				result[2] += script.similarPairCount;
+				result[3] += script.similarMatch;
+				result[4] += script.size();
+			}
+		}
+		result[0] = time / 1000000;
+		return result;
+	}
+}
@@ -0,0 +1,250 @@
+package script;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+
+import tree.Mapping;
+import tree.Tree;
+import tree.TreeNode;
+import tree.TreeVector;
+
+/**
+ * An inverted index of subtrees of two trees, used to retrieve candidates which can be
+ * as similar as a threshold without visiting the others. Subtrees matched when the index is built,
+ * and leaves, can be left out of it.
+ * Labels of a vector are expanded into tokens of a label and its occurrence, and a subtree is indexed
+ * by a prefix of its tokens in a global order, rarest labels first (prefix filtering).
+ * Two subtrees whose Dice similarity reaches the threshold share a token in their prefixes.
+ * If MinHash signatures are given, subtrees are indexed by the band buckets of their signatures instead,
+ * so that only subtrees sharing a bucket are retrieved.
+ * An index can be queried by many threads. A query takes marks from a pool of the index, so marks are
+ * not attached to threads, which may outlive the index.
+ */
+class CandidateIndex {
+	//Prefixes are longer than needed to be safe from rounding.
+	private static final double EPSILON = 1e-9;
+
+	private final double threshold;
+	private final int minCandidates;
+	private final boolean skipMatched;
+	private final Tree[] trees;
+	private final Mapping mapping;
+	private final MinHashIndex lsh;
+	private volatile boolean initialized;
+	private Map<Integer, Integer> frequency;
+	//Whether each node of a side, by id, is indexed.
+	private boolean[][] indexed;
+	//Postings of each side by node type, built when a node of the type is first queried.
+	private final List<Map<Integer, Map<Long, List<TreeNode>>>> postings;
+	private Map<Integer, List<List<TreeNode>>> unindexed;
+	//Marks not in use, at most one for each thread querying at the same time.
+	private final Queue<Query> queries;
+
+	/**
+	 * Marks of a query. Nodes of a side found by a query are marked with the query number,
+	 * so that a node sharing many tokens with the query is found once.
+	 */
+	private static class Query {
+		private int[][] marks;
+		private int count;
+	}
+
+	/**
+	 * @param before a tree before a change.
+	 * @param after a tree after a change.
+	 * @param mapping matches of the trees.
+	 * @param threshold a similarity threshold.
+	 * @param minCandidates the number of indexed subtrees of a type in a tree from which candidates
+	 * of the type are retrieved from the index.
+	 * @param skipMatched whether subtrees matched when the index is built, and leaves, are left out.
+	 * @param lsh signatures whose band buckets are indexed instead of prefixes, or null.
+	 */
+	CandidateIndex(Tree before, Tree after, Mapping mapping, double threshold, int minCandidates, boolean skipMatched,
+			MinHashIndex lsh) {
+		this.threshold = Math.min(threshold, 1.0d);
+		this.minCandidates = minCandidates;
+		this.skipMatched = skipMatched;
+		this.trees = new Tree[] { before, after };
+		this.mapping = mapping;
+		this.lsh = lsh;
+		this.postings = new ArrayList<>(2);
+		this.queries = new ConcurrentLinkedQueue<>();
+	}
+
+	/**
+	 * Collect subtrees by type. If matched subtrees are skipped, nodes matched later are still indexed,
+	 * but the ones matched by now are not, and they are never filtered.
+	 */
+	private synchronized void init() {
+		if(initialized)
+			return;
+		frequency = new HashMap<>();
+		indexed = new boolean[2][];
+		unindexed = new HashMap<>();
+		for(int side=0; side<2; side++){
+			postings.add(new HashMap<Integer, Map<Long, List<TreeNode>>>());
+			List<TreeNode> nodes = trees[side].dfs();
+			int maxId = 0;
+			for(TreeNode node : nodes){
+				maxId = Math.max(maxId, node.getId());
+			}
+			indexed[side] = new boolean[maxId + 1];
+			for(TreeNode node : nodes){
+				Integer count = frequency.get(node.getLabelId());
+				frequency.put(node.getLabelId(), count == null ? 1 : count + 1);
+				if(skipMatched && (node.isLeaf() || mapping.isMatched(node)))
+					continue;
+				indexed[side][node.getId()] = true;
+				List<List<TreeNode>> typed = unindexed.get(node.getType());
+				if(typed == null){
+					typed = new ArrayList<>(2);
+					typed.add(new ArrayList<TreeNode>());
+					typed.add(new ArrayList<TreeNode>());
+					unindexed.put(node.getType(), typed);
+				}
+				typed.get(side).add(node);
+			}
+		}
+		initialized = true;
+	}
+
+	private synchronized Map<Long, List<TreeNode>> getPostings(int side, int type) {
+		Map<Long, List<TreeNode>> map = postings.get(side).get(type);
+		if(map == null){
+			map = new HashMap<>();
+			for(TreeNode node : unindexed.get(type).get(side)){
+				for(long token : tokens(node)){
+					List<TreeNode> list = map.get(token);
+					if(list == null){
+						list = new ArrayList<>(2);
+						map.put(token, list);
+					}
+					list.add(node);
+				}
+			}
+			postings.get(side).put(type, map);
+		}
+		return map;
+	}
+
+	private long[] tokens(TreeNode node) {
+		return lsh != null ? lsh.getBucketKeys(node) : prefix(node);
+	}
+
+	/**
+	 * @return tokens of <code>node</code> which must be shared by a subtree as similar as the threshold.
+	 */
+	private long[] prefix(TreeNode node) {
+		TreeVector vector = node.getVector();
+		int sum = vector.sum();
+		//Dice similarity 2o/(a+b) >= t requires an overlap o >= t*a/(2-t).
+		int overlap = Math.max(1, (int)Math.ceil(threshold * sum / (2.0d - threshold) - EPSILON));
+		int length = Math.min(sum, sum - overlap + 1);
+		Integer[] order = new Integer[vector.size()];
+		for(int i=0; i<order.length; i++){
+			order[i] = i;
+		}
+		final TreeVector v = vector;
+		Arrays.sort(order, new Comparator<Integer>() {
+			@Override
+			public int compare(Integer i, Integer j) {
+				int f1 = frequency.get(v.getLabel(i));
+				int f2 = frequency.get(v.getLabel(j));
+				return f1 != f2 ? Integer.compare(f1, f2) : Integer.compare(v.getLabel(i), v.getLabel(j));
+			}
+		});
+		long[] tokens = new long[length];
+		int t = 0;
+		for(int i=0; i<order.length && t<length; i++){
+			//More occurrences of a label are rarer, so they come first.
+			for(int k=vector.getCount(order[i]); k>0 && t<length; k--){
+				tokens[t++] = token(node.getType(), vector.getLabel(order[i]), k);
+			}
+		}
+		return tokens;
+	}
+
+	private static long token(int type, int label, int occurrence) {
+		return ((long)label << 32) | ((long)(type & 0xFF) << 24) | (occurrence & 0xFFFFFF);
+	}
+
+	/**
+	 * Retrieve subtrees of the other tree which share a prefix token with <code>x</code>, and whose ids
+	 * are in a range. These are all indexed subtrees in the range, of the type of <code>x</code>,
+	 * which can be as similar as the threshold. With MinHash signatures, these are the subtrees sharing
+	 * a band bucket with <code>x</code> instead, and similar ones may be missed. Postings of a type are
+	 * built when it is first queried, so the index is used only for types with many subtrees.
+	 *
+	 * @param x a query node.
+	 * @param from the smallest id of a subtree to retrieve.
+	 * @param to the largest id of a subtree to retrieve.
+	 * @return the subtrees found, in no particular order, or null if candidates of <code>x</code>
+	 * should be searched without the index.
+	 */
+	List<TreeNode> getCandidates(TreeNode x, int from, int to) {
+		if(lsh == null && threshold <= 0.0d || x.isLeaf())
+			return null;
+		if(!initialized)
+			init();
+		int xSide = mapping.sideOf(x);
+		if(x.getId() < 0 || !indexed[xSide][x.getId()])
+			return null;
+		int side = 1 - xSide;
+		List<List<TreeNode>> typed = unindexed.get(x.getType());
+		if(typed.get(side).size() < minCandidates)
+			return null;
+		Query query = queries.poll();
+		if(query == null){
+			query = new Query();
+			query.marks = new int[][] { new int[indexed[0].length], new int[indexed[1].length] };
+		}
+		int[] marks = query.marks[side];
+		int count = ++query.count;
+		List<TreeNode> found = new ArrayList<>();
+		Map<Long, List<TreeNode>> map = getPostings(side, x.getType());
+		for(long token : tokens(x)){
+			List<TreeNode> list = map.get(token);
+			if(list == null)
+				continue;
+			//Postings are in preorder, which is the order of ids.
+			for(int i=firstAtLeast(list, from); i<list.size() && list.get(i).getId()<=to; i++){
+				TreeNode node = list.get(i);
+				if(marks[node.getId()] != count){
+					marks[node.getId()] = count;
+					found.add(node);
+				}
+			}
+		}
+		queries.offer(query);
+		return found;
+	}
+
+	private static int firstAtLeast(List<TreeNode> list, int id) {
+		int low = 0, high = list.size();
+		while(low < high){
+			int mid = (low + high) >>> 1;
+			if(list.get(mid).getId() < id)
+				low = mid + 1;
+			else
+				high = mid;
+		}
+		return low;
+	}
+
+	/**
+	 * @return whether <code>node</code> is indexed, that is, it is not the root, and if matched subtrees
+	 * are skipped, it is not a leaf and it was not matched when the index was built.
+	 */
+	boolean isIndexed(TreeNode node) {
+		if(!initialized)
+			init();
+		int side = mapping.sideOf(node);
+		return node.getId() >= 0 && node.getId() < indexed[side].length && indexed[side][node.getId()];
+	}
+}
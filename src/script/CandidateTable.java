@@ -0,0 +1,64 @@
+package script;
+
+import java.util.Arrays;
+
+import tree.TreeNode;
+
+/**
+ * The best match candidate of each node of two trees, kept in arrays indexed by node id for each side.
+ * Matching only looks at the best candidate of a node, so others are not kept.
+ * A candidate replaces the best one only if it is more similar, so the first of equally similar
+ * candidates is kept, as the head of a priority queue of all candidates would be.
+ * Arrays of a side are allocated when a node of the side gets its first candidate.
+ */
+class CandidateTable {
+	private static final int INITIAL_CAPACITY = 64;
+
+	private final TreeNode[][] best;
+	private final double[][] similarity;
+
+	CandidateTable() {
+		this.best = new TreeNode[2][];
+		this.similarity = new double[2][];
+	}
+
+	/**
+	 * @param side 0 if <code>x</code> is in the tree before a change, 1 otherwise.
+	 * @param x a node.
+	 * @param c a candidate of <code>x</code> in the other tree.
+	 * @param similarity the similarity of <code>x</code> and <code>c</code>.
+	 */
+	void add(int side, TreeNode x, TreeNode c, double similarity) {
+		int id = x.getId();
+		if(id < 0)
+			throw new IllegalArgumentException("Node " + x + " has no id.");
+		ensureCapacity(side, id);
+		if(best[side][id] == null || similarity > this.similarity[side][id]){
+			best[side][id] = c;
+			this.similarity[side][id] = similarity;
+		}
+	}
+
+	/**
+	 * @param side 0 if <code>x</code> is in the tree before a change, 1 otherwise.
+	 * @param x a node.
+	 * @return the best candidate of <code>x</code>, or null if it has none.
+	 */
+	TreeNode getBestMatch(int side, TreeNode x) {
+		int id = x.getId();
+		TreeNode[] nodes = best[side];
+		return nodes == null || id < 0 || id >= nodes.length ? null : nodes[id];
+	}
+
+	private void ensureCapacity(int side, int id) {
+		if(best[side] == null){
+			int capacity = Math.max(INITIAL_CAPACITY, id + 1);
+			best[side] = new TreeNode[capacity];
+			similarity[side] = new double[capacity];
+		}else if(id >= best[side].length){
+			int capacity = Math.max(best[side].length * 2, id + 1);
+			best[side] = Arrays.copyOf(best[side], capacity);
+			similarity[side] = Arrays.copyOf(similarity[side], capacity);
+		}
+	}
+}
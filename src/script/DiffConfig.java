@@ -0,0 +1,405 @@
+package script;
+
+import java.io.File;
+
+/**
+ * Options of tree building and differencing. A configuration is immutable, so it can be shared by diffs
+ * running at the same time. Defaults are read from system properties once.
+ */
+public final class DiffConfig {
+	private static final DiffConfig DEFAULT = new Builder().build();
+
+	private final double distThreshold;
+	private final int depthThreshold;
+	private final double simThreshold;
+	private final int indexMinCandidates;
+	private final boolean skipMatchedCandidates;
+	private final boolean lsh;
+	private final int lshHashes;
+	private final int lshBands;
+	private final boolean exactMatch;
+	private final boolean globalExactMatch;
+	private final boolean verifyExactMatch;
+	private final boolean replace;
+	private final boolean splitMoves;
+	private final boolean gumTreeAST;
+	private final boolean releaseAST;
+	private final int parallelism;
+	private final long timeBudget;
+	private final int nodeBudget;
+	private final int similarityBudget;
+	private final File cacheDir;
+
+	private DiffConfig(Builder builder) {
+		this.distThreshold = builder.distThreshold;
+		this.depthThreshold = builder.depthThreshold;
+		this.simThreshold = builder.simThreshold;
+		this.indexMinCandidates = builder.indexMinCandidates;
+		this.skipMatchedCandidates = builder.skipMatchedCandidates;
+		this.lsh = builder.lsh;
+		this.lshHashes = builder.lshHashes;
+		this.lshBands = builder.lshBands;
+		this.exactMatch = builder.exactMatch;
+		this.globalExactMatch = builder.globalExactMatch;
+		this.verifyExactMatch = builder.verifyExactMatch;
+		this.replace = builder.replace;
+		this.splitMoves = builder.splitMoves;
+		this.gumTreeAST = builder.gumTreeAST;
+		this.releaseAST = builder.releaseAST;
+		this.parallelism = builder.parallelism;
+		this.timeBudget = builder.timeBudget;
+		this.nodeBudget = builder.nodeBudget;
+		this.similarityBudget = builder.similarityBudget;
+		this.cacheDir = builder.cacheDir;
+	}
+
+	/**
+	 * @return the configuration given by system properties.
+	 */
+	public static DiffConfig getDefault() {
+		return DEFAULT;
+	}
+
+	/**
+	 * @return a builder starting from this configuration.
+	 */
+	public Builder toBuilder() {
+		return new Builder(this);
+	}
+
+	/**
+	 * @return the ratio of siblings searched for candidates around a node (las.dist.threshold).
+	 */
+	public double getDistThreshold() {
+		return distThreshold;
+	}
+
+	/**
+	 * @return the depth of descendants and ancestors searched for candidates (las.depth.threshold).
+	 */
+	public int getDepthThreshold() {
+		return depthThreshold;
+	}
+
+	/**
+	 * @return the minimum similarity of subtrees to be matched (las.sim.threshold).
+	 */
+	public double getSimThreshold() {
+		return simThreshold;
+	}
+
+	/**
+	 * @return the number of indexed subtrees of a type in a tree from which candidates of the type
+	 * are retrieved from an index (las.index.min.candidates).
+	 */
+	public int getIndexMinCandidates() {
+		return indexMinCandidates;
+	}
+
+	/**
+	 * @return whether subtrees matched before similar nodes are matched, and leaves, are left out of candidates
+	 * of similar matching (las.sim.skip.matched). A matched subtree can be the best candidate of a node and
+	 * then be rejected, leaving the node unmatched, so scripts without them have more similar matches,
+	 * but they differ from scripts of earlier versions.
+	 */
+	public boolean isSkipMatchedCandidates() {
+		return skipMatchedCandidates;
+	}
+
+	/**
+	 * @return whether candidates are retrieved from band buckets of MinHash signatures (las.sim.lsh).
+	 * The signature size should be a multiple of the band count.
+	 */
+	public boolean isLSH() {
+		return lsh;
+	}
+
+	public int getLSHHashes() {
+		return lshHashes;
+	}
+
+	public int getLSHBands() {
+		return lshBands;
+	}
+
+	/**
+	 * @return whether identical subtrees are matched first (las.enable.exact).
+	 */
+	public boolean isExactMatch() {
+		return exactMatch;
+	}
+
+	/**
+	 * @return whether identical subtrees are looked up in the whole tree (las.exact.global).
+	 */
+	public boolean isGlobalExactMatch() {
+		return globalExactMatch;
+	}
+
+	/**
+	 * @return whether subtrees with the same hash are compared node by node (las.verify.exact).
+	 */
+	public boolean isVerifyExactMatch() {
+		return verifyExactMatch;
+	}
+
+	/**
+	 * @return whether pairs of inserts and deletes are converted into replaces (las.enable.replace).
+	 */
+	public boolean isReplace() {
+		return replace;
+	}
+
+	/**
+	 * @return whether moves are split into deletes and inserts (las.split.moves).
+	 */
+	public boolean isSplitMoves() {
+		return splitMoves;
+	}
+
+	/**
+	 * @return whether trees are built like GumTree ASTs (las.enable.gumtree.ast).
+	 */
+	public boolean isGumTreeAST() {
+		return gumTreeAST;
+	}
+
+	/**
+	 * @return whether nodes of trees built from files release their AST nodes once a tree is built (las.release.ast).
+	 */
+	public boolean isReleaseAST() {
+		return releaseAST;
+	}
+
+	/**
+	 * @return the number of threads matching a pair of trees (las.parallelism), where 0 is set for all processors.
+	 */
+	public int getParallelism() {
+		return parallelism > 0 ? parallelism : Runtime.getRuntime().availableProcessors();
+	}
+
+	/**
+	 * @return milliseconds a diff may take before similar nodes are no longer matched (las.budget.time), or 0 for no limit.
+	 */
+	public long getTimeBudget() {
+		return timeBudget;
+	}
+
+	/**
+	 * @return the number of nodes of two trees above which similar nodes are not matched (las.budget.nodes), or 0 for no limit.
+	 */
+	public int getNodeBudget() {
+		return nodeBudget;
+	}
+
+	/**
+	 * @return the number of similarity computations after which similar nodes are no longer matched
+	 * (las.budget.similarity), or 0 for no limit. Computations for a node are not cut short, so the count
+	 * can exceed the budget by those of a node on each thread.
+	 */
+	public int getSimilarityBudget() {
+		return similarityBudget;
+	}
+
+	/**
+	 * @return a directory trees are cached in (las.cache.dir), or null for no cache.
+	 * Cached trees have no AST nodes, so a cache needs AST nodes released.
+	 */
+	public File getCacheDir() {
+		return cacheDir;
+	}
+
+	public static class Builder {
+		private double distThreshold = doubleProperty("las.dist.threshold", 0.5d);
+		private int depthThreshold = intProperty("las.depth.threshold", 3);
+		private double simThreshold = doubleProperty("las.sim.threshold", 0.65d);
+		private int indexMinCandidates = intProperty("las.index.min.candidates", 32);
+		private boolean skipMatchedCandidates = booleanProperty("las.sim.skip.matched", false);
+		private boolean lsh = booleanProperty("las.sim.lsh", false);
+		private int lshHashes = intProperty("las.sim.lsh.hashes", 64);
+		private int lshBands = intProperty("las.sim.lsh.bands", 16);
+		private boolean exactMatch = booleanProperty("las.enable.exact", true);
+		private boolean globalExactMatch = booleanProperty("las.exact.global", true);
+		private boolean verifyExactMatch = booleanProperty("las.verify.exact", false);
+		private boolean replace = booleanProperty("las.enable.replace", false);
+		private boolean splitMoves = booleanProperty("las.split.moves", false);
+		private boolean gumTreeAST = booleanProperty("las.enable.gumtree.ast", false);
+		private boolean releaseAST = booleanProperty("las.release.ast", false);
+		private int parallelism = intProperty("las.parallelism", 1);
+		private long timeBudget = longProperty("las.budget.time", 0L);
+		private int nodeBudget = intProperty("las.budget.nodes", 0);
+		private int similarityBudget = intProperty("las.budget.similarity", 0);
+		private File cacheDir = fileProperty("las.cache.dir");
+
+		/**
+		 * Create a builder starting from system properties.
+		 */
+		public Builder() {
+		}
+
+		private Builder(DiffConfig config) {
+			this.distThreshold = config.distThreshold;
+			this.depthThreshold = config.depthThreshold;
+			this.simThreshold = config.simThreshold;
+			this.indexMinCandidates = config.indexMinCandidates;
+			this.skipMatchedCandidates = config.skipMatchedCandidates;
+			this.lsh = config.lsh;
+			this.lshHashes = config.lshHashes;
+			this.lshBands = config.lshBands;
+			this.exactMatch = config.exactMatch;
+			this.globalExactMatch = config.globalExactMatch;
+			this.verifyExactMatch = config.verifyExactMatch;
+			this.replace = config.replace;
+			this.splitMoves = config.splitMoves;
+			this.gumTreeAST = config.gumTreeAST;
+			this.releaseAST = config.releaseAST;
+			this.parallelism = config.parallelism;
+			this.timeBudget = config.timeBudget;
+			this.nodeBudget = config.nodeBudget;
+			this.similarityBudget = config.similarityBudget;
+			this.cacheDir = config.cacheDir;
+		}
+
+		public Builder distThreshold(double distThreshold) {
+			this.distThreshold = distThreshold;
+			return this;
+		}
+
+		public Builder depthThreshold(int depthThreshold) {
+			this.depthThreshold = depthThreshold;
+			return this;
+		}
+
+		public Builder simThreshold(double simThreshold) {
+			this.simThreshold = simThreshold;
+			return this;
+		}
+
+		public Builder indexMinCandidates(int indexMinCandidates) {
+			this.indexMinCandidates = indexMinCandidates;
+			return this;
+		}
+
+		public Builder skipMatchedCandidates(boolean skipMatchedCandidates) {
+			this.skipMatchedCandidates = skipMatchedCandidates;
+			return this;
+		}
+
+		public Builder lsh(boolean lsh, int hashes, int bands) {
+			this.lsh = lsh;
+			this.lshHashes = hashes;
+			this.lshBands = bands;
+			return this;
+		}
+
+		public Builder exactMatch(boolean exactMatch) {
+			this.exactMatch = exactMatch;
+			return this;
+		}
+
+		public Builder globalExactMatch(boolean globalExactMatch) {
+			this.globalExactMatch = globalExactMatch;
+			return this;
+		}
+
+		public Builder verifyExactMatch(boolean verifyExactMatch) {
+			this.verifyExactMatch = verifyExactMatch;
+			return this;
+		}
+
+		public Builder replace(boolean replace) {
+			this.replace = replace;
+			return this;
+		}
+
+		public Builder splitMoves(boolean splitMoves) {
+			this.splitMoves = splitMoves;
+			return this;
+		}
+
+		public Builder gumTreeAST(boolean gumTreeAST) {
+			this.gumTreeAST = gumTreeAST;
+			return this;
+		}
+
+		public Builder releaseAST(boolean releaseAST) {
+			this.releaseAST = releaseAST;
+			return this;
+		}
+
+		/**
+		 * @param parallelism the number of threads matching a pair of trees, or 0 for all processors.
+		 */
+		public Builder parallelism(int parallelism) {
+			this.parallelism = parallelism;
+			return this;
+		}
+
+		/**
+		 * @param millis milliseconds a diff may take before similar nodes are no longer matched, or 0 for no limit.
+		 */
+		public Builder timeBudget(long millis) {
+			this.timeBudget = millis;
+			return this;
+		}
+
+		/**
+		 * @param nodes the number of nodes of two trees above which similar nodes are not matched, or 0 for no limit.
+		 */
+		public Builder nodeBudget(int nodes) {
+			this.nodeBudget = nodes;
+			return this;
+		}
+
+		/**
+		 * @param similarities the number of similarity computations after which similar nodes are no longer matched,
+		 * or 0 for no limit.
+		 */
+		public Builder similarityBudget(int similarities) {
+			this.similarityBudget = similarities;
+			return this;
+		}
+
+		/**
+		 * @param dir a directory trees are cached in, or null for no cache.
+		 */
+		public Builder cacheDir(File dir) {
+			this.cacheDir = dir;
+			return this;
+		}
+
+		public DiffConfig build() {
+			if(lsh && (lshHashes <= 0 || lshBands <= 0 || lshHashes % lshBands != 0))
+				throw new IllegalArgumentException("Invalid signature size " + lshHashes + " and band count " + lshBands + ".");
+			if(parallelism < 0)
+				throw new IllegalArgumentException("Invalid parallelism " + parallelism + ".");
+			if(cacheDir != null && !releaseAST)
+				throw new IllegalArgumentException("Cached trees have no AST nodes, so cache directory " + cacheDir
+						+ " needs AST nodes released.");
+			if(timeBudget < 0 || nodeBudget < 0 || similarityBudget < 0)
+				throw new IllegalArgumentException("Invalid budget of " + timeBudget + " ms, " + nodeBudget + " nodes and "
+						+ similarityBudget + " similarities.");
+			return new DiffConfig(this);
+		}
+
+		private static double doubleProperty(String key, double defaultValue) {
+			return System.getProperty(key) == null ? defaultValue : Double.parseDouble(System.getProperty(key));
+		}
+
+		private static long longProperty(String key, long defaultValue) {
+			return System.getProperty(key) == null ? defaultValue : Long.parseLong(System.getProperty(key));
+		}
+
+		private static int intProperty(String key, int defaultValue) {
+			return System.getProperty(key) == null ? defaultValue : Integer.parseInt(System.getProperty(key));
+		}
+
+		private static File fileProperty(String key) {
+			return System.getProperty(key) == null ? null : new File(System.getProperty(key));
+		}
+
+		private static boolean booleanProperty(String key, boolean defaultValue) {
+			return System.getProperty(key) == null ? defaultValue : Boolean.parseBoolean(System.getProperty(key));
+		}
+	}
+}
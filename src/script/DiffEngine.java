@@ -0,0 +1,113 @@
+package script;
+
+import java.io.Closeable;
+import java.io.File;
+import java.io.IOException;
+import java.util.List;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.Future;
+
+import script.model.EditOpListener;
+import script.model.EditScript;
+import tree.SourceLoader;
+import tree.Tree;
+import tree.TreeBuilder;
+import tree.TreeCache;
+
+/**
+ * Generates edit scripts with a configuration. Each diff keeps its state in its own generator and mapping,
+ * so an engine can be used by many threads, which may share trees.
+ * If the configuration has more than one thread, diffs of an engine share a pool of that many threads,
+ * which is shut down when the engine is closed. Tables of longest common subsequences are kept by an engine,
+ * so diffs reuse the tables of earlier ones on whichever thread they run.
+ */
+public class DiffEngine implements Closeable {
+	private final DiffConfig config;
+	private final ForkJoinPool pool;
+	private final TreeCache cache;
+	//Longest common subsequences not in use, at most one for each thread diffing at the same time.
+	private final Queue<LongestCommonSubsequence> lcsPool = new ConcurrentLinkedQueue<>();
+
+	/**
+	 * Create an engine with the configuration given by system properties.
+	 */
+	public DiffEngine() {
+		this(DiffConfig.getDefault());
+	}
+
+	public DiffEngine(DiffConfig config) {
+		this.config = config;
+		this.pool = config.getParallelism() > 1 ? new ForkJoinPool(config.getParallelism()) : null;
+		this.cache = config.getCacheDir() == null ? null : new TreeCache(config.getCacheDir());
+	}
+
+	public DiffConfig getConfig() {
+		return config;
+	}
+
+	/**
+	 * Match given trees and generate an edit script. The trees are not changed, so a tree can be used
+	 * by other diffs, such as the after side of one diff and the before side of the next.
+	 *
+	 * @param before a tree before a change.
+	 * @param after a tree after a change.
+	 * @return an edit script with the match counts and the mapping of this diff.
+	 */
+	public EditScript diff(Tree before, Tree after) {
+		return new ScriptGenerator(config, pool, lcsPool, null).generate(before, after);
+	}
+
+	/**
+	 * Match given trees and pass ops of the edit script to a listener instead of keeping them in the script.
+	 * Ops are passed as soon as they are final, while the script is generated, unless replace or split moves
+	 * are enabled, which change ops after they are generated. Then ops are passed when the script is done.
+	 *
+	 * @param before a tree before a change.
+	 * @param after a tree after a change.
+	 * @param listener a listener receiving top-level ops in the order of the script.
+	 * @return an edit script with the match counts and the mapping of this diff, but without ops.
+	 */
+	public EditScript diff(Tree before, Tree after, EditOpListener listener) {
+		return new ScriptGenerator(config, pool, lcsPool, listener).generate(before, after);
+	}
+
+	/**
+	 * Build the trees of two versions of a file concurrently, with the tree options and cache of the configuration.
+	 *
+	 * @param before the file before a change.
+	 * @param after the file after a change.
+	 * @param executor an executor running the builds.
+	 * @return futures of the before and after trees, in this order.
+	 */
+	public List<Future<Tree>> buildPairAsync(File before, File after, ExecutorService executor) {
+		return TreeBuilder.buildPairAsync(before, after, config.isGumTreeAST(), config.isReleaseAST(), cache, executor);
+	}
+
+	/**
+	 * Build trees of given files and generate an edit script.
+	 *
+	 * @param before a file before a change.
+	 * @param after a file after a change.
+	 * @return an edit script with the match counts of this diff.
+	 * @throws IOException
+	 */
+	public EditScript diff(File before, File after) throws IOException {
+		SourceLoader loader = new SourceLoader();
+		Tree beforeTree = TreeBuilder.buildTreeFromFile(before, loader, config.isGumTreeAST(), config.isReleaseAST(), cache);
+		Tree afterTree = TreeBuilder.buildTreeFromFile(after, loader, config.isGumTreeAST(), config.isReleaseAST(), cache);
+		return diff(beforeTree, afterTree);
+	}
+
+	/**
+	 * Shut down the pool of the engine, if any. Diffs running on the pool are finished, but the engine
+	 * should not be used after it is closed.
+	 */
+	@Override
+	public void close() {
+		if(pool != null)
+			pool.shutdown();
+	}
+}
@@ -0,0 +1,119 @@
+package script;
+
+import java.util.Arrays;
+
+/**
+ * A longest common subsequence of two sequences of keys, traced from their starts as with a full table
+ * of suffix lengths: equal keys are matched, otherwise an element of the first sequence is skipped if
+ * that keeps the length, and one of the second sequence if not.
+ * Only every k-th row of the table is kept, with k = ceil(sqrt(m)), and rows between them are computed
+ * again while tracing, so a table of m*n cells needs at most (2*ceil(sqrt(m))+1)*(n+1) cells,
+ * about 2*sqrt(m)*n, at twice the time at most.
+ * The space is not linear in the sequences, but the rows kept are reused by later traces
+ * of the same instance, so an instance should be used by one thread at a time.
+ */
+final class LongestCommonSubsequence {
+	//An element skipped while tracing.
+	static final int SKIPPED = -1;
+	//An element after the end of tracing, which stops at the end of either sequence.
+	static final int UNVISITED = -2;
+	//Tables up to this many cells are kept whole.
+	private static final long FULL_TABLE_CELLS = 1 << 16;
+	//Tables up to this many cells are worth keeping for later traces.
+	private static final int REUSABLE_CELLS = 1 << 20;
+
+	private int[] table = new int[1024];
+
+	/**
+	 * @param a keys of the first sequence.
+	 * @param b keys of the second sequence.
+	 * @return for each element of <code>a</code>, the index of the element of <code>b</code> matched to it,
+	 * {@link #SKIPPED} or {@link #UNVISITED}.
+	 */
+	int[] trace(int[] a, int[] b) {
+		int m = a.length;
+		int n = b.length;
+		int[] result = new int[m];
+		Arrays.fill(result, UNVISITED);
+		if(m == 0 || n == 0)
+			return result;
+		int width = n + 1;
+		int k = (long)(m + 1) * width <= FULL_TABLE_CELLS ? m : (int)Math.ceil(Math.sqrt(m));
+		//Rows k, 2k, ... below m are kept, then a block of k rows follows them.
+		int checkpoints = (m - 1) / k;
+		long cells = (long)(checkpoints + k + 1) * width;
+		if(cells > Integer.MAX_VALUE)
+			throw new IllegalArgumentException("Sequences of " + m + " and " + n + " elements are too long.");
+		if(table.length < cells)
+			table = new int[(int)cells];
+		int[] table = this.table;
+		int block = checkpoints * width;
+
+		//Compute rows from the end, keeping checkpoints, with the first two rows of the block.
+		if(checkpoints > 0){
+			int next = block;
+			int cur = block + width;
+			Arrays.fill(table, next, next + width, 0);
+			for(int i=m-1; i>=k; i--){
+				computeRow(a, b, i, table, cur, next, 0);
+				if(i % k == 0)
+					System.arraycopy(table, cur, table, (i / k - 1) * width, width);
+				int temp = next;
+				next = cur;
+				cur = temp;
+			}
+		}
+
+		int i = 0, j = 0;
+		while(i < m && j < n){
+			int from = i;
+			int to = Math.min(from + k, m);
+			//Columns before j are never visited again, so they are not computed.
+			int last = block + (to - from) * width;
+			if(to == m)
+				Arrays.fill(table, last + j, last + width, 0);
+			else
+				System.arraycopy(table, (to / k - 1) * width + j, table, last + j, width - j);
+			for(int r=to-1; r>=from; r--){
+				int cur = block + (r - from) * width;
+				computeRow(a, b, r, table, cur, cur + width, j);
+			}
+			while(i < to && j < n){
+				int cur = block + (i - from) * width;
+				if(a[i] == b[j]){
+					result[i++] = j++;
+				}else if(table[cur + width + j] >= table[cur + j + 1]){
+					result[i++] = SKIPPED;
+				}else{
+					j++;
+				}
+			}
+		}
+		return result;
+	}
+
+	/**
+	 * @return whether the table is small enough to be kept for later traces.
+	 */
+	boolean isReusable() {
+		return table.length <= REUSABLE_CELLS;
+	}
+
+	/**
+	 * Compute lengths of row <code>i</code> from column <code>n</code> down to <code>start</code>.
+	 */
+	private static void computeRow(int[] a, int[] b, int i, int[] table, int cur, int next, int start) {
+		int n = b.length;
+		int key = a[i];
+		table[cur + n] = 0;
+		for(int j=n-1; j>=start; j--){
+			if(key == b[j]){
+				table[cur + j] = table[next + j + 1] + 1;
+			}else{
+				int down = table[next + j];
+				int right = table[cur + j + 1];
+				table[cur + j] = down >= right ? down : right;
+			}
+		}
+	}
+}
@@ -0,0 +1,78 @@
+package script;
+
+import tree.TreeNode;
+import tree.TreeVector;
+
+/**
+ * Locality-sensitive hashing of subtrees by MinHash signatures of their label multisets.
+ * A signature is split into bands, and the values of a band are hashed into a bucket key.
+ * Two subtrees are candidates only if they share a bucket, where all values of a band are equal,
+ * which is likely when their Jaccard similarity is high. Similar subtrees can be missed,
+ * so this is an approximation used only when enabled.
+ */
+class MinHashIndex {
+	private static final long GOLDEN_GAMMA = 0x9E3779B97F4A7C15L;
+
+	private final int hashes;
+	private final int bands;
+	private final int rows;
+
+	/**
+	 * @param hashes the number of values in a signature.
+	 * @param bands the number of bands, each with <code>hashes / bands</code> values.
+	 */
+	MinHashIndex(int hashes, int bands) {
+		if(hashes <= 0 || bands <= 0 || hashes % bands != 0)
+			throw new IllegalArgumentException("Invalid signature size " + hashes + " and band count " + bands
+					+ ", which should divide the signature size.");
+		this.hashes = hashes;
+		this.bands = bands;
+		this.rows = hashes / bands;
+	}
+
+	/**
+	 * @return a bucket key of each band of the signature of <code>node</code>. Keys of different bands differ.
+	 */
+	long[] getBucketKeys(TreeNode node) {
+		int[] signature = computeSignature(node.getVector());
+		long[] keys = new long[bands];
+		for(int band=0; band<bands; band++){
+			long key = band;
+			for(int i=band*rows; i<(band+1)*rows; i++){
+				key = hash(key * GOLDEN_GAMMA + signature[i]);
+			}
+			keys[band] = key;
+		}
+		return keys;
+	}
+
+	private int[] computeSignature(TreeVector vector) {
+		long[] min = new long[hashes];
+		for(int i=0; i<hashes; i++){
+			min[i] = Long.MAX_VALUE;
+		}
+		for(int l=0; l<vector.size(); l++){
+			//Each occurrence of a label is a distinct element, so multiplicity counts.
+			for(int k=1; k<=vector.getCount(l); k++){
+				long element = ((long)vector.getLabel(l) << 32) | k;
+				for(int i=0; i<hashes; i++){
+					long h = hash(element + (i + 1) * GOLDEN_GAMMA);
+					if(h < min[i])
+						min[i] = h;
+				}
+			}
+		}
+		int[] signature = new int[hashes];
+		for(int i=0; i<hashes; i++){
+			signature[i] = (int)(min[i] ^ (min[i] >>> 32));
+		}
+		return signature;
+	}
+
+	private static long hash(long z) {
+		//SplitMix64 finalizer.
+		z = (z ^ (z >>> 30)) * 0xbf58476d1ce4e5b9L;
+		z = (z ^ (z >>> 27)) * 0x94d049bb133111ebL;
+		return z ^ (z >>> 31);
+	}
+}
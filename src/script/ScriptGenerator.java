@@ -1,163 +1,315 @@
 package script;
 
 import java.util.ArrayList;
+import java.util.Collections;
 import java.util.HashMap;
+import java.util.IdentityHashMap;
 import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
 import java.util.List;
 import java.util.Map;
+import java.util.Queue;
+import java.util.Set;
 import java.util.Stack;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveAction;
+import java.util.concurrent.RecursiveTask;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
 
 import org.eclipse.jdt.core.dom.ASTNode;
-import org.eclipse.jdt.core.dom.BodyDeclaration;
 import org.eclipse.jdt.core.dom.StructuralPropertyDescriptor;
 
 import script.model.Delete;
 import script.model.EditOp;
+import script.model.EditOpListener;
 import script.model.EditScript;
+import script.model.EditScript.Phase;
 import script.model.Insert;
 import script.model.Move;
 import script.model.Replace;
 import script.model.Update;
+import tree.Mapping;
 import tree.Tree;
 import tree.TreeNode;
 
 public class ScriptGenerator {
 
-	private static final double DIST_THRESHOLD = System.getProperty("las.dist.threshold") == null ? 0.5d : Double.parseDouble(System.getProperty("las.dist.threshold"));
-	private static final int DEPTH_THRESHOLD = System.getProperty("las.depth.threshold") == null ? 3 : Integer.parseInt(System.getProperty("las.depth.threshold"));
-	private static final double SIM_THRESHOLD = System.getProperty("las.sim.threshold") == null ? 0.65d : Double.parseDouble(System.getProperty("las.sim.threshold"));
-	private static final boolean ENABLE_EXACT_MATCH =  System.getProperty("las.enable.exact") == null ? true : Boolean.parseBoolean(System.getProperty("las.enable.exact"));
-	private static final boolean ENABLE_REPLACE =  System.getProperty("las.enable.replace") == null ? false : Boolean.parseBoolean(System.getProperty("las.enable.replace"));
-	private static final boolean SPLIT_MOVES =  System.getProperty("las.split.moves") == null ? false : Boolean.parseBoolean(System.getProperty("las.split.moves"));
-
+	//The default engine lives as long as the class, so it is never closed. Threads of its pool are daemons.
+	private static final DiffEngine DEFAULT_ENGINE = new DiffEngine();
+	//Candidates are evaluated in parallel when this many nodes look for them.
+	private static final int PARALLEL_CANDIDATE_THRESHOLD = 64;
+	private static final int CANDIDATE_TASK_SIZE = 4;
+	//Leaves are matched in parallel when this many node pairs are matched.
+	private static final int PARALLEL_LEAF_THRESHOLD = 1024;
+	private static final int LEAF_TASK_SIZE = 256;
+
+	//Counts of the last script generated by generateScript(), which are shared by all threads.
+	//EditScript keeps the counts of each script.
 	public static int exactMatch = 0;
 	public static int similarMatch = 0;
 	public static int followupMatch = 0;
 	public static int leafMatch = 0;
 	public static int exactMatchCount = 0;
+	//Pairs whose similarity is computed, and pairs as similar as the threshold.
+	public static int similarityCount = 0;
+	public static int similarPairCount = 0;
+
+	private final DiffConfig config;
+	//A pool running parallel parts of matching, or null to run them on the calling thread.
+	private final ForkJoinPool pool;
+	//A listener receiving ops instead of the script, or null to keep them in the script.
+	private final EditOpListener listener;
+	//The script of this run, which also keeps match counts while matching.
+	private final EditScript result;
+	//Matches of this run, which leave the trees unchanged.
+	private Mapping mapping;
+	//Longest common subsequences not in use, shared by runs of an engine so their tables are reused.
+	private final Queue<LongestCommonSubsequence> lcsPool;
+	//Longest common subsequences of this run on the calling thread, taken from the pool while it runs.
+	private LongestCommonSubsequence lcs;
+	//Non-leaf nodes of each side by hash, from which nodes found matched are dropped while exact matching.
+	private List<Map<Long, List<TreeNode>>> unmatchedByHash;
+	//Best candidates of nodes while similar nodes are matched.
+	private CandidateTable candidates;
+	//System.nanoTime() when this run started, for the time budget.
+	private long startTime;
+	//Set once the time budget runs out, and read by threads evaluating candidates.
+	private volatile boolean outOfTime;
+	//Set once the similarity budget runs out. Only similar matching is cut short by it.
+	private volatile boolean outOfSimilarity;
+	//Similarities computed by all threads of this run, for the similarity budget.
+	private final AtomicInteger similarities = new AtomicInteger();
+
+	ScriptGenerator(DiffConfig config, ForkJoinPool pool){
+		this(config, pool, new ConcurrentLinkedQueue<LongestCommonSubsequence>(), null);
+	}
 
+	/**
+	 * @param lcsPool longest common subsequences not in use, which may be shared by generators running at the same time.
+	 */
+	ScriptGenerator(DiffConfig config, ForkJoinPool pool, Queue<LongestCommonSubsequence> lcsPool, EditOpListener listener){
+		this.config = config;
+		this.pool = pool;
+		this.lcsPool = lcsPool;
+		this.listener = listener;
+		this.result = new EditScript();
+	}
+
+	/**
+	 * Generate an edit script with the default configuration.
+	 * Use {@link DiffEngine} to generate scripts concurrently or with another configuration.
+	 */
 	public static EditScript generateScript(Tree before, Tree after){
-		exactMatch = 0;
-		similarMatch = 0;
-		followupMatch = 0;
-		leafMatch = 0;
-		exactMatchCount = 0;
-		match(before, after);
-		EditScript script = generateEditOps(before, after);
-		script.updateMatchCount(exactMatch, similarMatch, followupMatch, leafMatch, exactMatchCount);
+		EditScript script = DEFAULT_ENGINE.diff(before, after);
+		exactMatch = script.exactMatch;
+		similarMatch = script.similarMatch;
+		followupMatch = script.followupMatch;
+		leafMatch = script.leafMatch;
+		exactMatchCount = script.exactMatchCount;
+		similarityCount = script.similarityCount;
+		similarPairCount = script.similarPairCount;
 
 		return script;
 	}
 
-	private static EditScript generateEditOps(Tree before, Tree after) {
-		EditScript script = new EditScript();
+	/**
+	 * Match given trees and generate an edit script. A generator is used only once.
+	 */
+	EditScript generate(Tree before, Tree after){
+		startTime = System.nanoTime();
+		mapping = new Mapping(before, after);
+		result.setMapping(mapping);
+		lcs = takeLCS();
+		try{
+			match(before, after);
+			return generateEditOps(before, after);
+		}finally{
+			releaseLCS(lcs);
+			lcs = null;
+		}
+	}
+
+	private LongestCommonSubsequence takeLCS() {
+		LongestCommonSubsequence taken = lcsPool.poll();
+		return taken == null ? new LongestCommonSubsequence() : taken;
+	}
+
+	private void releaseLCS(LongestCommonSubsequence released) {
+		//A table grown by an unusually long sequence is not kept.
+		if(released.isReusable())
+			lcsPool.offer(released);
+	}
+
+	private EditScript generateEditOps(Tree before, Tree after) {
+		final EditScript script = result;
+		//Replace and split moves change ops already generated, so ops are passed on only after them.
+		boolean streaming = listener != null && !config.isReplace() && !config.isSplitMoves();
+		PendingOps ops = new PendingOps(streaming ? listener : new EditOpListener() {
+			@Override
+			public void editOpGenerated(EditOp op) {
+				script.addEditOp(op);
+			}
+		});
 		//Generate delete first.
 		Stack<EditOp> opStack = new Stack<>();
 		for(TreeNode node : before.getRoot().children){
-			script.addEditOps(generateDelete(node, opStack));
+			generateDelete(node, opStack, ops);
 		}
 
 		//Then generate insert, update.
 		opStack.clear();
 		for(TreeNode node : after.getRoot().children){
-			script.addEditOps(generateInsertMoveUpdate(node, opStack));
+			generateInsertMoveUpdate(node, opStack, ops);
 		}
 
-		//If ENABLE_REPLACE is on, convert insert-delete pairs into Replace.
-		if(ENABLE_REPLACE)
+		//If replace is enabled, convert insert-delete pairs into Replace.
+		if(config.isReplace())
 			generateReplace(script);
 
 		//Finally, generate move operations for ordering changes.
-		script.addEditOps(generateOrderingChange(before.getRoot()));
+		generateOrderingChange(before.getRoot(), ops);
 
-		if(SPLIT_MOVES)
+		if(config.isSplitMoves())
 			splitMoves(script);
 
+		if(listener != null && !streaming){
+			Iterator<EditOp> it = script.editOps().iterator();
+			while(it.hasNext()){
+				EditOp op = it.next();
+				it.remove();
+				listener.editOpGenerated(op);
+			}
+		}
 		return script;
 	}
 
-	private static void splitMoves(EditScript script) {
-		Iterator<EditOp> it = script.getEditOps().iterator();
+	/**
+	 * Top-level ops in the order they are generated. Ops are passed on once no op before them can get more
+	 * ops attached, so a listener gets them in the same order as a script would.
+	 */
+	private static class PendingOps {
+		private final EditOpListener listener;
+		private final List<EditOp> ops = new ArrayList<>();
+		//Ops whose subtrees are still being generated.
+		private int open = 0;
+
+		private PendingOps(EditOpListener listener) {
+			this.listener = listener;
+		}
+
+		/**
+		 * Add an op which gets no more ops attached.
+		 */
+		private void add(EditOp op) {
+			ops.add(op);
+			flush();
+		}
+
+		/**
+		 * Add an op which may get ops attached until it is closed.
+		 */
+		private void open(EditOp op) {
+			ops.add(op);
+			open++;
+		}
+
+		private void close() {
+			open--;
+			flush();
+		}
+
+		private void flush() {
+			if(open == 0){
+				for(EditOp op : ops){
+					listener.editOpGenerated(op);
+				}
+				ops.clear();
+			}
+		}
+	}
+
+	private void splitMoves(EditScript script) {
 		List<EditOp> newOps = new ArrayList<>();
 		//Clean up sub-edits first.
+		List<Move> moves = new ArrayList<>();
+		Iterator<EditOp> it = script.editOps().iterator();
 		while(it.hasNext()) {
 			EditOp op = it.next();
-			if(op instanceof Replace || op instanceof Move)
-				continue;
-			if(belongsToMoved(op)) {
+			if(op instanceof Move)
+				moves.add((Move)op);
+			else if(!(op instanceof Replace) && belongsToMoved(op))
 				it.remove();
-			}
 		}
 
-		//Split moves.
-		it = script.getEditOps().iterator();
-		while(it.hasNext()) {
-			EditOp op = it.next();
-			if(op instanceof Move) {
-				TreeNode n = op.getNode();
-				TreeNode deleted = n;
-				TreeNode inserted = n.getMatched();
-				Delete d = makeDelete(deleted, script);
-				Insert i = makeInsert(inserted, script);
-				newOps.add(d);
-				newOps.add(i);
-				it.remove();
-			}
+		//Split moves. Making ops of a move removes other ops of the script, so moves are collected first.
+		for(Move op : moves) {
+			TreeNode n = op.getNode();
+			TreeNode deleted = n;
+			TreeNode inserted = mapping.getMatched(n);
+			Delete d = makeDelete(deleted, script);
+			Insert i = makeInsert(inserted, script);
+			newOps.add(d);
+			newOps.add(i);
+			script.removeEditOp(op);
 		}
 
+		//Ops of deleted and inserted nodes, so a new op is attached to the op of its parent without walking
+		//op trees. New ops are indexed first, as they are tried first.
+		Map<TreeNode, EditOp> opsByNode = new IdentityHashMap<>();
+		for(EditOp newOp : newOps) {
+			indexEditOps(newOp, opsByNode);
+		}
+		for(EditOp op : script.editOps()) {
+			if(op instanceof Delete || op instanceof Insert)
+				indexEditOps(op, opsByNode);
+		}
 		for(EditOp newOp : newOps) {
-			boolean attached = attachEditOp(newOp, newOps);
-			attached = attached || attachEditOp(newOp, script.getEditOps());
-			//If newOp is not attached to any, it's independent.
-			if(!attached) {
+			EditOp parentOp = opsByNode.get(newOp.getNode().getParent());
+			if(parentOp != null && parentOp.getType().equals(newOp.getType())) {
+				parentOp.attachChild(newOp);
+			} else {
+				//If newOp is not attached to any, it's independent.
 				script.addEditOp(newOp);
 			}
 		}
 	}
 
-	private static boolean attachEditOp(EditOp newOp, List<EditOp> editOps) {
-		//Attach newOp if it belongs to another edit op.
-		boolean attached = false;
-		for(EditOp op : editOps) {
-			if(op.getType().equals(newOp.getType())
-					&& belongsTo(newOp, op)) {
-				attached = op.attach(newOp);
-			}
+	private void indexEditOps(EditOp op, Map<TreeNode, EditOp> opsByNode) {
+		if(!opsByNode.containsKey(op.getNode()))
+			opsByNode.put(op.getNode(), op);
+		Iterator<EditOp> it = op.childEdits();
+		while(it.hasNext()) {
+			indexEditOps(it.next(), opsByNode);
 		}
-		return attached;
 	}
 
 	/**
-	 * @param target
-	 * @param op
-	 * @return true if target belongs to op.
+	 * Attach <code>newOp</code> to ops of the same type of the script whose nodes are ancestors of its node,
+	 * which are looked up by node.
+	 *
+	 * @return whether the last of those ops took <code>newOp</code>.
 	 */
-	private static boolean belongsTo(EditOp target, EditOp op) {
-		TreeNode n = target.getNode();
-		while(n.getParent() != null) {
-			TreeNode p = n.getParent();
-			if(p == op.getNode())
-				return true;
-			n = p;
+	private boolean attachEditOp(EditOp newOp, EditScript script) {
+		boolean attached = false;
+		for(EditOp op : script.getEditOpsAbove(newOp.getClass(), newOp.getNode())) {
+			attached = op.attach(newOp);
 		}
-		return false;
+		return attached;
 	}
 
-	private static Insert makeInsert(TreeNode n, EditScript script) {
+	private Insert makeInsert(TreeNode n, EditScript script) {
 		if(n == null)
 			return null;
-		if(!n.isMatched() && n.getParent() != null && n.getParent().isMatched()) {
+		if(!mapping.isMatched(n) && n.getParent() != null && mapping.isMatched(n.getParent())) {
 			//If n is not matched, discard the insert of n from the script.
-			Iterator<EditOp> it = script.getEditOps().iterator();
-			while(it.hasNext()) {
-				EditOp op = it.next();
-				if(op instanceof Insert && op.getNode() == n) {
-					it.remove();
-					break;
-				}
-			}
+			Insert insert = script.getEditOp(Insert.class, n);
+			if(insert != null)
+				script.removeEditOp(insert);
 		}
-		n.setChangeType(TreeNode.NODE_INSERTED);
+		mapping.setChangeType(n, Mapping.NODE_INSERTED);
 		Insert i = new Insert(n);
 		for(TreeNode child : n.children) {
 			i.addEditOp(makeInsert(child, script));
@@ -165,21 +317,16 @@ public class ScriptGenerator {
 		return i;
 	}
 
-	private static Delete makeDelete(TreeNode n, EditScript script) {
+	private Delete makeDelete(TreeNode n, EditScript script) {
 		if(n == null)
 			return null;
-		if(!n.isMatched() && n.getParent() != null && n.getParent().isMatched()) {
+		if(!mapping.isMatched(n) && n.getParent() != null && mapping.isMatched(n.getParent())) {
 			//If n is not matched, discard the delete of n from the script.
-			Iterator<EditOp> it = script.getEditOps().iterator();
-			while(it.hasNext()) {
-				EditOp op = it.next();
-				if(op instanceof Delete && op.getNode() == n) {
-					it.remove();
-					break;
-				}
-			}
+			Delete delete = script.getEditOp(Delete.class, n);
+			if(delete != null)
+				script.removeEditOp(delete);
 		}
-		n.setChangeType(TreeNode.NODE_DELETED);
+		mapping.setChangeType(n, Mapping.NODE_DELETED);
 		Delete d = new Delete(n);
 		for(TreeNode child : n.children) {
 			d.addEditOp(makeDelete(child, script));
@@ -187,39 +334,38 @@ public class ScriptGenerator {
 		return d;
 	}
 
-	private static boolean belongsToMoved(EditOp op) {
+	private boolean belongsToMoved(EditOp op) {
 		TreeNode n = op.getNode();
 		while(n.getParent() != null) {
 			TreeNode p = n.getParent();
-			if(p.isMatched() && (p.isDeleted() || p.isInserted()))
+			if(mapping.isMatched(p) && (mapping.isDeleted(p) || mapping.isInserted(p)))
 				return true;
 			n = p;
 		}
 		return false;
 	}
 
-	private static void generateReplace(EditScript script) {
-		Map<EditOp, EditOp> pairs = new HashMap<>();
-		List<Insert> inserts = new ArrayList<>();
-		List<Delete> deletes = new ArrayList<>();
+	private void generateReplace(EditScript script) {
+		//Pairs are processed in the order they are found, so the same script is generated by every run.
+		Map<EditOp, EditOp> pairs = new LinkedHashMap<>();
+		//Ops are compared by identity, so sets keep their order with constant time removal.
+		Set<Insert> inserts = new LinkedHashSet<>();
+		Set<Delete> deletes = new LinkedHashSet<>();
 		List<Move> moves = new ArrayList<>();
-		List<Update> updates = new ArrayList<>();
-		for(EditOp op : script.getEditOps()) {
+		for(EditOp op : script.editOps()) {
 			if(op instanceof Insert) {
 				inserts.add((Insert)op);
 			} else if(op instanceof Delete) {
 				deletes.add((Delete)op);
 			} else if(op instanceof Move) {
 				moves.add((Move)op);
-			} else if(op instanceof Update) {
-				updates.add((Update)op);
 			}
 		}
 
 		//Find replace candidates connected by Moves.
 		for(Move mov : moves) {
-			Delete del = findEditOp(mov.getNode(), deletes);
-			Insert ins = findEditOp(mov.getNode().getMatched(), inserts);
+			Delete del = findEditOp(Delete.class, mov.getNode(), script);
+			Insert ins = findEditOp(Insert.class, mapping.getMatched(mov.getNode()), script);
 			if(del != null && ins != null) {
 				if(!pairs.containsKey(del) && !pairs.containsKey(ins)
 						&& verifyLoc(del.getNode(), ins.getNode(), false)) {
@@ -229,7 +375,7 @@ public class ScriptGenerator {
 				pairs.put(mov, del);
 			} else if(del != null) {
 				if(!pairs.containsKey(del)
-						&& verifyLoc(del.getNode(), mov.getNode().getMatched(), false)) {
+						&& verifyLoc(del.getNode(), mapping.getMatched(mov.getNode()), false)) {
 					pairs.put(del, mov);
 				} else {
 					pairs.put(mov, del);
@@ -255,22 +401,22 @@ public class ScriptGenerator {
 				script.removeEditOp(op2);
 				if(op2 instanceof Insert) {
 					r = new Replace(del.getNode(), op2.getNode());
-					discardUpdates(del, updates, script);
+					discardUpdates(del, script);
 				} else if(op2 instanceof Move) {
-					r = new Replace(del.getNode(), op2.getNode().getMatched());
-					discardUpdates(del, updates, script);
+					r = new Replace(del.getNode(), mapping.getMatched(op2.getNode()));
+					discardUpdates(del, script);
 				}
 			} else if(op instanceof Insert) {
 				inserts.remove(op);
 				script.removeEditOp(op2);
 				if(op2 instanceof Move) {
 					r = new Replace(op2.getNode(), op.getNode());
-					discardUpdates(op, updates, script);
+					discardUpdates(op, script);
 				}
 			} else if(op instanceof Move) {
 				//Discard op not converted, but included to replace.
 				discardMove((Move)op, pairs, script);
-				discardUpdates(op, updates, script);
+				discardUpdates(op, script);
 			}
 
 			if(r != null) {
@@ -278,7 +424,7 @@ public class ScriptGenerator {
 				if(r.getNode().getType() == ASTNode.BLOCK && r.getLocation().getType() == ASTNode.BLOCK) {
 					TreeNode p1 = r.getNode().getParent();
 					TreeNode p2 = r.getLocation().getParent();
-					if(p1 != null && p2 != null && p1.getMatched() == p2) {
+					if(p1 != null && p2 != null && mapping.getMatched(p1) == p2) {
 						r = new Replace(p1, p2);
 					}
 				}
@@ -286,9 +432,21 @@ public class ScriptGenerator {
 			}
 		}
 
-		//Check remaining deletes and inserts.
+		//Check remaining deletes and inserts. Only inserts under the match of the parent of a delete
+		//can replace it, so inserts are grouped by their parents.
+		Map<TreeNode, List<Insert>> insertsByParent = new IdentityHashMap<>();
+		for(Insert ins : inserts) {
+			TreeNode parent = ins.getNode().getParent();
+			if(!insertsByParent.containsKey(parent))
+				insertsByParent.put(parent, new ArrayList<Insert>());
+			insertsByParent.get(parent).add(ins);
+		}
 		for(Delete del : deletes) {
-			Iterator<Insert> it = inserts.iterator();
+			TreeNode parent = del.getNode().getParent();
+			List<Insert> candidates = parent == null ? null : insertsByParent.get(mapping.getMatched(parent));
+			if(candidates == null)
+				continue;
+			Iterator<Insert> it = candidates.iterator();
 			while(it.hasNext()) {
 				Insert ins = it.next();
 				if(verifyLoc(del.getNode(), ins.getNode(), true)) {
@@ -296,7 +454,7 @@ public class ScriptGenerator {
 					script.removeEditOp(ins);
 					it.remove();
 					Replace r = new Replace(del.getNode(), ins.getNode());
-					discardUpdates(del, updates, script);
+					discardUpdates(del, script);
 					script.addEditOp(r);
 					break;
 				}
@@ -304,30 +462,25 @@ public class ScriptGenerator {
 		}
 	}
 
-	private static void discardUpdates(EditOp op, List<Update> updates, EditScript script) {
-		Iterator<Update> it = updates.iterator();
-		while(it.hasNext()) {
-			Update upd = it.next();
-			TreeNode node = op instanceof Insert ? upd.getLocation() : upd.getNode();
-			if(descCheck(op.getNode(), node)) {
-				it.remove();
+	/**
+	 * Remove updates of descendants of the node of <code>op</code>, which are looked up by node.
+	 * Updates are kept by their nodes before a change, so descendants of an insert are looked up by their matches.
+	 */
+	private void discardUpdates(EditOp op, EditScript script) {
+		boolean inserted = op instanceof Insert;
+		Stack<TreeNode> stack = new Stack<>();
+		stack.addAll(op.getNode().children);
+		while(!stack.isEmpty()) {
+			TreeNode node = stack.pop();
+			TreeNode updated = inserted ? mapping.getMatched(node) : node;
+			Update upd = updated == null ? null : script.getEditOp(Update.class, updated);
+			if(upd != null && (!inserted || upd.getLocation() == node))
 				script.removeEditOp(upd);
-			}
+			stack.addAll(node.children);
 		}
 	}
 
-	private static boolean descCheck(TreeNode node, TreeNode descendant) {
-		TreeNode parent = descendant.getParent();
-		while(parent != null) {
-			if(node == parent) {
-				return true;
-			}
-			parent = parent.getParent();
-		}
-		return false;
-	}
-
-	private static void discardMove(Move mov, Map<EditOp, EditOp> pairs, EditScript script) {
+	private void discardMove(Move mov, Map<EditOp, EditOp> pairs, EditScript script) {
 		EditOp op = pairs.get(mov);
 		//If op is combined to a replace.
 		if(pairs.containsKey(op)) {
@@ -335,27 +488,27 @@ public class ScriptGenerator {
 			if(pairOp instanceof Move) {
 				//If op is connected to the move, handle the not included part of the move.
 				if(op instanceof Delete) {
-					Insert ins = makeInsert(mov.getNode().getMatched(), script);
-					if(!attachEditOp(ins, script.getEditOps()))
+					Insert ins = makeInsert(mapping.getMatched(mov.getNode()), script);
+					if(!attachEditOp(ins, script))
 						script.addEditOp(ins);
 				} else if(op instanceof Insert) {
 					Delete del = makeDelete(mov.getNode(), script);
-					if(!attachEditOp(del, script.getEditOps()))
+					if(!attachEditOp(del, script))
 						script.addEditOp(del);
 				}
 			}
 		}
 	}
 
-	private static boolean verifyLoc(TreeNode node1, TreeNode node2, boolean typeCheck) {
+	private boolean verifyLoc(TreeNode node1, TreeNode node2, boolean typeCheck) {
 		if(node1.getParent() == null || node2.getParent() == null
-				|| node1.getParent().getMatched() != node2.getParent())
+				|| mapping.getMatched(node1.getParent()) != node2.getParent())
 			return false;
 		//Don't replace declarations.
-		if(node1.getASTNode() instanceof BodyDeclaration || node2.getASTNode() instanceof BodyDeclaration)
+		if(node1.isBodyDeclaration() || node2.isBodyDeclaration())
 			return false;
-		StructuralPropertyDescriptor loc1 = identifyLocation(node1);
-		StructuralPropertyDescriptor loc2 = identifyLocation(node2);
+		StructuralPropertyDescriptor loc1 = node1.getStatementLocation();
+		StructuralPropertyDescriptor loc2 = node2.getStatementLocation();
 		if(loc1 != null && loc2 != null && loc1.equals(loc2)) {
 			if (typeCheck && loc1.getId().equals("statements")
 					&& node1.getType() != node2.getType()) {
@@ -378,7 +531,7 @@ public class ScriptGenerator {
 					left2 = getMatchedLeft(node2, leftCount2-leftCount1);
 				}
 				if(left1 == null && left2 == null ||
-						left1 != null && left1.getMatched() == left2)
+						left1 != null && mapping.getMatched(left1) == left2)
 					return true;
 				else
 					return false;
@@ -388,88 +541,71 @@ public class ScriptGenerator {
 		return false;
 	}
 
-	private static TreeNode getMatchedLeft(TreeNode node, int offset) {
-		TreeNode left = node.getLeft();
-		while(left != null && offset > 0) {
-			offset--;
-			left = left.getLeft();
-		}
-		return left;
+	private TreeNode getMatchedLeft(TreeNode node, int offset) {
+		int index = node.indexInParent() - 1 - offset;
+		return index >= 0 ? node.getParent().children.get(index) : null;
 	}
 
-	private static int getMatchedLeftCount(TreeNode node) {
+	private int getMatchedLeftCount(TreeNode node) {
 		int count = 0;
-		TreeNode left = node.getLeft();
-		while(left != null) {
-			if(left.isMatched())
+		List<TreeNode> siblings = node.getParent().children;
+		for(int i=node.indexInParent()-1; i>=0; i--) {
+			if(mapping.isMatched(siblings.get(i)))
 				count++;
-			left = left.getLeft();
 		}
 		return count;
 	}
 
-	private static StructuralPropertyDescriptor identifyLocation(TreeNode node) {
-		StructuralPropertyDescriptor loc;
-		if(node.getASTNode().getParent().getNodeType() == ASTNode.EXPRESSION_STATEMENT)
-			loc = node.getASTNode().getParent().getLocationInParent();
-		else
-			loc = node.getASTNode().getLocationInParent();
-		return loc;
-	}
-
-	private static <T extends EditOp> T findEditOp(TreeNode node, List<T> operations) {
-		if(node.getParent().isMatched())
+	/**
+	 * @return the op of <code>type</code> for the unmatched subtree containing <code>node</code>,
+	 * or null if the parent of <code>node</code> is matched.
+	 */
+	private <T extends EditOp> T findEditOp(Class<T> type, TreeNode node, EditScript script) {
+		if(mapping.isMatched(node.getParent()))
 			return null;
 		while(node.getParent() != null) {
-			if(!node.getParent().isMatched())
+			if(!mapping.isMatched(node.getParent()))
 				node = node.getParent();
 			else
 				break;
 		}
-		for(T op : operations) {
-			if(op.getNode().equals(node))
-				return op;
-		}
-		return null;
+		return script.getEditOp(type, node);
 	}
 
-	private static List<EditOp> generateOrderingChange(TreeNode node) {
-		List<EditOp> editOps = new ArrayList<>();
+	private void generateOrderingChange(TreeNode node, PendingOps ops) {
 		//node must be from the old tree.
-		if(node.isMatched()){
+		if(mapping.isMatched(node)){
 			//			Map<StructuralPropertyDescriptor, List<TreeNode>> oldMap = new HashMap<>();
 			//			Map<StructuralPropertyDescriptor, List<TreeNode>> newMap = new HashMap<>();
 			//			computeLocationMap(oldMap, node.children);
-			//			computeLocationMap(newMap, node.getMatched().children);
+			//			computeLocationMap(newMap, mapping.getMatched(node).children);
 			//			//Produce ordering changes only for nodes with the same syntax location.
 			//			for(StructuralPropertyDescriptor key : oldMap.keySet()) {
 			//				if(newMap.containsKey(key)) {
 			//					for(TreeNode n : findNonLCSNodes(oldMap.get(key), newMap.get(key))){
-			//						n.setChangeType(TreeNode.NODE_DELETED);
-			//						n.getMatched().setChangeType(TreeNode.NODE_INSERTED);
-			//						Move move = new Move(n, n.getMatched().getParent(), n.getMatched().indexInParent());
+			//						mapping.setChangeType(n, Mapping.NODE_DELETED);
+			//						mapping.setChangeType(mapping.getMatched(n), Mapping.NODE_INSERTED);
+			//						Move move = new Move(n, mapping.getMatched(n).getParent(), mapping.getMatched(n).indexInParent());
 			//						editOps.add(move);
 			//					}
 			//				}
 			//			}
-			for(TreeNode n : findNonLCSNodes(node.children, node.getMatched().children)){
-				n.setChangeType(TreeNode.NODE_DELETED);
-				n.getMatched().setChangeType(TreeNode.NODE_INSERTED);
-				Move move = new Move(n, n.getMatched().getParent(), n.getMatched().indexInParent());
-				editOps.add(move);
+			for(TreeNode n : findNonLCSNodes(node.children, mapping.getMatched(node).children)){
+				mapping.setChangeType(n, Mapping.NODE_DELETED);
+				mapping.setChangeType(mapping.getMatched(n), Mapping.NODE_INSERTED);
+				Move move = new Move(n, mapping.getMatched(n).getParent(), mapping.getMatched(n).indexInParent());
+				ops.add(move);
 			}
 		}
 		for(TreeNode child : node.children){
-			editOps.addAll(generateOrderingChange(child));
+			generateOrderingChange(child, ops);
 		}
-		return editOps;
 	}
 
-	private static void computeLocationMap(Map<StructuralPropertyDescriptor, List<TreeNode>> map,
+	private void computeLocationMap(Map<StructuralPropertyDescriptor, List<TreeNode>> map,
 			List<TreeNode> nodes) {
 		for(TreeNode n : nodes) {
-			ASTNode astNode = n.getASTNode();
-			StructuralPropertyDescriptor spd = astNode.getLocationInParent();
+			StructuralPropertyDescriptor spd = n.getLocationInParent();
 			if(spd != null && spd.isChildListProperty()) {
 				if(!map.containsKey(spd))
 					map.put(spd, new ArrayList<TreeNode>());
@@ -478,44 +614,31 @@ public class ScriptGenerator {
 		}
 	}
 
-	private static List<TreeNode> findNonLCSNodes(List<TreeNode> oldNodes, List<TreeNode> newNodes) {
+	private List<TreeNode> findNonLCSNodes(List<TreeNode> oldNodes, List<TreeNode> newNodes) {
 		List<TreeNode> nonLCSNodes = new ArrayList<>();
 		int m = oldNodes.size();
 		int n = newNodes.size();
 		if(m == 0 || n == 0){
 			return nonLCSNodes;
 		}
-		int[][] len = new int[m+1][n+1];
-		TreeNode oldNode;
-		TreeNode newNode;
-		for(int i=m-1; i>=0; i--) {
-			for(int j=n-1; j>=0; j--) {
-				oldNode = oldNodes.get(i);
-				newNode = newNodes.get(j);
-				if(oldNode.isMatched() &&
-						oldNode.getMatched() == newNode){
-					len[i][j] = len[i+1][j+1] + 1;
-				}else{
-					len[i][j] = Math.max(len[i+1][j], len[i][j+1]);
-				}
-			}
-		}
-		int i = 0, j = 0;
-		while(i<m && j<n) {
-			oldNode = oldNodes.get(i);
-			newNode = newNodes.get(j);
-			if(oldNode.isMatched() &&
-					oldNode.getMatched() == newNode) {
-				i++;
-				j++;
-			}else if(len[i+1][j] >= len[i][j+1]
-					|| !oldNode.isMatched()){
-				if(!oldNode.isDeleted())
-					nonLCSNodes.add(oldNode);
-				i++;
-			}else{
-				j++;
-			}
+		//A new node is keyed by its index, and an old node by the index of its match, or -1 if it is not there.
+		Map<TreeNode, Integer> newIndex = new IdentityHashMap<>();
+		int[] newKeys = new int[n];
+		for(int j=0; j<n; j++) {
+			newIndex.put(newNodes.get(j), j);
+			newKeys[j] = j;
+		}
+		int[] oldKeys = new int[m];
+		for(int i=0; i<m; i++) {
+			TreeNode oldNode = oldNodes.get(i);
+			Integer index = mapping.isMatched(oldNode) ? newIndex.get(mapping.getMatched(oldNode)) : null;
+			oldKeys[i] = index == null ? -1 : index;
+		}
+		//Skipping an old node without a match there never shortens the subsequence, so it is skipped as before.
+		int[] trace = lcs.trace(oldKeys, newKeys);
+		for(int i=0; i<m; i++) {
+			if(trace[i] == LongestCommonSubsequence.SKIPPED && !mapping.isDeleted(oldNodes.get(i)))
+				nonLCSNodes.add(oldNodes.get(i));
 		}
 		return nonLCSNodes;
 	}
@@ -526,53 +649,60 @@ public class ScriptGenerator {
 	 *
 	 * @param node the root of subtree.
 	 * @param opStack a stack of insert operations currently processing.
-	 * @return a list of operations.
+	 * @param ops top-level operations generated.
 	 */
-	private static List<? extends EditOp> generateInsertMoveUpdate(TreeNode node,
-			Stack<EditOp> opStack) {
-		List<EditOp> editOps = new ArrayList<>();
+	private void generateInsertMoveUpdate(TreeNode node, Stack<EditOp> opStack, PendingOps ops) {
 		boolean isPushed = false;
-		if(node.isMatched()){
+		boolean isTopLevel = false;
+		if(mapping.isMatched(node)){
 			TreeNode parent = node.getParent();
-			TreeNode parentOfMatched = node.getMatched().getParent();
+			TreeNode parentOfMatched = mapping.getMatched(node).getParent();
 			if(parent != null
-					&& parent.getMatched() != parentOfMatched){
-				node.setChangeType(TreeNode.NODE_INSERTED);
-				node.getMatched().setChangeType(TreeNode.NODE_DELETED);
-				Move move = new Move(node.getMatched(), node.getParent(), node.indexInParent());
+					&& mapping.getMatched(parent) != parentOfMatched){
+				mapping.setChangeType(node, Mapping.NODE_INSERTED);
+				mapping.setChangeType(mapping.getMatched(node), Mapping.NODE_DELETED);
+				Move move = new Move(mapping.getMatched(node), node.getParent(), node.indexInParent());
 				//If a subtree is moved to an inserted node, so need to check op type.
 				if(!opStack.isEmpty() && opStack.peek() instanceof Move){
 					opStack.peek().addEditOp(move);
 				}else{
-					editOps.add(move);
+					ops.open(move);
+					isTopLevel = true;
 				}
 				opStack.push(move);
 				isPushed = true;
 			}
-			if(!node.getLabel().equals(node.getMatched().getLabel())){
-				editOps.add(new Update(node.getMatched(), node));
+			if(node.getLabelId() != mapping.getMatched(node).getLabelId()){
+				ops.add(new Update(mapping.getMatched(node), node));
 			}
 		}else{
-			node.setChangeType(TreeNode.NODE_INSERTED);
-			addInsert(node, opStack, editOps);
+			mapping.setChangeType(node, Mapping.NODE_INSERTED);
+			isTopLevel = addInsert(node, opStack, ops);
 			isPushed = true;
 		}
 		for(TreeNode child : node.children){
-			editOps.addAll(generateInsertMoveUpdate(child, opStack));
+			generateInsertMoveUpdate(child, opStack, ops);
 		}
 		if(isPushed)
 			opStack.pop();
-		return editOps;
+		if(isTopLevel)
+			ops.close();
 	}
 
-	private static void addInsert(TreeNode node, Stack<EditOp> opStack, List<EditOp> editOps) {
+	/**
+	 * @return true if the insert is a top-level operation.
+	 */
+	private boolean addInsert(TreeNode node, Stack<EditOp> opStack, PendingOps ops) {
+		mapping.setChangeType(node, Mapping.NODE_INSERTED);
 		Insert insert = new Insert(node);
-		if(!opStack.isEmpty() && opStack.peek() instanceof Insert){
-			opStack.peek().addEditOp(insert);
+		boolean isTopLevel = opStack.isEmpty() || !(opStack.peek() instanceof Insert);
+		if(isTopLevel){
+			ops.open(insert);
 		}else{
-			editOps.add(insert);
+			opStack.peek().addEditOp(insert);
 		}
 		opStack.push(insert);
+		return isTopLevel;
 	}
 
 	/**
@@ -580,31 +710,37 @@ public class ScriptGenerator {
 	 *
 	 * @param node the root of subtree.
 	 * @param opStack a stack of delete operations currently processing.
-	 * @return a list of delete operations.
+	 * @param ops top-level delete operations generated.
 	 */
-	private static List<? extends EditOp> generateDelete(TreeNode node, Stack<EditOp> opStack) {
-		List<EditOp> delOps = new ArrayList<>();
-		if(!node.isMatched()){
-			node.setChangeType(TreeNode.NODE_DELETED);
-			addDeleted(node, opStack, delOps);
+	private void generateDelete(TreeNode node, Stack<EditOp> opStack, PendingOps ops) {
+		boolean isTopLevel = false;
+		if(!mapping.isMatched(node)){
+			mapping.setChangeType(node, Mapping.NODE_DELETED);
+			isTopLevel = addDeleted(node, opStack, ops);
 		}
 		for(TreeNode child : node.children){
-			delOps.addAll(generateDelete(child, opStack));
+			generateDelete(child, opStack, ops);
 		}
-		if(!node.isMatched())
+		if(!mapping.isMatched(node))
 			opStack.pop();
-		return delOps;
+		if(isTopLevel)
+			ops.close();
 	}
 
-	private static void addDeleted(TreeNode node, Stack<EditOp> opStack, List<EditOp> delOps) {
+	/**
+	 * @return true if the delete is a top-level operation.
+	 */
+	private boolean addDeleted(TreeNode node, Stack<EditOp> opStack, PendingOps ops) {
 		Delete delete = new Delete(node);
 		//If opStack is empty, it is the root of a deleted subtree.
-		if(opStack.empty()){
-			delOps.add(delete);
+		boolean isTopLevel = opStack.empty();
+		if(isTopLevel){
+			ops.open(delete);
 		}else{
 			opStack.peek().addEditOp(delete);
 		}
 		opStack.push(delete);
+		return isTopLevel;
 	}
 
 	/**
@@ -613,22 +749,75 @@ public class ScriptGenerator {
 	 * @param before an AST before a change.
 	 * @param after an AST after a change.
 	 */
-	private static void match(Tree before, Tree after) {
-		before.getRoot().setMatched(after.getRoot());
-		after.getRoot().setMatched(before.getRoot());
-		if(ENABLE_EXACT_MATCH)
+	private void match(Tree before, Tree after) {
+		mapping.setMatched(before.getRoot(), after.getRoot());
+		if(config.isExactMatch()){
+			unmatchedByHash = new ArrayList<>(2);
+			unmatchedByHash.add(new HashMap<Long, List<TreeNode>>());
+			unmatchedByHash.add(new HashMap<Long, List<TreeNode>>());
 			exactMatch(before.getRoot().children, after.getRoot().children, before, after);
-		similarMatch(before, after);
+			//Buckets are not used after this.
+			unmatchedByHash = null;
+		}
+		//Exact and leaf matching always run, so a script is generated however small the budget is.
+		int nodeBudget = config.getNodeBudget();
+		if(nodeBudget > 0 && before.getSize() + after.getSize() > nodeBudget)
+			result.setDegraded(Phase.SIMILAR_MATCH, "node budget of " + nodeBudget + " nodes");
+		else
+			similarMatch(before, after);
 		updateFollowUpMatch(before, after);
 		matchLeaves(before, after);
 	}
 
-	private static void updateFollowUpMatch(Tree before, Tree after) {
+	/**
+	 * @return true if the time or similarity budget has run out, which is recorded with <code>phase</code>
+	 * if no budget has run out before. Budgets can be checked by any thread.
+	 */
+	private boolean overBudget(Phase phase) {
+		return outOfSimilarity(phase) || outOfTime(phase);
+	}
+
+	/**
+	 * Check only the similarity budget, which is checked before similarities of a node are computed,
+	 * so it can be exceeded by the similarities of a node on each thread.
+	 */
+	private boolean outOfSimilarity(Phase phase) {
+		if(outOfSimilarity)
+			return true;
+		int similarityBudget = config.getSimilarityBudget();
+		if(similarityBudget > 0 && similarities.get() >= similarityBudget){
+			runOutOfBudget(phase, "similarity budget of " + similarityBudget + " computations");
+			outOfSimilarity = true;
+		}
+		return outOfSimilarity;
+	}
+
+	/**
+	 * Check only the time budget.
+	 */
+	private boolean outOfTime(Phase phase) {
+		if(outOfTime)
+			return true;
+		long timeBudget = config.getTimeBudget();
+		if(timeBudget > 0 && System.nanoTime() - startTime > TimeUnit.MILLISECONDS.toNanos(timeBudget)){
+			runOutOfBudget(phase, "time budget of " + timeBudget + " ms");
+			outOfTime = true;
+		}
+		return outOfTime;
+	}
+
+	private synchronized void runOutOfBudget(Phase phase, String reason) {
+		result.setDegraded(phase, reason);
+	}
+
+	private void updateFollowUpMatch(Tree before, Tree after) {
 		List<TreeNode> bfs = before.bfs();
 		for(TreeNode node : bfs){
-			if(!node.isMatched() && !node.isLeaf()){
+			if(outOfTime(Phase.FOLLOWUP_MATCH))
+				return;
+			if(!mapping.isMatched(node) && !node.isLeaf()){
 				if(node.getType() == ASTNode.BLOCK){
-					if(node.getParent() != null && node.getParent().isMatched()){
+					if(node.getParent() != null && mapping.isMatched(node.getParent())){
 						checkBlockMatch(node);
 					}
 					continue;
@@ -638,10 +827,12 @@ public class ScriptGenerator {
 		}
 		bfs = after.bfs();
 		for(TreeNode node : bfs){
-			if(!node.isMatched() && !node.isLeaf()){
+			if(outOfTime(Phase.FOLLOWUP_MATCH))
+				return;
+			if(!mapping.isMatched(node) && !node.isLeaf()){
 				//Blocks should be matched if their parents are matched.
 				if(node.getType() == ASTNode.BLOCK){
-					if(node.getParent() != null && node.getParent().isMatched()){
+					if(node.getParent() != null && mapping.isMatched(node.getParent())){
 						checkBlockMatch(node);
 					}
 					continue;
@@ -651,37 +842,35 @@ public class ScriptGenerator {
 		}
 	}
 
-	private static void checkBlockMatch(TreeNode node) {
-		for(TreeNode child : node.getParent().getMatched().children){
-			if(!child.isMatched() && child.getType() == ASTNode.BLOCK){
-				node.setMatched(child);
-				child.setMatched(node);
-				followupMatch += 2;
+	private void checkBlockMatch(TreeNode node) {
+		for(TreeNode child : mapping.getMatched(node.getParent()).children){
+			if(!mapping.isMatched(child) && child.getType() == ASTNode.BLOCK){
+				mapping.setMatched(node, child);
+				result.followupMatch += 2;
 				break;
 			}
 		}
 	}
 
-	private static void findFollowUpMatch(TreeNode node) {
+	private void findFollowUpMatch(TreeNode node) {
 		TreeNode match = null;
 		for(TreeNode child : node.children){
 			//If a child is an unmatched block belongs to the non-block node, need to check it first.
 			if(node.getType() != ASTNode.BLOCK &&
-					!child.isMatched() && child.getType() == ASTNode.BLOCK){
+					!mapping.isMatched(child) && child.getType() == ASTNode.BLOCK){
 				findFollowUpMatch(child);
 			}
-			if(child.isMatched()){
-				TreeNode candidate = child.getMatched().getParent();
-				if (!candidate.isMatched()
+			if(mapping.isMatched(child)){
+				TreeNode candidate = mapping.getMatched(child).getParent();
+				if (!mapping.isMatched(candidate)
 						&& candidate.getType() == node.getType()) {
 					TreeNode nodeParent = node.getParent();
 					TreeNode candidateParent = candidate.getParent();
 					//If node and candidate's parents are also matched, it is the match.
-					if(nodeParent != null && nodeParent.isMatched()
-							&& nodeParent.getMatched() == candidateParent){
-						node.setMatched(candidate);
-						candidate.setMatched(node);
-						followupMatch += 2;
+					if(nodeParent != null && mapping.isMatched(nodeParent)
+							&& mapping.getMatched(nodeParent) == candidateParent){
+						mapping.setMatched(node, candidate);
+						result.followupMatch += 2;
 						return;
 					}
 					if(match == null){
@@ -699,40 +888,39 @@ public class ScriptGenerator {
 		}
 
 		if(match != null){
-			node.setMatched(match);
-			match.setMatched(node);
-			followupMatch += 2;
+			mapping.setMatched(node, match);
+			result.followupMatch += 2;
 		}
 	}
 
-	private static TreeNode findNeighborMatch(TreeNode node) {
+	private TreeNode findNeighborMatch(TreeNode node) {
 		TreeNode match = null;
 		TreeNode nodeParent = node.getParent();
 		if (nodeParent != null
-				&& nodeParent.isMatched()) {
+				&& mapping.isMatched(nodeParent)) {
 			TreeNode left = node.getLeft();
 			TreeNode right = node.getRight();
-			TreeNode parentMatch = nodeParent.getMatched();
+			TreeNode parentMatch = mapping.getMatched(nodeParent);
 			//Need to handle cases when left or right is not matched.
-			if(left != null && left.isMatched()){
-				TreeNode leftMatch = left.getMatched();
+			if(left != null && mapping.isMatched(left)){
+				TreeNode leftMatch = mapping.getMatched(left);
 				if(parentMatch.equals(leftMatch.getParent())){
 					TreeNode candidate = leftMatch.getRight();
 					if(candidate != null
-							&& !candidate.isMatched()
+							&& !mapping.isMatched(candidate)
 							&& candidate.getType() == node.getType()
-							&& leafSimilarity(node, candidate) >= SIM_THRESHOLD){
+							&& leafSimilarity(node, candidate) >= config.getSimThreshold()){
 						match = candidate;
 					}
 				}
-			}else if(right != null && right.isMatched()){
-				TreeNode rightMatch = right.getMatched();
+			}else if(right != null && mapping.isMatched(right)){
+				TreeNode rightMatch = mapping.getMatched(right);
 				if(parentMatch.equals(rightMatch.getParent())){
 					TreeNode candidate = rightMatch.getLeft();
 					if(candidate != null
-							&& !candidate.isMatched()
+							&& !mapping.isMatched(candidate)
 							&& candidate.getType() == node.getType()
-							&& leafSimilarity(node, candidate) >= SIM_THRESHOLD){
+							&& leafSimilarity(node, candidate) >= config.getSimThreshold()){
 						match = candidate;
 					}
 				}
@@ -741,13 +929,13 @@ public class ScriptGenerator {
 		return match;
 	}
 
-	private static double leafSimilarity(TreeNode node, TreeNode candidate) {
-		Map<String, Integer> leafCount = new HashMap<>();
+	private double leafSimilarity(TreeNode node, TreeNode candidate) {
+		Map<Integer, Integer> leafCount = new HashMap<>();
 		double numOfLeaves = 0.0d;
 		int notMatchedLeaves = 0;
 		for(TreeNode child : node.children){
 			if(child.isLeaf()){
-				String label = child.getLabel();
+				int label = child.getLabelId();
 				if(!leafCount.containsKey(label)){
 					leafCount.put(label, 0);
 				}
@@ -757,7 +945,7 @@ public class ScriptGenerator {
 		}
 		for(TreeNode child : candidate.children){
 			if(child.isLeaf()){
-				String label = child.getLabel();
+				int label = child.getLabelId();
 				if(leafCount.containsKey(label)){
 					leafCount.put(label, leafCount.get(label)-1);
 				}else{
@@ -766,7 +954,7 @@ public class ScriptGenerator {
 				numOfLeaves++;
 			}
 		}
-		for(String key : leafCount.keySet()){
+		for(Integer key : leafCount.keySet()){
 			notMatchedLeaves += leafCount.get(key);
 		}
 
@@ -779,35 +967,47 @@ public class ScriptGenerator {
 	 * @param before an AST before a change.
 	 * @param after an AST after a change.
 	 */
-	private static void similarMatch(Tree before, Tree after) {
-		similarMatch(before.getRoot().children, after.getRoot().children);
+	private void similarMatch(Tree before, Tree after) {
+		CandidateIndex index = new CandidateIndex(before, after, mapping, config.getSimThreshold(), config.getIndexMinCandidates(),
+				config.isSkipMatchedCandidates(), config.isLSH() ? new MinHashIndex(config.getLSHHashes(), config.getLSHBands()) : null);
+		candidates = new CandidateTable();
+		similarMatch(before.getRoot().children, after.getRoot().children, 0, index);
+		//Candidates are not used after this.
+		candidates = null;
 	}
 
-	private static void similarMatch(List<TreeNode> xNodes, List<TreeNode> yNodes) {
+	/**
+	 * @param xSide 0 if <code>xNodes</code> are in the tree before a change, 1 otherwise.
+	 */
+	private void similarMatch(List<TreeNode> xNodes, List<TreeNode> yNodes, int xSide, CandidateIndex index) {
+		int ySide = 1 - xSide;
+		if(overBudget(Phase.SIMILAR_MATCH))
+			return;
 		//Compute and update candidates with similarity higher than threshold.
-		updateCandidates(xNodes, yNodes);
-		updateCandidates(yNodes, xNodes);
+		updateCandidates(xNodes, yNodes, xSide, index);
+		updateCandidates(yNodes, xNodes, ySide, index);
+		//Candidates are incomplete if a budget ran out while they were evaluated, so they are not matched.
+		if(outOfSimilarity || outOfTime)
+			return;
 
 		//Check mutually matched nodes.
 		for(TreeNode node : xNodes){
-			TreeNode match = node.getBestMatch();
-			if(match != null && !match.isMatched()
-					&& node.equals(match.getBestMatch())){
-				node.setMatched(match);
-				match.setMatched(node);
-				similarMatch += 2;
-				similarMatch(node.children, match.children);
+			TreeNode match = candidates.getBestMatch(xSide, node);
+			if(match != null && !mapping.isMatched(match)
+					&& node.equals(candidates.getBestMatch(ySide, match))){
+				mapping.setMatched(node, match);
+				result.similarMatch += 2;
+				similarMatch(node.children, match.children, xSide, index);
 			}
 		}
 
 		for(TreeNode node : yNodes){
-			TreeNode match = node.getBestMatch();
-			if(match != null && !match.isMatched()
-					&& node.equals(match.getBestMatch())){
-				node.setMatched(match);
-				match.setMatched(node);
-				similarMatch += 2;
-				similarMatch(node.children, match.children);
+			TreeNode match = candidates.getBestMatch(ySide, node);
+			if(match != null && !mapping.isMatched(match)
+					&& node.equals(candidates.getBestMatch(xSide, match))){
+				mapping.setMatched(node, match);
+				result.similarMatch += 2;
+				similarMatch(node.children, match.children, ySide, index);
 			}
 		}
 
@@ -815,103 +1015,270 @@ public class ScriptGenerator {
 		List<TreeNode> xChildren = new ArrayList<>();
 		List<TreeNode> yChildren = new ArrayList<>();
 		for(TreeNode node : xNodes){
-			if(!node.isMatched())
+			if(!mapping.isMatched(node))
 				xChildren.addAll(node.children);
 		}
 		for(TreeNode node : yNodes){
-			if(!node.isMatched())
+			if(!mapping.isMatched(node))
 				yChildren.addAll(node.children);
 		}
 
 		if(xChildren.size() > 0 && yChildren.size() > 0){
-			similarMatch(xChildren, yChildren);
+			similarMatch(xChildren, yChildren, xSide, index);
 		}else if(xChildren.size() > 0 && yChildren.size() == 0){
-			similarMatch(xChildren, yNodes);
+			similarMatch(xChildren, yNodes, xSide, index);
 		}else if(yChildren.size() > 0 && xChildren.size() == 0){
-			similarMatch(yChildren, xNodes);
+			similarMatch(yChildren, xNodes, ySide, index);
 		}
 	}
 
-	private static void updateCandidates(List<TreeNode> xNodes, List<TreeNode> yNodes) {
-		TreeNode x = null;
+	private void updateCandidates(List<TreeNode> xNodes, List<TreeNode> yNodes, int xSide, CandidateIndex index) {
+		List<TreeNode> queries = new ArrayList<>();
+		List<TreeNode> starts = new ArrayList<>();
 		TreeNode y = null;
 		for(int i=0; i<xNodes.size(); i++){
-			x = xNodes.get(i);
+			TreeNode x = xNodes.get(i);
 			y = i < yNodes.size() ? yNodes.get(i) : y;
-			if(!x.isLeaf() && !x.isMatched()){
-				List<TreeNode> candidates = findCandidates(x, y);
-				for (TreeNode c : candidates) {
-					double similarity = x.similarity(c);
-					if(x.getType() == ASTNode.BLOCK
-							&& x.getParent() != null && c.getParent() != null
-							&& x.getParent().getMatched() == c.getParent()) {
-						//Blocks of matched parents should be matched regardless of their similarity.
-						x.addCandidate(c, 1.0d);
-						break;
-					} else if(similarity == 1.0d){
-						x.addCandidate(c, 1.0d);
-						break;
-					}else if(similarity >= SIM_THRESHOLD){
-						x.addCandidate(c, similarity);
-					}
+			if(!x.isLeaf() && !mapping.isMatched(x)){
+				queries.add(x);
+				starts.add(y);
+			}
+		}
+		if(pool != null && queries.size() >= PARALLEL_CANDIDATE_THRESHOLD){
+			//Candidates of a node depend only on the trees and matches made before, so nodes are evaluated
+			//in parallel, and candidates are added in the same order as they are on a single thread.
+			SimilarCandidates[] found = new SimilarCandidates[queries.size()];
+			pool.invoke(new CandidateTask(queries, starts, index, found, 0, queries.size()));
+			for(int i=0; i<found.length; i++){
+				found[i].addTo(xSide, queries.get(i));
+			}
+		}else{
+			for(int i=0; i<queries.size(); i++){
+				findSimilarCandidates(queries.get(i), starts.get(i), index).addTo(xSide, queries.get(i));
+			}
+		}
+	}
+
+	/**
+	 * Find candidates of <code>x</code> as similar as the threshold, without adding them to <code>x</code>.
+	 * This only reads the trees, so it can be called from many threads.
+	 */
+	private SimilarCandidates findSimilarCandidates(TreeNode x, TreeNode y, CandidateIndex index) {
+		SimilarCandidates similar = new SimilarCandidates();
+		if(overBudget(Phase.SIMILAR_MATCH))
+			return similar;
+		List<TreeNode> candidates = findCandidates(x, y, index);
+		for (TreeNode c : candidates) {
+			if(x.getType() == ASTNode.BLOCK
+					&& x.getParent() != null && c.getParent() != null
+					&& mapping.getMatched(x.getParent()) == c.getParent()) {
+				//Blocks of matched parents should be matched regardless of their similarity.
+				similar.add(c, 1.0d);
+				break;
+			}
+			//Subtrees which are not indexed, if matched ones are skipped, are not candidates whether or not
+			//the index is used.
+			if(!index.isIndexed(c))
+				continue;
+			//Skip candidates which cannot reach the threshold, without computing similarity.
+			if(!canBeSimilar(x, c))
+				continue;
+			double similarity = x.similarity(c);
+			similar.similarityCount++;
+			if(similarity >= config.getSimThreshold() || similarity == 1.0d)
+				similar.similarPairCount++;
+			if(similarity == 1.0d){
+				similar.add(c, 1.0d);
+				break;
+			}else if(similarity >= config.getSimThreshold()){
+				similar.add(c, similarity);
+			}
+		}
+		similarities.addAndGet(similar.similarityCount);
+		return similar;
+	}
+
+	/**
+	 * The best candidate found for a node, with counts of similarity computed for it.
+	 */
+	private class SimilarCandidates {
+		private TreeNode best = null;
+		private double similarity = 0.0d;
+		private int similarityCount = 0;
+		private int similarPairCount = 0;
+
+		private void add(TreeNode c, double similarity) {
+			//As in the table, the first of equally similar candidates is kept.
+			if(best == null || similarity > this.similarity){
+				best = c;
+				this.similarity = similarity;
+			}
+		}
+
+		private void addTo(int side, TreeNode x) {
+			if(best != null)
+				candidates.add(side, x, best, similarity);
+			result.similarityCount += similarityCount;
+			result.similarPairCount += similarPairCount;
+		}
+	}
+
+	private class CandidateTask extends RecursiveAction {
+		private static final long serialVersionUID = 2318754519820343176L;
+		private final List<TreeNode> queries;
+		private final List<TreeNode> starts;
+		private final CandidateIndex index;
+		private final SimilarCandidates[] found;
+		private final int from;
+		private final int to;
+
+		private CandidateTask(List<TreeNode> queries, List<TreeNode> starts, CandidateIndex index,
+				SimilarCandidates[] found, int from, int to) {
+			this.queries = queries;
+			this.starts = starts;
+			this.index = index;
+			this.found = found;
+			this.from = from;
+			this.to = to;
+		}
+
+		@Override
+		protected void compute() {
+			if(to - from <= CANDIDATE_TASK_SIZE){
+				for(int i=from; i<to; i++){
+					found[i] = findSimilarCandidates(queries.get(i), starts.get(i), index);
 				}
+			}else{
+				int mid = (from + to) >>> 1;
+				invokeAll(new CandidateTask(queries, starts, index, found, from, mid),
+						new CandidateTask(queries, starts, index, found, mid, to));
 			}
 		}
 	}
 
+	/**
+	 * Dice similarity of two vectors cannot exceed 2*min(|x|,|c|)/(|x|+|c|).
+	 *
+	 * @return false if the similarity of <code>x</code> and <code>c</code> is below the threshold.
+	 */
+	private boolean canBeSimilar(TreeNode x, TreeNode c) {
+		int xSum = x.getVectorSum();
+		int cSum = c.getVectorSum();
+		double bound = 2.0d*Math.min(xSum, cSum)/(xSum + cSum);
+		return bound >= Math.min(config.getSimThreshold(), 1.0d);
+	}
+
 	/**
 	 * Match leaves of given ASTs.
 	 *
 	 * @param before an AST before a change.
 	 * @param after an AST after a change.
 	 */
-	private static void matchLeaves(Tree before, Tree after) {
-		List<TreeNode> bfs = before.bfs();
-		for(TreeNode node : bfs){
-			if (node.isMatched() && !node.isLeaf()) {
-				List<TreeNode> unmatchedLeaves = new ArrayList<>();
-				//Get unmatched leaves.
-				for (TreeNode child : node.getUnmatchedChildren()) {
-					if (child.isLeaf()) {
-						unmatchedLeaves.add(child);
-					}
-				}
-				//Match non-list children first.
-				List<TreeNode> candidates = node.getMatched().getUnmatchedChildren();
-				List<TreeNode> matched = new ArrayList<>();
-				for(TreeNode leaf : unmatchedLeaves){
-					StructuralPropertyDescriptor leafLoc = leaf.getASTNode().getLocationInParent();
-					if(leafLoc != null && !leafLoc.isChildListProperty()) {
-						for (TreeNode candidate : candidates) {
-							StructuralPropertyDescriptor cLoc = candidate.getASTNode().getLocationInParent();
-							if (!candidate.isMatched() &&
-									leafLoc.equals(cLoc)) {
-								leaf.setMatched(candidate);
-								candidate.setMatched(leaf);
-								leafMatch += 2;
-								matched.add(leaf);
-								break;
-							}
-						}
+	private void matchLeaves(Tree before, Tree after) {
+		List<TreeNode> nodes = new ArrayList<>();
+		for(TreeNode node : before.bfs()){
+			if (mapping.isMatched(node) && !node.isLeaf())
+				nodes.add(node);
+		}
+		//Leaves are matched only to children of the match of their parent,
+		//so each pair of matched nodes is independent of the others.
+		if(pool != null && nodes.size() >= PARALLEL_LEAF_THRESHOLD){
+			result.leafMatch += pool.invoke(new LeafMatchTask(nodes, 0, nodes.size()));
+		}else{
+			for(TreeNode node : nodes){
+				result.leafMatch += matchLeaves(node, lcs);
+			}
+		}
+	}
+
+	/**
+	 * Match unmatched leaves of a matched node to children of its match.
+	 *
+	 * @param lcs longest common subsequences of the current thread.
+	 * @return the number of nodes matched.
+	 */
+	private int matchLeaves(TreeNode node, LongestCommonSubsequence lcs) {
+		int leafMatch = 0;
+		List<TreeNode> unmatchedLeaves = new ArrayList<>();
+		//Get unmatched leaves.
+		for (TreeNode child : mapping.getUnmatchedChildren(node)) {
+			if (child.isLeaf()) {
+				unmatchedLeaves.add(child);
+			}
+		}
+		//Match non-list children first.
+		List<TreeNode> candidates = mapping.getUnmatchedChildren(mapping.getMatched(node));
+		List<TreeNode> matched = new ArrayList<>();
+		for(TreeNode leaf : unmatchedLeaves){
+			StructuralPropertyDescriptor leafLoc = leaf.getLocationInParent();
+			if(leafLoc != null && !leafLoc.isChildListProperty()) {
+				for (TreeNode candidate : candidates) {
+					StructuralPropertyDescriptor cLoc = candidate.getLocationInParent();
+					if (!mapping.isMatched(candidate) &&
+							leafLoc.equals(cLoc)) {
+						mapping.setMatched(leaf, candidate);
+						leafMatch += 2;
+						matched.add(leaf);
+						break;
 					}
 				}
-				//Then match children in the list property by finding LCS.
-				unmatchedLeaves.removeAll(matched);
-				candidates = node.getMatched().getUnmatchedChildren();
-				Map<StructuralPropertyDescriptor, List<TreeNode>> map1 = new HashMap<>();
-				Map<StructuralPropertyDescriptor, List<TreeNode>> map2 = new HashMap<>();
-				computeLocationMap(map1, unmatchedLeaves);
-				computeLocationMap(map2, candidates);
-				for(StructuralPropertyDescriptor key : map1.keySet()) {
-					if(map2.containsKey(key)) {
-						locationPreferMatch(map1.get(key), map2.get(key));
+			}
+		}
+		//Then match children in the list property by finding LCS.
+		unmatchedLeaves.removeAll(matched);
+		candidates = mapping.getUnmatchedChildren(mapping.getMatched(node));
+		Map<StructuralPropertyDescriptor, List<TreeNode>> map1 = new HashMap<>();
+		Map<StructuralPropertyDescriptor, List<TreeNode>> map2 = new HashMap<>();
+		computeLocationMap(map1, unmatchedLeaves);
+		computeLocationMap(map2, candidates);
+		for(StructuralPropertyDescriptor key : map1.keySet()) {
+			if(map2.containsKey(key)) {
+				leafMatch += locationPreferMatch(map1.get(key), map2.get(key), lcs);
+			}
+		}
+		return leafMatch;
+	}
+
+	private class LeafMatchTask extends RecursiveTask<Integer> {
+		private static final long serialVersionUID = -4466010434925153472L;
+		private final List<TreeNode> nodes;
+		private final int from;
+		private final int to;
+
+		private LeafMatchTask(List<TreeNode> nodes, int from, int to) {
+			this.nodes = nodes;
+			this.from = from;
+			this.to = to;
+		}
+
+		@Override
+		protected Integer compute() {
+			if(to - from <= LEAF_TASK_SIZE){
+				int leafMatch = 0;
+				//Nodes of a task share a table from the pool, as tasks may run on any thread.
+				LongestCommonSubsequence lcs = takeLCS();
+				try{
+					for(int i=from; i<to; i++){
+						leafMatch += matchLeaves(nodes.get(i), lcs);
 					}
+				}finally{
+					releaseLCS(lcs);
 				}
+				return leafMatch;
 			}
+			int mid = (from + to) >>> 1;
+			LeafMatchTask left = new LeafMatchTask(nodes, from, mid);
+			left.fork();
+			int leafMatch = new LeafMatchTask(nodes, mid, to).compute();
+			return leafMatch + left.join();
 		}
 	}
 
-	private static void locationPreferMatch(List<TreeNode> oldNodes, List<TreeNode> newNodes) {
+	/**
+	 * @return the number of nodes matched.
+	 */
+	private int locationPreferMatch(List<TreeNode> oldNodes, List<TreeNode> newNodes, LongestCommonSubsequence lcs) {
+		int leafMatch = 0;
 		List<TreeNode> oldUnmatched = new ArrayList<>();
 		List<TreeNode> newUnmatched = new ArrayList<>();
 		int max = Math.max(oldNodes.size(), newNodes.size());
@@ -921,9 +1288,8 @@ public class ScriptGenerator {
 			oldNode = i < oldNodes.size() ? oldNodes.get(i) : null;
 			newNode = i < newNodes.size() ? newNodes.get(i) : null;
 			if(oldNode != null && newNode != null) {
-				if(oldNode.getLabel().equals(newNode.getLabel())) {
-					oldNode.setMatched(newNode);
-					newNode.setMatched(oldNode);
+				if(oldNode.getLabelId() == newNode.getLabelId()) {
+					mapping.setMatched(oldNode, newNode);
 					leafMatch += 2;
 				} else {
 					oldUnmatched.add(oldNode);
@@ -938,34 +1304,21 @@ public class ScriptGenerator {
 		}
 
 		//Find LCS and match them for the rest of the nodes.
-		int m = oldUnmatched.size();
-		int n = newUnmatched.size();
-		int[][] len = new int[m+1][n+1];
-		for(int i=m-1; i>=0; i--) {
-			for(int j=n-1; j>=0; j--) {
-				oldNode = oldUnmatched.get(i);
-				newNode = newUnmatched.get(j);
-				if(oldNode.getLabel().equals(newNode.getLabel())){
-					len[i][j] = len[i+1][j+1] + 1;
-				}else{
-					len[i][j] = Math.max(len[i+1][j], len[i][j+1]);
-				}
-			}
+		int[] oldLabels = new int[oldUnmatched.size()];
+		for(int i=0; i<oldLabels.length; i++) {
+			oldLabels[i] = oldUnmatched.get(i).getLabelId();
 		}
-		int i = 0, j = 0;
-		while(i<m && j<n) {
-			oldNode = oldUnmatched.get(i);
-			newNode = newUnmatched.get(j);
-			if(oldNode.getLabel().equals(newNode.getLabel())) {
-				oldNode.setMatched(newNode);
-				newNode.setMatched(oldNode);
+		int[] newLabels = new int[newUnmatched.size()];
+		for(int j=0; j<newLabels.length; j++) {
+			newLabels[j] = newUnmatched.get(j).getLabelId();
+		}
+		int[] trace = lcs.trace(oldLabels, newLabels);
+		for(int i=0; i<trace.length; i++) {
+			if(trace[i] >= 0) {
+				oldNode = oldUnmatched.get(i);
+				newNode = newUnmatched.get(trace[i]);
+				mapping.setMatched(oldNode, newNode);
 				leafMatch += 2;
-				i++;
-				j++;
-			}else if(len[i+1][j] >= len[i][j+1]){
-				i++;
-			}else{
-				j++;
 			}
 		}
 
@@ -973,12 +1326,12 @@ public class ScriptGenerator {
 		for(int k=0; k<oldNodes.size() && k<newNodes.size(); k++) {
 			oldNode = oldNodes.get(k);
 			newNode = newNodes.get(k);
-			if(!oldNode.isMatched() && !newNode.isMatched() && oldNode.getType() == newNode.getType()) {
-				oldNode.setMatched(newNode);
-				newNode.setMatched(oldNode);
+			if(!mapping.isMatched(oldNode) && !mapping.isMatched(newNode) && oldNode.getType() == newNode.getType()) {
+				mapping.setMatched(oldNode, newNode);
 				leafMatch += 2;
 			}
 		}
+		return leafMatch;
 	}
 
 	/**
@@ -989,7 +1342,7 @@ public class ScriptGenerator {
 	 * @param xTree
 	 * @param yTree
 	 */
-	private static void exactMatch(List<TreeNode> xNodes, List<TreeNode> yNodes, Tree xTree, Tree yTree) {
+	private void exactMatch(List<TreeNode> xNodes, List<TreeNode> yNodes, Tree xTree, Tree yTree) {
 		//if xNodes have less nodes, swap.
 		if(xNodes.size() < yNodes.size()){
 			List<TreeNode> tempNodes = xNodes;
@@ -1002,27 +1355,27 @@ public class ScriptGenerator {
 		for(int i=0; i<yNodes.size(); i++){
 			TreeNode x = xNodes.get(i);
 			TreeNode y = yNodes.get(i);
-			if(!x.isLeaf() && !x.isMatched())
-				exactMatch(x, y);
+			if(!x.isLeaf() && !mapping.isMatched(x))
+				exactMatch(x, y, xTree, yTree);
 		}
 		//Match remaining xNodes.
 		TreeNode lastY = yNodes.get(yNodes.size()-1);
 		for(int i=yNodes.size(); i<xNodes.size(); i++){
 			TreeNode x = xNodes.get(i);
-			if(!x.isLeaf() && !x.isMatched())
-				exactMatch(x, lastY);
+			if(!x.isLeaf() && !mapping.isMatched(x))
+				exactMatch(x, lastY, xTree, yTree);
 		}
 
 		//Match children of unmatched nodes;
 		List<TreeNode> xChildren = new ArrayList<>();
 		List<TreeNode> yChildren = new ArrayList<>();
 		for(TreeNode x : xNodes){
-			if(!x.isMatched()){
+			if(!mapping.isMatched(x)){
 				xChildren.addAll(x.children);
 			}
 		}
 		for(TreeNode y : yNodes){
-			if(!y.isMatched()){
+			if(!mapping.isMatched(y)){
 				yChildren.addAll(y.children);
 			}
 		}
@@ -1036,21 +1389,111 @@ public class ScriptGenerator {
 	}
 
 	/**
-	 * Find an exact match for node <code>x</code> from nodes adjacent to node <code>y</code>
+	 * Find an exact match for node <code>x</code>. If <code>x</code> and only one node of <code>yTree</code>
+	 * have the same subtree, they are matched wherever they are.
+	 * Otherwise, the match is searched from nodes adjacent to node <code>y</code>.
+	 *
 	 * @param x a query node.
 	 * @param y the starting node for matching.
+	 * @param xTree the tree <code>x</code> belongs to.
+	 * @param yTree the tree <code>y</code> belongs to.
 	 */
-	private static void exactMatch(TreeNode x, TreeNode y) {
-		List<TreeNode> candidates = findCandidates(x, y);
-		for(TreeNode candidate : candidates){
-			if (!candidate.isMatched() && x.match(candidate)) {
-				exactMatchCount+=2;
-				exactMatch+=2;
-				updateMatch(x, candidate);
-				exactMatch += updateChildMatch(x, candidate);
-				break;
+	private void exactMatch(TreeNode x, TreeNode y, Tree xTree, Tree yTree) {
+		TreeNode match = null;
+		if(config.isGlobalExactMatch()){
+			TreeNode unique = null;
+			int count = 0;
+			//Only whether there are none, one or more identical subtrees matters, so a lookup stops at two.
+			if(x.getType() == ASTNode.BLOCK && x.getParent().getType() != ASTNode.BLOCK){
+				//Such a block matches only children of the match of its parent, which are looked up directly.
+				TreeNode parentMatch = mapping.getMatched(x.getParent());
+				List<TreeNode> children = parentMatch == null ? Collections.<TreeNode>emptyList() : parentMatch.children;
+				for(int i=0; i<children.size() && count<2; i++){
+					TreeNode candidate = children.get(i);
+					if(!candidate.isLeaf() && isExactMatch(x, candidate)){
+						unique = candidate;
+						count++;
+					}
+				}
+			}else{
+				List<TreeNode> bucket = getUnmatchedWithHash(yTree, x.getHash());
+				for(int i=0; i<bucket.size() && count<2; i++){
+					TreeNode candidate = bucket.get(i);
+					if(mapping.isMatched(candidate)){
+						removeAt(bucket, i--);
+					}else if(isExactMatch(x, candidate)){
+						unique = candidate;
+						count++;
+					}
+				}
 			}
+			//No identical subtree anywhere, adjacent nodes need not be searched.
+			if(count == 0)
+				return;
+			if(count == 1 && countUnmatched(x, xTree) == 1)
+				match = unique;
+		}
+		if(match == null){
+			for(TreeNode candidate : findCandidates(x, y)){
+				if(isExactMatch(x, candidate)){
+					match = candidate;
+					break;
+				}
+			}
+		}
+		if(match != null){
+			result.exactMatchCount+=2;
+			result.exactMatch+=2;
+			updateMatch(x, match);
+			result.exactMatch += updateChildMatch(x, match);
+		}
+	}
+
+	private boolean isExactMatch(TreeNode x, TreeNode candidate) {
+		return !mapping.isMatched(candidate) && x.match(candidate, mapping)
+				&& (!config.isVerifyExactMatch() || x.isIsomorphic(candidate));
+	}
+
+	/**
+	 * @return the number of unmatched nodes of <code>xTree</code> with the hash and type of <code>x</code>,
+	 * counted up to two.
+	 */
+	private int countUnmatched(TreeNode x, Tree xTree) {
+		int count = 0;
+		List<TreeNode> bucket = getUnmatchedWithHash(xTree, x.getHash());
+		for(int i=0; i<bucket.size() && count<2; i++){
+			TreeNode node = bucket.get(i);
+			if(mapping.isMatched(node))
+				removeAt(bucket, i--);
+			else if(node.getType() == x.getType())
+				count++;
 		}
+		return count;
+	}
+
+	/**
+	 * Nodes are never unmatched, so a node found matched in a bucket is removed from it, and a node
+	 * is visited by lookups which do not count it once at most.
+	 *
+	 * @return non-leaf nodes of <code>tree</code> with <code>hash</code>, in no particular order,
+	 * except nodes found matched so far.
+	 */
+	private List<TreeNode> getUnmatchedWithHash(Tree tree, long hash) {
+		Map<Long, List<TreeNode>> buckets = unmatchedByHash.get(mapping.sideOf(tree.getRoot()));
+		List<TreeNode> bucket = buckets.get(hash);
+		if(bucket == null){
+			//Buckets of a tree are shared by diffs, so this diff removes nodes from its own copy.
+			bucket = new ArrayList<>(tree.getNodesWithHash(hash));
+			buckets.put(hash, bucket);
+		}
+		return bucket;
+	}
+
+	private static void removeAt(List<TreeNode> bucket, int i) {
+		//Order of a bucket does not matter, so the last node takes the place of the one removed.
+		int last = bucket.size() - 1;
+		bucket.set(i, bucket.get(last));
+		bucket.remove(last);
 	}
 
 	/**
@@ -1061,7 +1504,7 @@ public class ScriptGenerator {
 	 * @param y a starting node for candidate search.
 	 * @return a list of candidate nodes.
 	 */
-	private static List<TreeNode> findCandidates(TreeNode x, TreeNode y){
+	private List<TreeNode> findCandidates(TreeNode x, TreeNode y){
 		List<TreeNode> candidates = new ArrayList<>();
 		//y and adjacent nodes in the same depth.
 		List<TreeNode> siblings = getSiblings(y);
@@ -1080,7 +1523,7 @@ public class ScriptGenerator {
 		}
 		//y and sibling's descendants,
 		int depth = 1;
-		while (depth <= DEPTH_THRESHOLD) {
+		while (depth <= config.getDepthThreshold()) {
 			List<TreeNode> descendants = new ArrayList<>();
 			for (TreeNode sibling : siblings) {
 				descendants.addAll(sibling.children);
@@ -1097,7 +1540,7 @@ public class ScriptGenerator {
 		//and ancestors with siblings.
 		TreeNode parent = y.getParent();
 		depth = 1;
-		while (depth <= DEPTH_THRESHOLD) {
+		while (depth <= config.getDepthThreshold()) {
 			if(parent != null){
 				List<TreeNode> ancestors = getSiblings(parent);
 				ancestors.add(0, parent);
@@ -1114,12 +1557,171 @@ public class ScriptGenerator {
 		return candidates;
 	}
 
-	private static List<TreeNode> getSiblings(TreeNode node) {
+	/**
+	 * Find the candidates {@link #findCandidates(TreeNode, TreeNode)} finds, in the same order, except
+	 * subtrees the index does not retrieve because they cannot be as similar as the threshold.
+	 * Candidates below ancestors of <code>y</code> are retrieved from the index by the range of their ids,
+	 * without visiting the other nodes around <code>y</code>, and ancestors with their siblings are visited.
+	 * A block whose parent is matched to the parent of <code>x</code> is kept, as it is matched regardless of similarity.
+	 *
+	 * @param x a query node.
+	 * @param y a starting node for candidate search.
+	 * @param index an index of unmatched subtrees.
+	 * @return a list of candidate nodes.
+	 */
+	private List<TreeNode> findCandidates(TreeNode x, TreeNode y, CandidateIndex index){
+		//Candidates except ancestors of y and their siblings are in the subtrees of siblings of the parent of y,
+		//or of y if its parent is the root, and the ids of a subtree are consecutive.
+		TreeNode origin = y.getParent().getParent() != null ? y.getParent() : y;
+		List<TreeNode> originSiblings = origin.getParent().children;
+		int threshold = (int)Math.round(originSiblings.size() * config.getDistThreshold());
+		TreeNode first = originSiblings.get(Math.max(origin.indexInParent() - threshold, 0));
+		TreeNode last = originSiblings.get(Math.min(origin.indexInParent() + threshold, originSiblings.size() - 1));
+		while(!last.isLeaf()){
+			last = last.children.get(last.children.size() - 1);
+		}
+		List<TreeNode> retrieved = index.getCandidates(x, first.getId(), last.getId());
+		if(retrieved == null)
+			return findCandidates(x, y);
+		List<TreeNode> nodes = new ArrayList<>(retrieved);
+		if(x.getType() == ASTNode.BLOCK && x.getParent() != null && mapping.getMatched(x.getParent()) != null){
+			Set<TreeNode> found = null;
+			for(TreeNode child : mapping.getMatched(x.getParent()).children){
+				if(child.getType() != ASTNode.BLOCK)
+					continue;
+				if(found == null){
+					found = Collections.newSetFromMap(new IdentityHashMap<TreeNode, Boolean>(retrieved.size() * 2));
+					found.addAll(retrieved);
+				}
+				if(found.add(child))
+					nodes.add(child);
+			}
+		}
+		//Ancestors above the parent of y and their siblings.
+		TreeNode parent = y.getParent().getParent();
+		for(int depth=2; depth<=config.getDepthThreshold() && parent != null; depth++){
+			if(parent.getType() == x.getType())
+				nodes.add(parent);
+			for(TreeNode sibling : getSiblings(parent)){
+				if(sibling.getType() == x.getType())
+					nodes.add(sibling);
+			}
+			parent = parent.getParent();
+		}
+		List<SearchOrder> found = new ArrayList<>(nodes.size());
+		for(TreeNode node : nodes){
+			int[] order = searchOrder(node, y);
+			if(order != null)
+				found.add(new SearchOrder(node, order));
+		}
+		Collections.sort(found);
+		List<TreeNode> candidates = new ArrayList<>(found.size());
+		for(SearchOrder order : found){
+			candidates.add(order.node);
+		}
+		return candidates;
+	}
+
+	/**
+	 * The position of a candidate in the search of {@link #findCandidates(TreeNode, TreeNode)}.
+	 */
+	private static class SearchOrder implements Comparable<SearchOrder> {
+		private final TreeNode node;
+		private final int[] order;
+
+		private SearchOrder(TreeNode node, int[] order) {
+			this.node = node;
+			this.order = order;
+		}
+
+		@Override
+		public int compareTo(SearchOrder o) {
+			for(int i=0; i<order.length && i<o.order.length; i++){
+				if(order[i] != o.order[i])
+					return Integer.compare(order[i], o.order[i]);
+			}
+			return Integer.compare(order.length, o.order.length);
+		}
+	}
+
+	/**
+	 * @param c a node.
+	 * @param y a starting node for candidate search.
+	 * @return keys which order <code>c</code> as {@link #findCandidates(TreeNode, TreeNode)} does,
+	 * or null if it does not search <code>c</code>.
+	 */
+	private int[] searchOrder(TreeNode c, TreeNode y) {
+		TreeNode yParent = y.getParent();
+		//y and its siblings.
+		if(c.getParent() == yParent){
+			int rank = siblingRank(c, y);
+			return rank < 0 ? null : new int[] { 0, rank };
+		}
+		//Children of siblings of the parent of y.
+		if(c.getParent() != null && yParent.getParent() != null && c.getParent().getParent() == yParent.getParent()){
+			int rank = siblingRank(c.getParent(), yParent);
+			return rank < 0 ? null : new int[] { 1, rank, c.indexInParent() };
+		}
+		//Descendants of y and its siblings, level by level.
+		TreeNode ancestor = c;
+		for(int depth=1; depth<=config.getDepthThreshold() && ancestor.getParent() != null; depth++){
+			ancestor = ancestor.getParent();
+			if(ancestor.getParent() == yParent){
+				int rank = siblingRank(ancestor, y);
+				if(rank < 0)
+					return null;
+				int[] order = new int[depth + 3];
+				order[0] = 2;
+				order[1] = depth;
+				order[2] = rank;
+				TreeNode node = c;
+				for(int i=order.length-1; i>=3; i--){
+					order[i] = node.indexInParent();
+					node = node.getParent();
+				}
+				return order;
+			}
+		}
+		//Ancestors of y and their siblings.
+		TreeNode parent = yParent;
+		for(int depth=1; depth<=config.getDepthThreshold() && parent != null; depth++){
+			if(c == parent)
+				return new int[] { 3, depth, 0 };
+			if(parent.getParent() != null && c.getParent() == parent.getParent()){
+				int rank = siblingRank(c, parent);
+				return rank < 0 ? null : new int[] { 3, depth, rank };
+			}
+			parent = parent.getParent();
+		}
+		return null;
+	}
+
+	/**
+	 * @param node a sibling of <code>origin</code>, or <code>origin</code>.
+	 * @return the position of <code>node</code> in <code>origin</code> followed by {@link #getSiblings(TreeNode)},
+	 * or -1 if it is not there.
+	 */
+	private int siblingRank(TreeNode node, TreeNode origin) {
+		if(node == origin)
+			return 0;
+		if(origin.getParent() == null)
+			return -1;
+		int size = origin.getParent().children.size();
+		int threshold = (int)Math.round(size * config.getDistThreshold());
+		int index = origin.indexInParent();
+		int distance = node.indexInParent() - index;
+		if(Math.abs(distance) > threshold)
+			return -1;
+		//Siblings are added alternately, the one before first.
+		return distance < 0 ? -2 * distance - 1 : 2 * distance;
+	}
+
+	private List<TreeNode> getSiblings(TreeNode node) {
 		List<TreeNode> siblings = new ArrayList<>();
 		if(node.getParent() != null){
 			List<TreeNode> nodes = node.getParent().children;
-			int index = nodes.indexOf(node);
-			int threshold = (int)Math.round(nodes.size() * DIST_THRESHOLD);
+			int index = node.indexInParent();
+			int threshold = (int)Math.round(nodes.size() * config.getDistThreshold());
 			int i = index - 1, j = index + 1;
 			int upperBound = index + threshold < nodes.size() ? index + threshold : nodes.size() - 1;
 			int lowerBound = index - threshold >= 0 ? index - threshold : 0;
@@ -1135,17 +1737,16 @@ public class ScriptGenerator {
 		return siblings;
 	}
 
-	private static void updateMatch(TreeNode beforeNode, TreeNode afterNode) {
-		beforeNode.setMatched(afterNode);
-		afterNode.setMatched(beforeNode);
+	private void updateMatch(TreeNode beforeNode, TreeNode afterNode) {
+		mapping.setMatched(beforeNode, afterNode);
 	}
 
-	private static int updateChildMatch(TreeNode beforeNode, TreeNode afterNode) {
+	private int updateChildMatch(TreeNode beforeNode, TreeNode afterNode) {
 		int matched = 0;
 		for(int i=0; i<beforeNode.children.size(); i++){
 			TreeNode bChild = beforeNode.children.get(i);
 			TreeNode aChild = afterNode.children.get(i);
-			if (!bChild.isMatched() && !aChild.isMatched()) {
+			if (!mapping.isMatched(bChild) && !mapping.isMatched(aChild)) {
 				matched += 2;
 				updateMatch(bChild, aChild);
 				matched += updateChildMatch(bChild, aChild);
@@ -0,0 +1,91 @@
+package script.model;
+
+import java.io.IOException;
+import java.io.Writer;
+
+import tree.TreeNode;
+
+/**
+ * Writes a header and a CSV row for each op, followed by rows of the ops attached to it in preorder.
+ * The depth of a top-level op is 0. Columns of the node a move is moved from are empty for other ops.
+ */
+public class CsvOpWriter extends EditOpWriter {
+	private static final String HEADER = "op,depth,node_id,node_label,node_line,location_id,location_label,location_line,"
+			+ "position,from_id,from_label,from_line,from_position";
+
+	/**
+	 * Create a writer and write the header.
+	 *
+	 * @throws IOException
+	 */
+	public CsvOpWriter(Writer out) throws IOException {
+		super(out);
+		append(HEADER);
+		newLine();
+	}
+
+	@Override
+	public void write(EditOp op) throws IOException {
+		write(op, 0);
+	}
+
+	private void write(EditOp op, int depth) throws IOException {
+		appendField(op.getType());
+		append(',');
+		append(depth);
+		append(',');
+		appendNode(op.getNode());
+		append(',');
+		appendNode(op.getLocation());
+		append(',');
+		append(op.getPosition());
+		append(',');
+		if(op instanceof Move){
+			Move move = (Move)op;
+			appendNode(move.getFrom());
+			append(',');
+			append(move.getFromPosition());
+		}else{
+			append(",,,");
+		}
+		newLine();
+		for(EditOp child : op.children){
+			write(child, depth + 1);
+		}
+	}
+
+	private void appendNode(TreeNode node) throws IOException {
+		if(node == null){
+			append(",,");
+			return;
+		}
+		append(node.getId());
+		append(',');
+		appendField(node.getLabel());
+		append(',');
+		append(node.getLineNumber());
+	}
+
+	/**
+	 * Append a field, quoted if it has a comma, a quote or a line break.
+	 */
+	private void appendField(String s) throws IOException {
+		boolean quoted = false;
+		for(int i=0; i<s.length() && !quoted; i++){
+			char c = s.charAt(i);
+			quoted = c == ',' || c == '"' || c == '\n' || c == '\r';
+		}
+		if(!quoted){
+			append(s);
+			return;
+		}
+		append('"');
+		for(int i=0; i<s.length(); i++){
+			char c = s.charAt(i);
+			if(c == '"')
+				append('"');
+			append(c);
+		}
+		append('"');
+	}
+}
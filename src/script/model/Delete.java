@@ -10,6 +10,10 @@ public class Delete extends EditOp {
 		super(node, node.getParent(), node.indexInParent());
 	}
 
+	Delete(TreeNode node, TreeNode location, int position){
+		super(node, location, position);
+	}
+
 	@Override
 	public String getType(){
 		return "delete";
@@ -97,19 +97,7 @@ public class EditOp implements Serializable {
 		TreeNode n = op.getNode();
 		boolean attached = false;
 		if(this.node == n.getParent()) {
-			for(int i=0; i<children.size(); i++) {
-				TreeNode curr = children.get(i).getNode();
-				if(n.getId() < curr.getId()) {
-					children.add(i, op);
-					attached = true;
-					break;
-				} else if(n.getId() == curr.getId()) {
-					attached = true;
-					break;
-				}
-			}
-			if(!attached)
-				children.add(op);
+			attachChild(op);
 			return true;
 		} else {
 			for(EditOp child : children) {
@@ -120,4 +108,22 @@ public class EditOp implements Serializable {
 			return attached;
 		}
 	}
+
+	/**
+	 * Add an op of a child of the node of this op, keeping children in the order of node ids.
+	 * Nothing is added if there is already an op of the child.
+	 */
+	public void attachChild(EditOp op) {
+		TreeNode n = op.getNode();
+		for(int i=0; i<children.size(); i++) {
+			TreeNode curr = children.get(i).getNode();
+			if(n.getId() < curr.getId()) {
+				children.add(i, op);
+				return;
+			} else if(n.getId() == curr.getId()) {
+				return;
+			}
+		}
+		children.add(op);
+	}
 }
@@ -0,0 +1,12 @@
+package script.model;
+
+/**
+ * Receives top-level ops of a script as they are generated, in the order of the script.
+ */
+public interface EditOpListener {
+
+	/**
+	 * @param op a top-level op, which is not changed after it is passed, with the ops attached to it.
+	 */
+	void editOpGenerated(EditOp op);
+}
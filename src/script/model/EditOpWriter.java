@@ -0,0 +1,149 @@
+package script.model;
+
+import java.io.Closeable;
+import java.io.Flushable;
+import java.io.IOException;
+import java.io.Writer;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+
+/**
+ * Writes top-level ops of edit scripts as text. Output is appended to a buffer of the writer
+ * and written to the underlying writer in blocks, so no string is built for an op.
+ * A writer can receive ops from a diff as a listener, and an error is then thrown by {@link #flush()}.
+ * A writer is not thread-safe.
+ */
+public abstract class EditOpWriter implements EditOpListener, Flushable, Closeable {
+	//Names of formats for create().
+	public static final List<String> FORMATS = Collections.unmodifiableList(Arrays.asList("text", "jsonl", "csv"));
+	private static final String LINE_SEPARATOR = System.lineSeparator();
+	private static final int BUFFER_SIZE = 8192;
+
+	private final Writer out;
+	private final char[] buffer = new char[BUFFER_SIZE];
+	private int count = 0;
+	//Digits of a number, from the end.
+	private final char[] digits = new char[11];
+	//An error of writing an op passed as a listener.
+	private IOException error;
+
+	protected EditOpWriter(Writer out) {
+		this.out = out;
+	}
+
+	/**
+	 * @param format one of {@link #FORMATS}: text as printed by {@link EditOp#toString()},
+	 * JSON Lines with an object for each op, or CSV with a row for each op and the ops attached to it.
+	 * @param out a writer to write to.
+	 * @return a writer of <code>format</code>.
+	 * @throws IOException
+	 */
+	public static EditOpWriter create(String format, Writer out) throws IOException {
+		switch(format){
+		case "text":
+			return new TextOpWriter(out);
+		case "jsonl":
+			return new JsonLinesOpWriter(out);
+		case "csv":
+			return new CsvOpWriter(out);
+		default:
+			throw new IllegalArgumentException("Unknown format " + format + ", which should be one of " + FORMATS + ".");
+		}
+	}
+
+	/**
+	 * Write a top-level op with the ops attached to it.
+	 *
+	 * @throws IOException
+	 */
+	public abstract void write(EditOp op) throws IOException;
+
+	public void write(EditScript script) throws IOException {
+		for(EditOp op : script.editOps()){
+			write(op);
+		}
+	}
+
+	@Override
+	public void editOpGenerated(EditOp op) {
+		if(error != null)
+			return;
+		try{
+			write(op);
+		}catch(IOException e){
+			error = e;
+		}
+	}
+
+	protected void append(char c) throws IOException {
+		if(count == buffer.length)
+			flushBuffer();
+		buffer[count++] = c;
+	}
+
+	protected void append(String s) throws IOException {
+		int length = s.length();
+		for(int from=0; from<length; ){
+			if(count == buffer.length)
+				flushBuffer();
+			int to = Math.min(length, from + buffer.length - count);
+			s.getChars(from, to, buffer, count);
+			count += to - from;
+			from = to;
+		}
+	}
+
+	protected void append(int value) throws IOException {
+		if(value == Integer.MIN_VALUE){
+			append(Integer.toString(value));
+			return;
+		}
+		if(value < 0){
+			append('-');
+			value = -value;
+		}
+		int start = digits.length;
+		do{
+			digits[--start] = (char)('0' + value % 10);
+			value /= 10;
+		}while(value > 0);
+		for(int i=start; i<digits.length; i++){
+			append(digits[i]);
+		}
+	}
+
+	protected void newLine() throws IOException {
+		append(LINE_SEPARATOR);
+	}
+
+	private void flushBuffer() throws IOException {
+		if(count > 0){
+			out.write(buffer, 0, count);
+			count = 0;
+		}
+	}
+
+	/**
+	 * @throws IOException if an op passed as a listener could not be written.
+	 */
+	@Override
+	public void flush() throws IOException {
+		flushBuffer();
+		out.flush();
+		if(error != null){
+			IOException e = error;
+			error = null;
+			throw e;
+		}
+	}
+
+	@Override
+	public void close() throws IOException {
+		try{
+			flush();
+		}finally{
+			out.close();
+		}
+	}
+}
@@ -1,35 +1,199 @@
 package script.model;
 
+import java.io.IOException;
+import java.io.ObjectInputStream;
 import java.io.Serializable;
+import java.util.AbstractCollection;
 import java.util.ArrayList;
 import java.util.Collection;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.IdentityHashMap;
+import java.util.Iterator;
+import java.util.LinkedHashSet;
 import java.util.List;
+import java.util.Map;
+
+import tree.Mapping;
+import tree.TreeNode;
 
 public class EditScript implements Serializable {
-	private static final long serialVersionUID = -5733483402808425064L;
-	private List<EditOp> operations;
+	private static final long serialVersionUID = -6968315668739697025L;
+
+	/**
+	 * Phases of matching which are cut short when a diff runs out of its budget.
+	 */
+	public enum Phase {
+		SIMILAR_MATCH,
+		FOLLOWUP_MATCH
+	}
+
+	//Ops are compared by identity, so the set keeps them in the order they are added, with constant time removal.
+	private LinkedHashSet<EditOp> operations;
+	//The first op of each type and node, which is rebuilt after deserialization.
+	private transient Map<Class<?>, Map<TreeNode, EditOp>> index;
+	//Later ops of a type and node in the order they are added, which replace the first one when it is removed.
+	private transient Map<Class<?>, Map<TreeNode, List<EditOp>>> duplicates;
 	public int exactMatch = 0;
 	public int similarMatch = 0;
 	public int followupMatch = 0;
 	public int leafMatch = 0;
 	public int exactMatchCount = 0;
+	public int similarityCount = 0;
+	public int similarPairCount = 0;
+	//The phase cut short by the budget of the diff, or null if matching was complete.
+	private Phase degradedPhase;
+	private String degradedReason;
+	//Matches the script is generated from, which are not serialized with it.
+	private transient Mapping mapping;
 
 	public EditScript(){
-		this.operations = new ArrayList<>();
+		this.operations = new LinkedHashSet<>();
+		this.index = new HashMap<>();
+		this.duplicates = new HashMap<>();
 	}
 
+	/**
+	 * @return false if <code>op</code> is already in this script.
+	 */
 	public boolean addEditOp(EditOp op){
-		return this.operations.add(op);
+		if(!operations.add(op))
+			return false;
+		Map<TreeNode, EditOp> ops = index.get(op.getClass());
+		if(ops == null){
+			ops = new IdentityHashMap<>();
+			index.put(op.getClass(), ops);
+		}
+		//The first op of a node is found, as it would be by a scan.
+		if(!ops.containsKey(op.getNode())){
+			ops.put(op.getNode(), op);
+			return true;
+		}
+		Map<TreeNode, List<EditOp>> later = duplicates.get(op.getClass());
+		if(later == null){
+			later = new IdentityHashMap<>();
+			duplicates.put(op.getClass(), later);
+		}
+		List<EditOp> list = later.get(op.getNode());
+		if(list == null){
+			list = new ArrayList<>(2);
+			later.put(op.getNode(), list);
+		}
+		list.add(op);
+		return true;
 	}
 
 	public void addEditOps(Collection<? extends EditOp> editOps){
 		for(EditOp op : editOps){
-			operations.add(op);
+			addEditOp(op);
 		}
 	}
 
+	/**
+	 * @return a copy of the ops of this script in the order they are added. Ops are kept in a set,
+	 * so the list is read-only and ops are removed with {@link #removeEditOp(EditOp)}.
+	 */
 	public List<EditOp> getEditOps(){
-		return operations;
+		return Collections.unmodifiableList(new ArrayList<>(operations));
+	}
+
+	/**
+	 * @return the ops of this script in the order they are added, without a copy. The view follows
+	 * the script, so ops are not added to or removed from the script while it is iterated, except by
+	 * removing them through its iterator. Ops cannot be added through the view.
+	 */
+	public Collection<EditOp> editOps(){
+		return new AbstractCollection<EditOp>() {
+			@Override
+			public Iterator<EditOp> iterator() {
+				final Iterator<EditOp> it = operations.iterator();
+				return new Iterator<EditOp>() {
+					private EditOp last;
+
+					@Override
+					public boolean hasNext() {
+						return it.hasNext();
+					}
+
+					@Override
+					public EditOp next() {
+						last = it.next();
+						return last;
+					}
+
+					@Override
+					public void remove() {
+						it.remove();
+						unindex(last);
+					}
+				};
+			}
+
+			@Override
+			public int size() {
+				return operations.size();
+			}
+		};
+	}
+
+	/**
+	 * Find an op of this script, not one attached to another op, in constant time.
+	 *
+	 * @param type the class of the op.
+	 * @param node the node of the op.
+	 * @return the first op of <code>type</code> added for <code>node</code>, or null if there is none.
+	 */
+	public <T extends EditOp> T getEditOp(Class<T> type, TreeNode node){
+		Map<TreeNode, EditOp> ops = index.get(type);
+		return ops == null ? null : type.cast(ops.get(node));
+	}
+
+	/**
+	 * Find ops of this script, not ones attached to other ops, whose nodes are ancestors of a node.
+	 * Ops are looked up by the node of each ancestor, so this takes time in the depth of the node.
+	 *
+	 * @param type the class of the ops.
+	 * @param node a node.
+	 * @return ops of <code>type</code> of proper ancestors of <code>node</code> in the order they are added.
+	 */
+	public <T extends EditOp> List<T> getEditOpsAbove(Class<T> type, TreeNode node){
+		Map<TreeNode, EditOp> ops = index.get(type);
+		if(ops == null)
+			return Collections.emptyList();
+		Map<TreeNode, List<EditOp>> later = duplicates.get(type);
+		List<T> found = new ArrayList<>(1);
+		int nodes = 0;
+		for(TreeNode n=node.getParent(); n!=null; n=n.getParent()){
+			EditOp first = ops.get(n);
+			if(first == null)
+				continue;
+			nodes++;
+			found.add(type.cast(first));
+			List<EditOp> list = later == null ? null : later.get(n);
+			if(list != null){
+				for(EditOp op : list){
+					found.add(type.cast(op));
+				}
+			}
+		}
+		if(nodes > 1){
+			//Ops of a node are in the order they are added, but ops of nested nodes are rarely found together,
+			//and then they are put in order by the script.
+			found.clear();
+			for(EditOp op : operations){
+				if(op.getClass() == type && isAncestor(op.getNode(), node))
+					found.add(type.cast(op));
+			}
+		}
+		return found;
+	}
+
+	private static boolean isAncestor(TreeNode ancestor, TreeNode node) {
+		for(TreeNode n=node.getParent(); n!=null; n=n.getParent()){
+			if(n == ancestor)
+				return true;
+		}
+		return false;
 	}
 
 	public int size(){
@@ -47,12 +211,12 @@ public class EditScript implements Serializable {
 	}
 
 	public void merge(EditScript script) {
-		this.operations.addAll(script.operations);
+		addEditOps(script.operations);
 	}
 
 	public void merge(List<EditScript> scripts) {
 		for(EditScript script : scripts){
-			this.operations.addAll(script.operations);
+			addEditOps(script.operations);
 		}
 	}
 
@@ -64,7 +228,79 @@ public class EditScript implements Serializable {
 		this.exactMatchCount = exactMatchCount;
 	}
 
+	/**
+	 * Record that matching was cut short, so this script may have more edits than a complete one.
+	 * Only the first phase cut short is kept, as later phases run with what it has matched.
+	 *
+	 * @param phase the phase which was cut short.
+	 * @param reason the budget which ran out.
+	 */
+	public void setDegraded(Phase phase, String reason) {
+		if(degradedPhase == null){
+			this.degradedPhase = phase;
+			this.degradedReason = reason;
+		}
+	}
+
+	public boolean isDegraded() {
+		return degradedPhase != null;
+	}
+
+	/**
+	 * @return the first phase cut short by the budget, or null if matching was complete.
+	 */
+	public Phase getDegradedPhase() {
+		return degradedPhase;
+	}
+
+	public String getDegradedReason() {
+		return degradedReason;
+	}
+
+	/**
+	 * @return matches of the trees this script is generated from, or null if it is not generated from trees.
+	 */
+	public Mapping getMapping() {
+		return mapping;
+	}
+
+	public void setMapping(Mapping mapping) {
+		this.mapping = mapping;
+	}
+
+	/**
+	 * Remove an op in constant time. Nothing is done if it is not in this script.
+	 */
 	public void removeEditOp(EditOp op) {
-		this.operations.remove(op);
+		if(operations.remove(op))
+			unindex(op);
+	}
+
+	private void unindex(EditOp op) {
+		TreeNode node = op.getNode();
+		Map<TreeNode, List<EditOp>> later = duplicates.get(op.getClass());
+		List<EditOp> list = later == null ? null : later.get(node);
+		Map<TreeNode, EditOp> ops = index.get(op.getClass());
+		if(ops.get(node) == op){
+			//The next op of the node, if any, becomes the first one.
+			if(list == null){
+				ops.remove(node);
+				return;
+			}
+			ops.put(node, list.remove(0));
+		}else if(list != null){
+			list.remove(op);
+		}
+		if(list != null && list.isEmpty())
+			later.remove(node);
+	}
+
+	private void readObject(ObjectInputStream in) throws IOException, ClassNotFoundException {
+		in.defaultReadObject();
+		LinkedHashSet<EditOp> ops = operations;
+		this.operations = new LinkedHashSet<>();
+		this.index = new HashMap<>();
+		this.duplicates = new HashMap<>();
+		addEditOps(ops);
 	}
 }
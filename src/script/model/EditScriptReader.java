@@ -0,0 +1,228 @@
+package script.model;
+
+import java.io.Closeable;
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.List;
+
+import tree.TreeNode;
+
+/**
+ * Reads edit scripts written by {@link EditScriptWriter}, one at a time.
+ * Nodes of a script read are not backed by trees: they have the attributes of the written nodes,
+ * but no parents or children. A node used by many ops of a script is read as one node.
+ * Labels are kept by the reader rather than interned in the default label table, which would grow
+ * with every stream read, so nodes read have no label ids. A reader is not thread-safe.
+ */
+public class EditScriptReader implements Closeable {
+	private final InputStream in;
+	private final byte[] buffer = new byte[EditScriptWriter.BUFFER_SIZE];
+	private int position = 0;
+	private int limit = 0;
+	//Labels by their indexes in the stream.
+	private final List<String> labels = new ArrayList<>();
+	//Nodes of the current script by their indexes.
+	private final List<TreeNode> nodes = new ArrayList<>();
+
+	/**
+	 * Create a reader and read the header of a stream.
+	 *
+	 * @param in a stream to read from, which is buffered by the reader.
+	 * @throws IOException if the stream does not start with a header of the current format.
+	 */
+	public EditScriptReader(InputStream in) throws IOException {
+		this.in = in;
+		if(readInt() != EditScriptWriter.MAGIC)
+			throw new IOException("Not an edit script stream.");
+		int version = readInt();
+		if(version != EditScriptWriter.FORMAT_VERSION)
+			throw new IOException("Unsupported edit script format version " + version + ".");
+	}
+
+	/**
+	 * Read the next script with its ops and counts. Its mapping is null.
+	 *
+	 * @return the script read, or null at the end of the stream.
+	 * @throws IOException if the stream is truncated or corrupted.
+	 */
+	public EditScript read() throws IOException {
+		if(position == limit && !fill())
+			return null;
+		if(readByte() != EditScriptWriter.SCRIPT)
+			throw new IOException("Corrupted edit script.");
+		nodes.clear();
+		EditScript script = new EditScript();
+		for(int kind=readByte(); kind!=EditScriptWriter.END_OF_OPS; kind=readByte()){
+			script.addEditOp(readOp(kind));
+		}
+		script.exactMatch = readSigned();
+		script.similarMatch = readSigned();
+		script.followupMatch = readSigned();
+		script.leafMatch = readSigned();
+		script.exactMatchCount = readSigned();
+		script.similarityCount = readSigned();
+		script.similarPairCount = readSigned();
+		int phase = readVarint();
+		if(phase > EditScript.Phase.values().length)
+			throw new IOException("Corrupted edit script.");
+		if(phase > 0)
+			script.setDegraded(EditScript.Phase.values()[phase - 1], readString());
+		return script;
+	}
+
+	private EditOp readOp(int kind) throws IOException {
+		TreeNode node = readNode();
+		TreeNode location = readNode();
+		int opPosition = readSigned();
+		EditOp op;
+		switch(kind){
+		case EditScriptWriter.INSERT:
+			op = new Insert(node, location, opPosition);
+			break;
+		case EditScriptWriter.DELETE:
+			op = new Delete(node, location, opPosition);
+			break;
+		case EditScriptWriter.MOVE:
+			TreeNode from = readNode();
+			op = new Move(node, from, readSigned(), location, opPosition);
+			break;
+		case EditScriptWriter.UPDATE:
+			op = new Update(node, location);
+			break;
+		case EditScriptWriter.REPLACE:
+			op = new Replace(node, location);
+			break;
+		default:
+			throw new IOException("Unknown op kind " + kind + ".");
+		}
+		int children = readVarint();
+		for(int i=0; i<children; i++){
+			op.addEditOp(readOp(readByte()));
+		}
+		return op;
+	}
+
+	private TreeNode readNode() throws IOException {
+		int index = readVarint() - 1;
+		if(index < 0)
+			return null;
+		if(index < nodes.size())
+			return nodes.get(index);
+		if(index > nodes.size())
+			throw new IOException("Corrupted edit script.");
+		int id = readSigned();
+		String label = readLabel();
+		int type = readSigned();
+		int start = readSigned();
+		int length = readSigned();
+		int line = readSigned();
+		int location = readSigned();
+		int statementLocation = readSigned();
+		TreeNode node = new DecodedNode(id, label, type, start, length, line, location, statementLocation);
+		nodes.add(node);
+		return node;
+	}
+
+	private String readLabel() throws IOException {
+		int index = readVarint();
+		if(index < labels.size())
+			return labels.get(index);
+		if(index > labels.size())
+			throw new IOException("Corrupted edit script.");
+		labels.add(readString());
+		return labels.get(index);
+	}
+
+	private String readString() throws IOException {
+		int length = readVarint();
+		if(length < 0)
+			throw new IOException("Corrupted edit script.");
+		if(length <= limit - position){
+			String s = new String(buffer, position, length, StandardCharsets.UTF_8);
+			position += length;
+			return s;
+		}
+		byte[] bytes = new byte[length];
+		int read = 0;
+		while(read < length){
+			if(position == limit && !fill())
+				throw new EOFException("Truncated edit script.");
+			int n = Math.min(length - read, limit - position);
+			System.arraycopy(buffer, position, bytes, read, n);
+			position += n;
+			read += n;
+		}
+		return new String(bytes, StandardCharsets.UTF_8);
+	}
+
+	private int readInt() throws IOException {
+		return readByte() << 24 | readByte() << 16 | readByte() << 8 | readByte();
+	}
+
+	private int readSigned() throws IOException {
+		int value = readVarint();
+		return (value >>> 1) ^ -(value & 1);
+	}
+
+	private int readVarint() throws IOException {
+		int value = 0;
+		for(int shift=0; shift<32; shift+=7){
+			int b = readByte();
+			value |= (b & 0x7F) << shift;
+			if((b & 0x80) == 0)
+				return value;
+		}
+		throw new IOException("Corrupted edit script.");
+	}
+
+	private int readByte() throws IOException {
+		if(position == limit && !fill())
+			throw new EOFException("Truncated edit script.");
+		return buffer[position++] & 0xFF;
+	}
+
+	/**
+	 * @return false if the stream has no more bytes.
+	 */
+	private boolean fill() throws IOException {
+		int n = in.read(buffer, 0, buffer.length);
+		while(n == 0){
+			n = in.read(buffer, 0, buffer.length);
+		}
+		position = 0;
+		limit = Math.max(n, 0);
+		return n > 0;
+	}
+
+	@Override
+	public void close() throws IOException {
+		in.close();
+	}
+
+	/**
+	 * A node read from a stream, which keeps its own label instead of a label id.
+	 */
+	private static class DecodedNode extends TreeNode {
+		private static final long serialVersionUID = 4021594432378307765L;
+		private String label;
+
+		private DecodedNode(int id, String label, int type, int startPosition, int length, int lineNumber,
+				int location, int statementLocation) {
+			super(id, -1, type, startPosition, length, lineNumber, location, statementLocation);
+			this.label = label;
+		}
+
+		@Override
+		public String getLabel() {
+			return label;
+		}
+
+		@Override
+		public void setLabel(String label) {
+			this.label = label;
+		}
+	}
+}
@@ -0,0 +1,286 @@
+package script.model;
+
+import java.io.Closeable;
+import java.io.Flushable;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.IdentityHashMap;
+import java.util.Map;
+
+import tree.LabelTable;
+import tree.TreeNode;
+
+/**
+ * Writes edit scripts in a binary format which keeps only what the scripts need, not the trees of their nodes.
+ * A stream has a header followed by scripts. A script is a tag, its top-level ops, an end mark and its counts.
+ * An op is its kind, its node, location and position, the parent and position of the node for a move,
+ * and the ops attached to it. A node is written with its id, label, type, offset range, line and locations
+ * the first time it is used in a script, and by its index in the script afterwards.
+ * Labels are kept in a dictionary of the stream, so each label is written as characters once.
+ * Numbers are written as variable length integers, so small numbers take a byte.
+ * <p>
+ * A writer can also receive ops from a diff as a listener, between {@link #beginScript()} and
+ * {@link #endScript(EditScript)}. A writer is not thread-safe.
+ *
+ * @see EditScriptReader
+ */
+public class EditScriptWriter implements EditOpListener, Closeable, Flushable {
+	//"LASE", followed by the version of the binary format.
+	static final int MAGIC = 0x4C415345;
+	public static final int FORMAT_VERSION = 1;
+	static final int SCRIPT = 1;
+	//Kinds of ops, where 0 ends the ops of a script.
+	static final int END_OF_OPS = 0;
+	static final int INSERT = 1;
+	static final int DELETE = 2;
+	static final int MOVE = 3;
+	static final int UPDATE = 4;
+	static final int REPLACE = 5;
+	static final int BUFFER_SIZE = 1 << 16;
+
+	private final OutputStream out;
+	private final byte[] buffer = new byte[BUFFER_SIZE];
+	private int count = 0;
+	//The index of each label written plus one, by label id, or 0 for labels not written yet.
+	private int[] labels = new int[1024];
+	//Indexes of labels of nodes without label ids, such as decoded nodes.
+	private final Map<String, Integer> otherLabels = new HashMap<>();
+	private int labelCount = 0;
+	//Nodes written in the current script by their indexes.
+	private final Map<TreeNode, Integer> nodes = new IdentityHashMap<>();
+	private boolean inScript = false;
+	//An error of writing an op passed as a listener, thrown by endScript().
+	private IOException error;
+
+	/**
+	 * Create a writer and write the header of a stream.
+	 *
+	 * @param out a stream to write to, which is buffered by the writer.
+	 * @throws IOException
+	 */
+	public EditScriptWriter(OutputStream out) throws IOException {
+		this.out = out;
+		writeInt(MAGIC);
+		writeInt(FORMAT_VERSION);
+	}
+
+	/**
+	 * Write a script with its ops and counts.
+	 *
+	 * @throws IOException
+	 */
+	public void write(EditScript script) throws IOException {
+		beginScript();
+		for(EditOp op : script.editOps()){
+			writeOp(op);
+		}
+		endScript(script);
+	}
+
+	/**
+	 * Begin a script whose ops are passed to {@link #editOpGenerated(EditOp)}.
+	 *
+	 * @throws IOException
+	 */
+	public void beginScript() throws IOException {
+		if(inScript)
+			throw new IllegalStateException("A script is already begun.");
+		inScript = true;
+		nodes.clear();
+		writeByte(SCRIPT);
+	}
+
+	/**
+	 * Write a top-level op of the current script. An error is thrown by {@link #endScript(EditScript)}.
+	 */
+	@Override
+	public void editOpGenerated(EditOp op) {
+		if(!inScript)
+			throw new IllegalStateException("No script is begun.");
+		if(error != null)
+			return;
+		try{
+			writeOp(op);
+		}catch(IOException e){
+			error = e;
+		}
+	}
+
+	/**
+	 * End the current script with the counts of <code>script</code>, whose ops are not written.
+	 *
+	 * @throws IOException if an op of the script could not be written.
+	 */
+	public void endScript(EditScript script) throws IOException {
+		if(!inScript)
+			throw new IllegalStateException("No script is begun.");
+		inScript = false;
+		if(error != null){
+			IOException e = error;
+			error = null;
+			throw e;
+		}
+		writeByte(END_OF_OPS);
+		for(int value : new int[] { script.exactMatch, script.similarMatch, script.followupMatch, script.leafMatch,
+				script.exactMatchCount, script.similarityCount, script.similarPairCount }){
+			writeSigned(value);
+		}
+		EditScript.Phase phase = script.getDegradedPhase();
+		writeVarint(phase == null ? 0 : phase.ordinal() + 1);
+		if(phase != null)
+			writeString(script.getDegradedReason());
+	}
+
+	private void writeOp(EditOp op) throws IOException {
+		if(!inScript)
+			throw new IllegalStateException("No script is begun.");
+		writeByte(kindOf(op));
+		writeNode(op.getNode());
+		writeNode(op.getLocation());
+		writeSigned(op.getPosition());
+		if(op instanceof Move){
+			Move move = (Move)op;
+			writeNode(move.getFrom());
+			writeSigned(move.getFromPosition());
+		}
+		writeVarint(op.children.size());
+		for(EditOp child : op.children){
+			writeOp(child);
+		}
+	}
+
+	private static int kindOf(EditOp op) {
+		if(op instanceof Insert)
+			return INSERT;
+		if(op instanceof Delete)
+			return DELETE;
+		if(op instanceof Move)
+			return MOVE;
+		if(op instanceof Update)
+			return UPDATE;
+		if(op instanceof Replace)
+			return REPLACE;
+		throw new IllegalArgumentException("Unknown op type " + op.getType() + ".");
+	}
+
+	/**
+	 * Write 0 for null, the index of a node plus one if it is written before,
+	 * or the next index plus one followed by the node.
+	 */
+	private void writeNode(TreeNode node) throws IOException {
+		if(node == null){
+			writeVarint(0);
+			return;
+		}
+		Integer index = nodes.get(node);
+		if(index != null){
+			writeVarint(index + 1);
+			return;
+		}
+		index = nodes.size();
+		nodes.put(node, index);
+		writeVarint(index + 1);
+		writeSigned(node.getId());
+		if(node.getLabelId() >= 0)
+			writeLabel(node.getLabelId());
+		else
+			writeLabel(node.getLabel());
+		writeSigned(node.getType());
+		writeSigned(node.getStartPosition());
+		writeSigned(node.getLength());
+		writeSigned(node.getLineNumber());
+		writeSigned(node.getLocationId());
+		writeSigned(node.getStatementLocationId());
+	}
+
+	/**
+	 * Write the index of a label if it is written before, or the next index followed by the label.
+	 */
+	private void writeLabel(int labelId) throws IOException {
+		if(labelId >= labels.length)
+			labels = Arrays.copyOf(labels, Math.max(labels.length * 2, labelId + 1));
+		if(labels[labelId] > 0){
+			writeVarint(labels[labelId] - 1);
+		}else{
+			labels[labelId] = ++labelCount;
+			writeVarint(labelCount - 1);
+			writeString(LabelTable.getDefault().getLabel(labelId));
+		}
+	}
+
+	private void writeLabel(String label) throws IOException {
+		Integer index = otherLabels.get(label);
+		if(index != null){
+			writeVarint(index);
+		}else{
+			otherLabels.put(label, labelCount++);
+			writeVarint(labelCount - 1);
+			writeString(label);
+		}
+	}
+
+	private void writeString(String s) throws IOException {
+		byte[] bytes = s.getBytes(StandardCharsets.UTF_8);
+		writeVarint(bytes.length);
+		if(bytes.length > buffer.length - count)
+			flushBuffer();
+		if(bytes.length > buffer.length){
+			out.write(bytes);
+		}else{
+			System.arraycopy(bytes, 0, buffer, count, bytes.length);
+			count += bytes.length;
+		}
+	}
+
+	private void writeInt(int value) throws IOException {
+		writeByte(value >>> 24);
+		writeByte(value >>> 16);
+		writeByte(value >>> 8);
+		writeByte(value);
+	}
+
+	/**
+	 * Write a number which may be negative, such as -1 for a missing value, in zigzag encoding.
+	 */
+	private void writeSigned(int value) throws IOException {
+		writeVarint((value << 1) ^ (value >> 31));
+	}
+
+	private void writeVarint(int value) throws IOException {
+		if(buffer.length - count < 5)
+			flushBuffer();
+		while((value & ~0x7F) != 0){
+			buffer[count++] = (byte)((value & 0x7F) | 0x80);
+			value >>>= 7;
+		}
+		buffer[count++] = (byte)value;
+	}
+
+	private void writeByte(int value) throws IOException {
+		if(count == buffer.length)
+			flushBuffer();
+		buffer[count++] = (byte)value;
+	}
+
+	private void flushBuffer() throws IOException {
+		if(count > 0){
+			out.write(buffer, 0, count);
+			count = 0;
+		}
+	}
+
+	@Override
+	public void flush() throws IOException {
+		flushBuffer();
+		out.flush();
+	}
+
+	@Override
+	public void close() throws IOException {
+		flush();
+		out.close();
+	}
+}
@@ -8,7 +8,10 @@ public class Insert extends EditOp {
 
 	public Insert(TreeNode node) {
 		super(node, node.getParent(), node.indexInParent());
-		node.setChangeType(TreeNode.NODE_INSERTED);
+	}
+
+	Insert(TreeNode node, TreeNode location, int position) {
+		super(node, location, position);
 	}
 
 	@Override
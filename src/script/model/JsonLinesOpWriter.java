@@ -0,0 +1,103 @@
+package script.model;
+
+import java.io.IOException;
+import java.io.Writer;
+
+import tree.TreeNode;
+
+/**
+ * Writes a JSON object on a line for each top-level op, with the ops attached to it as children.
+ * An op has its type, node, location and position, and a move also has the node it is moved from
+ * and the position there. A node has its id, label, type, line, start and length.
+ */
+public class JsonLinesOpWriter extends EditOpWriter {
+	private static final char[] HEX = "0123456789abcdef".toCharArray();
+
+	public JsonLinesOpWriter(Writer out) {
+		super(out);
+	}
+
+	@Override
+	public void write(EditOp op) throws IOException {
+		appendOp(op);
+		newLine();
+	}
+
+	private void appendOp(EditOp op) throws IOException {
+		append("{\"op\":");
+		appendString(op.getType());
+		append(",\"node\":");
+		appendNode(op.getNode());
+		append(",\"location\":");
+		appendNode(op.getLocation());
+		append(",\"position\":");
+		append(op.getPosition());
+		if(op instanceof Move){
+			Move move = (Move)op;
+			append(",\"from\":");
+			appendNode(move.getFrom());
+			append(",\"fromPosition\":");
+			append(move.getFromPosition());
+		}
+		append(",\"children\":[");
+		for(int i=0; i<op.children.size(); i++){
+			if(i > 0)
+				append(',');
+			appendOp(op.children.get(i));
+		}
+		append("]}");
+	}
+
+	private void appendNode(TreeNode node) throws IOException {
+		if(node == null){
+			append("null");
+			return;
+		}
+		append("{\"id\":");
+		append(node.getId());
+		append(",\"label\":");
+		appendString(node.getLabel());
+		append(",\"type\":");
+		append(node.getType());
+		append(",\"line\":");
+		append(node.getLineNumber());
+		append(",\"start\":");
+		append(node.getStartPosition());
+		append(",\"length\":");
+		append(node.getLength());
+		append('}');
+	}
+
+	private void appendString(String s) throws IOException {
+		append('"');
+		for(int i=0; i<s.length(); i++){
+			char c = s.charAt(i);
+			switch(c){
+			case '"':
+				append("\\\"");
+				break;
+			case '\\':
+				append("\\\\");
+				break;
+			case '\n':
+				append("\\n");
+				break;
+			case '\r':
+				append("\\r");
+				break;
+			case '\t':
+				append("\\t");
+				break;
+			default:
+				if(c < 0x20){
+					append("\\u00");
+					append(HEX[c >> 4]);
+					append(HEX[c & 0xF]);
+				}else{
+					append(c);
+				}
+			}
+		}
+		append('"');
+	}
+}
@@ -4,10 +4,30 @@ import tree.TreeNode;
 
 public class Move extends EditOp {
 
-	private static final long serialVersionUID = -3997326798965276871L;
+	private static final long serialVersionUID = 3517028147599081780L;
+	//The parent of the node and its index there, kept so a decoded move needs no tree.
+	private TreeNode from;
+	private int fromPosition;
 
 	public Move(TreeNode node, TreeNode location, int position) {
+		this(node, node.getParent(), node.indexInParent(), location, position);
+	}
+
+	Move(TreeNode node, TreeNode from, int fromPosition, TreeNode location, int position) {
 		super(node, location, position);
+		this.from = from;
+		this.fromPosition = fromPosition;
+	}
+
+	/**
+	 * @return the parent of the moved node before the move.
+	 */
+	public TreeNode getFrom() {
+		return from;
+	}
+
+	public int getFromPosition() {
+		return fromPosition;
 	}
 
 	@Override
@@ -18,14 +38,14 @@ public class Move extends EditOp {
 	@Override
 	public String toString(){
 		return getType() + "\t" + node.getLabel() + EditOp.SYM_OPEN + node.getLineNumber() + EditOp.SYM_CLOSE + " from "
-				+ node.getParent().getLabel() + EditOp.SYM_OPEN + node.getParent().getLineNumber() + EditOp.SYM_CLOSE + EditOp.SYM_DELIM + node.indexInParent() + " to "
+				+ from.getLabel() + EditOp.SYM_OPEN + from.getLineNumber() + EditOp.SYM_CLOSE + EditOp.SYM_DELIM + fromPosition + " to "
 				+ location.getLabel() + EditOp.SYM_OPEN + location.getLineNumber() + EditOp.SYM_CLOSE + EditOp.SYM_DELIM + position;
 	}
 
 	@Override
 	public String toOpString(){
 		return getType() + "\t" + node.getLabel() + EditOp.SYM_OPEN + node.getLineNumber() + EditOp.SYM_CLOSE + " from "
-				+ node.getParent().getLabel() + EditOp.SYM_OPEN + node.getParent().getLineNumber() + EditOp.SYM_CLOSE + EditOp.SYM_DELIM + node.indexInParent() + " to "
+				+ from.getLabel() + EditOp.SYM_OPEN + from.getLineNumber() + EditOp.SYM_CLOSE + EditOp.SYM_DELIM + fromPosition + " to "
 				+ location.getLabel() + EditOp.SYM_OPEN + location.getLineNumber() + EditOp.SYM_CLOSE + EditOp.SYM_DELIM + position;
 	}
 }
\ No newline at end of file
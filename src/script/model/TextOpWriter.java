@@ -0,0 +1,53 @@
+package script.model;
+
+import java.io.IOException;
+import java.io.Writer;
+
+import tree.TreeNode;
+
+/**
+ * Writes a line for each top-level op, as printed by {@link EditOp#toString()}.
+ */
+public class TextOpWriter extends EditOpWriter {
+
+	public TextOpWriter(Writer out) {
+		super(out);
+	}
+
+	@Override
+	public void write(EditOp op) throws IOException {
+		append(op.getType());
+		append('\t');
+		appendNode(op.getNode());
+		if(op instanceof Move){
+			Move move = (Move)op;
+			append(" from ");
+			appendNode(move.getFrom());
+			append(EditOp.SYM_DELIM);
+			append(move.getFromPosition());
+			append(" to ");
+			appendNode(op.getLocation());
+			append(EditOp.SYM_DELIM);
+			append(op.getPosition());
+		}else if(op instanceof Update){
+			append(" to ");
+			append(op.getLocation().getLabel());
+		}else if(op instanceof Replace){
+			append(" with ");
+			appendNode(op.getLocation());
+		}else{
+			append(EditOp.SYM_DELIM);
+			appendNode(op.getLocation());
+			append(EditOp.SYM_DELIM);
+			append(op.getPosition());
+		}
+		newLine();
+	}
+
+	private void appendNode(TreeNode node) throws IOException {
+		append(node.getLabel());
+		append(EditOp.SYM_OPEN);
+		append(node.getLineNumber());
+		append(EditOp.SYM_CLOSE);
+	}
+}
@@ -0,0 +1,353 @@
+package tree;
+
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.BufferUnderflowException;
+import java.nio.ByteBuffer;
+import java.nio.CharBuffer;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * A read-only tree kept in parallel arrays indexed by node id, which is the preorder number of a node.
+ * Index 0 is the root. This takes less than half the memory of {@link TreeNode} objects,
+ * so trees can be kept or stored in this form, as {@link TreeCache} does.
+ * <p>
+ * There is no node view over these arrays, and matching does not run on this form.
+ * {@link script.ScriptGenerator} keeps nodes in sets, lists and maps and walks their children lists,
+ * so a view would still need an object and a children list for every node. A view would then take
+ * about as much memory as the nodes materialized by {@link #toTree()}, after which these arrays can be dropped.
+ */
+public class CompactTree {
+	public static final int NONE = -1;
+	//"LAST", followed by the version of the binary format.
+	private static final int MAGIC = 0x4C415354;
+	public static final int FORMAT_VERSION = 1;
+	//Bytes of a node in the binary format: twelve int arrays and one long array.
+	private static final int NODE_BYTES = 12 * 4 + 8;
+
+	private String name;
+	private int size;
+	private int[] parent;
+	private int[] firstChild;
+	private int[] nextSibling;
+	private int[] depth;
+	private int[] type;
+	private int[] label;
+	private int[] line;
+	private int[] start;
+	private int[] length;
+	private int[] location;
+	private int[] statementLocation;
+	private long[] hash;
+	private int[] propagated;
+	//Pairs of a node id and children count for nodes propagated more than once.
+	private int[] morePropagated;
+
+	private CompactTree(String name, int size){
+		this.name = name;
+		this.size = size;
+		int capacity = size + 1;
+		this.parent = new int[capacity];
+		this.firstChild = new int[capacity];
+		this.nextSibling = new int[capacity];
+		Arrays.fill(nextSibling, NONE);
+		this.depth = new int[capacity];
+		this.type = new int[capacity];
+		this.label = new int[capacity];
+		this.line = new int[capacity];
+		this.start = new int[capacity];
+		this.length = new int[capacity];
+		this.location = new int[capacity];
+		this.statementLocation = new int[capacity];
+		this.hash = new long[capacity];
+		this.propagated = new int[capacity];
+		this.morePropagated = new int[0];
+	}
+
+	/**
+	 * @param tree a tree whose nodes are numbered from 1 to its size.
+	 * @return a compact copy of <code>tree</code>.
+	 */
+	public static CompactTree of(Tree tree){
+		CompactTree compact = new CompactTree(tree.getName(), tree.getSize());
+		compact.set(0, tree.getRoot(), NONE);
+		int more = 0;
+		for(TreeNode node : tree.dfs()){
+			int id = node.getId();
+			if(id < 1 || id > compact.size)
+				throw new IllegalArgumentException("Node id " + id + " is out of range [1, " + compact.size + "].");
+			compact.set(id, node, node.getParent() == tree.getRoot() ? 0 : node.getParent().getId());
+			for(int p=1; p<node.getPropagationCount(); p++){
+				if(more + 2 > compact.morePropagated.length)
+					compact.morePropagated = Arrays.copyOf(compact.morePropagated, Math.max(8, more * 2));
+				compact.morePropagated[more++] = id;
+				compact.morePropagated[more++] = node.getPropagatedChildren(p);
+			}
+		}
+		compact.morePropagated = Arrays.copyOf(compact.morePropagated, more);
+		return compact;
+	}
+
+	private void set(int id, TreeNode node, int parentId){
+		parent[id] = parentId;
+		firstChild[id] = node.isLeaf() ? NONE : index(node.children.get(0));
+		for(int i=0; i<node.children.size()-1; i++){
+			nextSibling[index(node.children.get(i))] = index(node.children.get(i+1));
+		}
+		depth[id] = node.getDepth();
+		type[id] = node.getType();
+		label[id] = node.getLabelId();
+		line[id] = node.getLineNumber();
+		start[id] = node.getStartPosition();
+		length[id] = node.getLength();
+		location[id] = node.getLocationId();
+		statementLocation[id] = node.getStatementLocationId();
+		hash[id] = node.getHash();
+		propagated[id] = node.getPropagationCount() > 0 ? node.getPropagatedChildren(0) : NONE;
+	}
+
+	private static int index(TreeNode node){
+		return node.getId() < 0 ? 0 : node.getId();
+	}
+
+	/**
+	 * Materialize nodes of this tree. Nodes are not backed by AST nodes.
+	 *
+	 * @return a tree with the same nodes, labels and hashes.
+	 */
+	public Tree toTree(){
+		TreeNode[] nodes = new TreeNode[size + 1];
+		nodes[0] = new TreeNode();
+		for(int id=1; id<=size; id++){
+			nodes[id] = new TreeNode(id, label[id], type[id], start[id], length[id], line[id],
+					location[id], statementLocation[id]);
+			nodes[id].setHash(hash[id]);
+			if(propagated[id] != NONE)
+				nodes[id].addPropagation(propagated[id]);
+		}
+		for(int i=0; i<morePropagated.length; i+=2){
+			nodes[morePropagated[i]].addPropagation(morePropagated[i+1]);
+		}
+		for(int id=0; id<=size; id++){
+			if(firstChild[id] == NONE)
+				continue;
+			//Children lists are sized exactly, as nodes of a tree read are not added to.
+			int count = 0;
+			for(int child=firstChild[id]; child!=NONE; child=nextSibling[child]){
+				count++;
+			}
+			nodes[id].children = new ArrayList<>(count);
+			for(int child=firstChild[id]; child!=NONE; child=nextSibling[child]){
+				nodes[id].addChild(nodes[child]);
+			}
+		}
+		Tree tree = new Tree(name, nodes[0]);
+		tree.setSize(size);
+		tree.computeDepth();
+		tree.computeVectorSums();
+		return tree;
+	}
+
+	/**
+	 * Write this tree in a binary format, which has a header, a dictionary of labels used by this tree,
+	 * node arrays in preorder and propagations. Labels are written as characters,
+	 * so a tree can be read by another process whose label ids differ.
+	 *
+	 * @param out a stream to write to, which is not closed.
+	 * @throws IOException
+	 */
+	public void write(OutputStream out) throws IOException {
+		DataOutputStream data = new DataOutputStream(out);
+		data.writeInt(MAGIC);
+		data.writeInt(FORMAT_VERSION);
+		writeString(data, name == null ? "" : name);
+		data.writeInt(size);
+		Map<Integer, Integer> dictionary = new HashMap<>();
+		int[] localLabels = new int[size + 1];
+		for(int id=0; id<=size; id++){
+			Integer local = dictionary.get(label[id]);
+			if(local == null){
+				local = dictionary.size();
+				dictionary.put(label[id], local);
+			}
+			localLabels[id] = local;
+		}
+		String[] labels = new String[dictionary.size()];
+		for(Map.Entry<Integer, Integer> entry : dictionary.entrySet()){
+			labels[entry.getValue()] = LabelTable.getDefault().getLabel(entry.getKey());
+		}
+		data.writeInt(labels.length);
+		for(String l : labels){
+			writeString(data, l);
+		}
+		for(int[] array : new int[][] { parent, firstChild, nextSibling, depth, type, localLabels,
+				line, start, length, location, statementLocation, propagated }){
+			for(int id=0; id<=size; id++){
+				data.writeInt(array[id]);
+			}
+		}
+		for(int id=0; id<=size; id++){
+			data.writeLong(hash[id]);
+		}
+		data.writeInt(morePropagated.length);
+		for(int value : morePropagated){
+			data.writeInt(value);
+		}
+		data.flush();
+	}
+
+	private static void writeString(DataOutputStream data, String s) throws IOException {
+		data.writeInt(s.length());
+		data.writeChars(s);
+	}
+
+	/**
+	 * Read a tree written by {@link #write(OutputStream)}. Labels are interned in the default label table.
+	 *
+	 * @param in a buffer positioned at the start of a tree, such as a mapped file.
+	 * @return the tree read.
+	 * @throws IOException if the buffer does not hold a tree of the current format.
+	 */
+	public static CompactTree read(ByteBuffer in) throws IOException {
+		try{
+			if(in.getInt() != MAGIC)
+				throw new IOException("Not a tree.");
+			int version = in.getInt();
+			if(version != FORMAT_VERSION)
+				throw new IOException("Unsupported tree format version " + version + ".");
+			String name = readString(in);
+			//Sizes are checked against the bytes left before arrays are allocated, so a corrupted size is not
+			//taken for a huge tree.
+			int size = in.getInt();
+			if(size < 0 || (size + 1L) * NODE_BYTES > in.remaining())
+				throw new IOException("Corrupted tree size " + size + ".");
+			int labelCount = in.getInt();
+			if(labelCount < 0 || labelCount * 4L > in.remaining())
+				throw new IOException("Corrupted label count " + labelCount + ".");
+			int[] labels = new int[labelCount];
+			for(int i=0; i<labels.length; i++){
+				labels[i] = LabelTable.getDefault().intern(readString(in));
+			}
+			if((size + 1L) * NODE_BYTES > in.remaining())
+				throw new IOException("Truncated tree.");
+			CompactTree tree = new CompactTree(name, size);
+			for(int[] array : new int[][] { tree.parent, tree.firstChild, tree.nextSibling, tree.depth, tree.type, tree.label,
+					tree.line, tree.start, tree.length, tree.location, tree.statementLocation, tree.propagated }){
+				in.asIntBuffer().get(array);
+				in.position(in.position() + array.length * 4);
+			}
+			in.asLongBuffer().get(tree.hash);
+			in.position(in.position() + tree.hash.length * 8);
+			for(int id=0; id<=tree.size; id++){
+				if(tree.label[id] < 0 || tree.label[id] >= labels.length)
+					throw new IOException("Corrupted label of node " + id + ".");
+				tree.label[id] = labels[tree.label[id]];
+			}
+			int moreCount = in.getInt();
+			if(moreCount < 0 || moreCount % 2 != 0 || moreCount * 4L > in.remaining())
+				throw new IOException("Corrupted propagation count " + moreCount + ".");
+			tree.morePropagated = new int[moreCount];
+			in.asIntBuffer().get(tree.morePropagated);
+			in.position(in.position() + tree.morePropagated.length * 4);
+			tree.checkLinks();
+			return tree;
+		}catch(BufferUnderflowException | IndexOutOfBoundsException | IllegalArgumentException e){
+			throw new IOException("Truncated or corrupted tree.", e);
+		}
+	}
+
+	/**
+	 * Check that links read form a tree, so that {@link #toTree()} neither indexes out of the arrays nor loops.
+	 * As ids are preorder numbers, each node but the root must be linked exactly once, as a child of a node with a smaller id.
+	 */
+	private void checkLinks() throws IOException {
+		if(parent[0] != NONE)
+			throw new IOException("Corrupted parent of the root.");
+		boolean[] linked = new boolean[size + 1];
+		for(int id=0; id<=size; id++){
+			for(int child=firstChild[id]; child!=NONE; child=nextSibling[child]){
+				if(child <= id || child > size || linked[child] || parent[child] != id)
+					throw new IOException("Corrupted child " + child + " of node " + id + ".");
+				linked[child] = true;
+			}
+		}
+		for(int id=1; id<=size; id++){
+			if(!linked[id])
+				throw new IOException("Node " + id + " is not linked.");
+		}
+		for(int i=0; i<morePropagated.length; i+=2){
+			if(morePropagated[i] < 1 || morePropagated[i] > size)
+				throw new IOException("Corrupted propagation of node " + morePropagated[i] + ".");
+		}
+	}
+
+	private static String readString(ByteBuffer in) throws IOException {
+		int length = in.getInt();
+		if(length < 0 || length * 2L > in.remaining())
+			throw new IOException("Corrupted string length " + length + ".");
+		CharBuffer chars = in.asCharBuffer();
+		chars.limit(length);
+		String s = chars.toString();
+		in.position(in.position() + s.length() * 2);
+		return s;
+	}
+
+	public String getName() {
+		return name;
+	}
+
+	/**
+	 * @return the number of nodes, excluding the root.
+	 */
+	public int getSize() {
+		return size;
+	}
+
+	public int getParent(int id) {
+		return parent[id];
+	}
+
+	public int getFirstChild(int id) {
+		return firstChild[id];
+	}
+
+	public int getNextSibling(int id) {
+		return nextSibling[id];
+	}
+
+	public int getDepth(int id) {
+		return depth[id];
+	}
+
+	public int getType(int id) {
+		return type[id];
+	}
+
+	public int getLabelId(int id) {
+		return label[id];
+	}
+
+	public String getLabel(int id) {
+		return LabelTable.getDefault().getLabel(label[id]);
+	}
+
+	public int getLineNumber(int id) {
+		return line[id];
+	}
+
+	public int getStartPosition(int id) {
+		return start[id];
+	}
+
+	public int getLength(int id) {
+		return length[id];
+	}
+
+	public long getHash(int id) {
+		return hash[id];
+	}
+}
@@ -25,12 +25,24 @@ import org.eclipse.jdt.core.dom.SwitchStatement;
 public class JavaCodeVisitor extends ASTVisitor {
 
 	private Tree tree;
+	private final LabelTable labels;
 	private Stack<TreeNode> nodeStack;
-	private static final boolean ENABLE_GUMTREE_AST =  System.getProperty("las.enable.gumtree.ast") == null ? false : Boolean.parseBoolean(System.getProperty("las.enable.gumtree.ast"));
+	public static final boolean ENABLE_GUMTREE_AST =  System.getProperty("las.enable.gumtree.ast") == null ? false : Boolean.parseBoolean(System.getProperty("las.enable.gumtree.ast"));
+	private final boolean gumTreeAST;
 	private boolean parsingSwitchCase = false;
 
 	public JavaCodeVisitor(Tree tree){
+		this(tree, ENABLE_GUMTREE_AST);
+	}
+
+	/**
+	 * @param tree a tree to build.
+	 * @param gumTreeAST whether to build a GumTree AST, which keeps types and expression statements.
+	 */
+	public JavaCodeVisitor(Tree tree, boolean gumTreeAST){
 		this.tree = tree;
+		this.labels = LabelTable.getDefault();
+		this.gumTreeAST = gumTreeAST;
 		this.nodeStack = new Stack<TreeNode>();
 		this.nodeStack.add(tree.getRoot());
 	}
@@ -39,14 +51,21 @@ public class JavaCodeVisitor extends ASTVisitor {
 		return tree;
 	}
 
+	/**
+	 * @return a description of the options that change trees built by a visitor.
+	 */
+	public static String getConfiguration(boolean gumTreeAST){
+		return "las.enable.gumtree.ast=" + gumTreeAST;
+	}
+
 	@Override
 	public void postVisit(ASTNode node) {
 		//If ignore.expr.stmt is set, check whether node is ExpressionStatement.
-		if(ENABLE_GUMTREE_AST ||
+		if(gumTreeAST ||
 				!(node instanceof ExpressionStatement)){
 			//Put statements next to a switch case under the switch case.
 			TreeNode currentNode = nodeStack.pop();
-			if(!ENABLE_GUMTREE_AST){
+			if(!gumTreeAST){
 				if(node instanceof SwitchCase){
 					nodeStack.push(currentNode);
 				}else if(node instanceof SwitchStatement && parsingSwitchCase){
@@ -56,17 +75,18 @@ public class JavaCodeVisitor extends ASTVisitor {
 				}
 			}
 			currentNode.setDepth(nodeStack.size());
-			currentNode.getParent().getVector().update(currentNode.getVector());
+			//Labels of children added after this point are not propagated to ancestors.
+			currentNode.addPropagation(currentNode.children.size());
 		}
 	}
 
 	@Override
 	public void preVisit(ASTNode node) {
 		//Ignore ExpressionStatement if ignore.expr.stmt is set.
-		if(ENABLE_GUMTREE_AST ||
+		if(gumTreeAST ||
 				!(node instanceof ExpressionStatement)){
 			//If currently a switch case is being parsed, and node is a new switch case, move to next.
-			if(!ENABLE_GUMTREE_AST && node instanceof SwitchCase){
+			if(!gumTreeAST && node instanceof SwitchCase){
 				if(parsingSwitchCase)
 					nodeStack.pop();
 				else
@@ -83,7 +103,7 @@ public class JavaCodeVisitor extends ASTVisitor {
 
 	@Override
 	public boolean visit(SimpleType node){
-		if(ENABLE_GUMTREE_AST){
+		if(gumTreeAST){
 			return super.visit(node);
 		}
 		return false;
@@ -91,7 +111,7 @@ public class JavaCodeVisitor extends ASTVisitor {
 
 	@Override
 	public boolean visit(QualifiedType node){
-		if(ENABLE_GUMTREE_AST){
+		if(gumTreeAST){
 			return super.visit(node);
 		}
 		return false;
@@ -99,7 +119,7 @@ public class JavaCodeVisitor extends ASTVisitor {
 
 	@Override
 	public boolean visit(PrimitiveType node){
-		if(ENABLE_GUMTREE_AST){
+		if(gumTreeAST){
 			return super.visit(node);
 		}
 		return false;
@@ -114,32 +134,35 @@ public class JavaCodeVisitor extends ASTVisitor {
 		return treeNode;
 	}
 
-	private String getLabel(ASTNode node){
-		String label = node.getClass().getSimpleName();
+	private int getLabel(ASTNode node){
+		return labels.intern(node.getNodeType(), getValue(node));
+	}
+
+	private String getValue(ASTNode node){
 		if(node instanceof Assignment)
-			label += TreeNode.DELIM + ((Assignment)node).getOperator().toString();
+			return ((Assignment)node).getOperator().toString();
 		if(node instanceof BooleanLiteral
 				|| node instanceof Modifier
 				|| node instanceof SimpleType
 				|| node instanceof QualifiedType
 				|| node instanceof PrimitiveType)
-			label += TreeNode.DELIM + node.toString();
+			return node.toString();
 		if(node instanceof CharacterLiteral)
-			label += TreeNode.DELIM + ((CharacterLiteral)node).getEscapedValue();
+			return ((CharacterLiteral)node).getEscapedValue();
 		if(node instanceof NumberLiteral)
-			label += TreeNode.DELIM + ((NumberLiteral)node).getToken();
+			return ((NumberLiteral)node).getToken();
 		if(node instanceof StringLiteral)
-			label += TreeNode.DELIM + ((StringLiteral)node).getEscapedValue();
+			return ((StringLiteral)node).getEscapedValue();
 		if(node instanceof InfixExpression)
-			label += TreeNode.DELIM + ((InfixExpression)node).getOperator().toString();
+			return ((InfixExpression)node).getOperator().toString();
 		if(node instanceof PrefixExpression)
-			label += TreeNode.DELIM + ((PrefixExpression)node).getOperator().toString();
+			return ((PrefixExpression)node).getOperator().toString();
 		if(node instanceof PostfixExpression)
-			label += TreeNode.DELIM + ((PostfixExpression)node).getOperator().toString();
+			return ((PostfixExpression)node).getOperator().toString();
 		if(node instanceof SimpleName)
-			label += TreeNode.DELIM + ((SimpleName)node).getIdentifier();
+			return ((SimpleName)node).getIdentifier();
 		if(node instanceof QualifiedName)
-			label += TreeNode.DELIM + ((QualifiedName)node).getFullyQualifiedName();
-		return label;
+			return ((QualifiedName)node).getFullyQualifiedName();
+		return null;
 	}
 }
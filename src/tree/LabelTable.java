@@ -0,0 +1,174 @@
+package tree;
+
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicIntegerArray;
+
+import org.eclipse.jdt.core.dom.ASTNode;
+
+/**
+ * Maps each distinct node label, a pair of node type and value, to a dense int id.
+ * There is a single table per process, shared by trees built concurrently, so that
+ * nodes of any two trees can be compared by label ids.
+ * <p>
+ * Labels are never removed, since nodes of live trees hold their ids. The table grows with
+ * the distinct labels of trees built by {@link TreeBuilder}, loaded from a {@link TreeCache}
+ * or deserialized, which are mostly identifiers and literals shared between versions of code.
+ * Nodes of edit scripts read by a {@code script.model.EditScriptReader} keep their own labels,
+ * so reading scripts does not grow the table.
+ */
+public class LabelTable {
+	private static final LabelTable DEFAULT = new LabelTable();
+	private static final int MAX_TYPE = 128;
+	//Values longer than this are kept as given, and the label is composed on demand.
+	private static final int LARGE_VALUE = 64;
+	private static final String[] PREFIXES = new String[MAX_TYPE];
+	private static final Map<String, Integer> TYPES = new HashMap<>();
+
+	static {
+		for(int type=1; type<MAX_TYPE; type++){
+			try{
+				String name = ASTNode.nodeClassForType(type).getSimpleName();
+				PREFIXES[type] = name;
+				TYPES.put(name, type);
+			}catch(IllegalArgumentException e){
+				//Not a valid node type.
+			}
+		}
+	}
+
+	private final TypedIds[] typedIds;
+	private final AtomicIntegerArray plainIds;
+	private final ConcurrentHashMap<String, Integer> otherIds;
+	private volatile Entry[] entries;
+	private int size;
+
+	private LabelTable(){
+		this.typedIds = new TypedIds[MAX_TYPE];
+		for(int type=0; type<MAX_TYPE; type++){
+			typedIds[type] = new TypedIds();
+		}
+		this.plainIds = new AtomicIntegerArray(MAX_TYPE);
+		this.otherIds = new ConcurrentHashMap<>();
+		this.entries = new Entry[1024];
+		this.size = 0;
+	}
+
+	public static LabelTable getDefault(){
+		return DEFAULT;
+	}
+
+	/**
+	 * @param type a node type.
+	 * @param value a value of the node, or null if the node type is the label.
+	 * @return the id of the label.
+	 */
+	public int intern(int type, String value){
+		if(type <= 0 || type >= MAX_TYPE || PREFIXES[type] == null)
+			return intern(value == null ? String.valueOf(type) : type + TreeNode.DELIM + value);
+		if(value == null){
+			int id = plainIds.get(type) - 1;
+			return id >= 0 ? id : add(type, null);
+		}
+		Integer id = typedIds[type].get(value);
+		return id != null ? id : add(type, value);
+	}
+
+	public int intern(String label){
+		int index = label.indexOf(TreeNode.DELIM);
+		Integer type = TYPES.get(index < 0 ? label : label.substring(0, index));
+		if(type != null)
+			return intern(type, index < 0 ? null : label.substring(index + TreeNode.DELIM.length()));
+		Integer id = otherIds.get(label);
+		return id != null ? id : add(label);
+	}
+
+	public String getLabel(int id){
+		Entry entry = entries[id];
+		return entry.label != null ? entry.label : PREFIXES[entry.type] + TreeNode.DELIM + entry.value;
+	}
+
+	public long getHash(int id){
+		return entries[id].hash;
+	}
+
+	public synchronized int size(){
+		return size;
+	}
+
+	private synchronized int add(int type, String value){
+		//Check again, another thread may have added the same label.
+		if(value == null){
+			int id = plainIds.get(type) - 1;
+			if(id >= 0)
+				return id;
+			id = append(new Entry(PREFIXES[type], type, null));
+			plainIds.set(type, id + 1);
+			return id;
+		}
+		Integer existing = typedIds[type].get(value);
+		if(existing != null)
+			return existing;
+		Entry entry = value.length() > LARGE_VALUE ? new Entry(null, type, value)
+				: new Entry(PREFIXES[type] + TreeNode.DELIM + value, type, value);
+		int id = append(entry);
+		typedIds[type].put(value, id);
+		return id;
+	}
+
+	private synchronized int add(String label){
+		Integer existing = otherIds.get(label);
+		if(existing != null)
+			return existing;
+		int id = append(new Entry(label, 0, null));
+		otherIds.put(label, id);
+		return id;
+	}
+
+	private int append(Entry entry){
+		Entry[] current = entries;
+		if(size == current.length){
+			Entry[] grown = new Entry[size * 2];
+			System.arraycopy(current, 0, grown, 0, size);
+			current = grown;
+		}
+		current[size] = entry;
+		//Publish the entry before its id becomes visible to other threads.
+		entries = current;
+		return size++;
+	}
+
+	public static long hash(String label){
+		return hash(0xcbf29ce484222325L, label);
+	}
+
+	private static long hash(long hash, String s){
+		//FNV-1a over characters.
+		for(int i=0; i<s.length(); i++){
+			hash ^= s.charAt(i);
+			hash *= 0x100000001b3L;
+		}
+		return hash;
+	}
+
+	//Ids of labels of a node type by their values.
+	private static class TypedIds extends ConcurrentHashMap<String, Integer> {
+		private static final long serialVersionUID = 1L;
+	}
+
+	private static class Entry {
+		final String label;
+		final int type;
+		final String value;
+		final long hash;
+
+		Entry(String label, int type, String value){
+			this.label = label;
+			this.type = type;
+			this.value = value;
+			this.hash = label != null ? hash(label)
+					: hash(hash(hash(PREFIXES[type]), TreeNode.DELIM), value);
+		}
+	}
+}
@@ -0,0 +1,64 @@
+package tree;
+
+import java.lang.reflect.Method;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.ConcurrentHashMap;
+
+import org.eclipse.jdt.core.dom.AST;
+import org.eclipse.jdt.core.dom.ASTNode;
+import org.eclipse.jdt.core.dom.StructuralPropertyDescriptor;
+
+/**
+ * Maps structural property descriptors, which tell the location of a node in its parent, to int ids.
+ * Ids follow the order of node types and their properties, so they are the same in every process.
+ */
+public class LocationTable {
+	public static final int NO_LOCATION = -1;
+
+	//Descriptors do not override equals(), so they are compared by identity.
+	private static final ConcurrentHashMap<StructuralPropertyDescriptor, Integer> IDS = new ConcurrentHashMap<>();
+	private static volatile StructuralPropertyDescriptor[] descriptors = new StructuralPropertyDescriptor[0];
+
+	static {
+		for(int type=1; type<128; type++){
+			Class<?> nodeClass;
+			try{
+				nodeClass = ASTNode.nodeClassForType(type);
+			}catch(IllegalArgumentException e){
+				continue;
+			}
+			try{
+				Method method = nodeClass.getMethod("propertyDescriptors", int.class);
+				for(Object descriptor : (List<?>)method.invoke(null, AST.JLS8)){
+					add((StructuralPropertyDescriptor)descriptor);
+				}
+			}catch(ReflectiveOperationException e){
+				//Descriptors of this type are added when they are first seen.
+			}
+		}
+	}
+
+	private static synchronized int add(StructuralPropertyDescriptor descriptor){
+		Integer id = IDS.get(descriptor);
+		if(id == null){
+			id = descriptors.length;
+			StructuralPropertyDescriptor[] grown = Arrays.copyOf(descriptors, id + 1);
+			grown[id] = descriptor;
+			descriptors = grown;
+			IDS.put(descriptor, id);
+		}
+		return id;
+	}
+
+	public static int idOf(StructuralPropertyDescriptor descriptor){
+		if(descriptor == null)
+			return NO_LOCATION;
+		Integer id = IDS.get(descriptor);
+		return id != null ? id : add(descriptor);
+	}
+
+	public static StructuralPropertyDescriptor get(int id){
+		return id == NO_LOCATION ? null : descriptors[id];
+	}
+}
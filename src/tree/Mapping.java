@@ -0,0 +1,170 @@
+package tree;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ * Matches and change types of nodes of two trees, kept apart from the trees in arrays indexed by node id.
+ * Trees are only read while they are matched, so a tree can take part in many diffs, even at the same time.
+ * A tree cannot be on both sides of a mapping, as a node would not tell its side.
+ */
+public class Mapping {
+	public static final int NODE_NOT_CHANGED = 0;
+	public static final int NODE_INSERTED = 1;
+	public static final int NODE_DELETED = 2;
+
+	private static final int UNMATCHED = -1;
+
+	private final Tree before;
+	private final Tree after;
+	//Nodes of each side by slot, which is the id of a node, or 0 for the root.
+	private final TreeNode[][] nodes;
+	//The slot of the match of a node on the other side, or UNMATCHED.
+	private final int[][] matched;
+	private final byte[][] changeType;
+	private final int[][] offset;
+
+	/**
+	 * @param before a tree before a change.
+	 * @param after a tree after a change.
+	 */
+	public Mapping(Tree before, Tree after) {
+		if(before == after)
+			throw new IllegalArgumentException("Tree " + before.getName() + " cannot be mapped to itself.");
+		this.before = before;
+		this.after = after;
+		this.nodes = new TreeNode[][] { index(before), index(after) };
+		this.matched = new int[2][];
+		this.changeType = new byte[2][];
+		this.offset = new int[2][];
+		for(int side=0; side<2; side++){
+			matched[side] = new int[nodes[side].length];
+			Arrays.fill(matched[side], UNMATCHED);
+			changeType[side] = new byte[nodes[side].length];
+			offset[side] = new int[nodes[side].length];
+		}
+	}
+
+	private static TreeNode[] index(Tree tree) {
+		List<TreeNode> dfs = tree.dfs();
+		int size = 0;
+		for(TreeNode node : dfs){
+			size = Math.max(size, node.getId());
+		}
+		TreeNode[] nodes = new TreeNode[size + 1];
+		nodes[0] = tree.getRoot();
+		for(TreeNode node : dfs){
+			int id = node.getId();
+			if(id < 1 || nodes[id] != null)
+				throw new IllegalArgumentException("Node " + node + " of " + tree.getName() + " has an invalid id " + id + ".");
+			nodes[id] = node;
+		}
+		return nodes;
+	}
+
+	public Tree getBefore() {
+		return before;
+	}
+
+	public Tree getAfter() {
+		return after;
+	}
+
+	private static int slot(TreeNode node) {
+		return node.getId() < 0 ? 0 : node.getId();
+	}
+
+	/**
+	 * @return 0 if <code>node</code> is in the tree before a change, 1 if it is in the tree after.
+	 * @throws IllegalArgumentException if <code>node</code> is in neither tree.
+	 */
+	public int sideOf(TreeNode node) {
+		int slot = slot(node);
+		for(int side=0; side<2; side++){
+			if(slot < nodes[side].length && nodes[side][slot] == node)
+				return side;
+		}
+		throw new IllegalArgumentException("Node " + node + " is not in " + before.getName() + " or " + after.getName() + ".");
+	}
+
+	public boolean isMatched(TreeNode node) {
+		return matched[sideOf(node)][slot(node)] != UNMATCHED;
+	}
+
+	/**
+	 * @return the node matched with <code>node</code>, or null if it is not matched.
+	 */
+	public TreeNode getMatched(TreeNode node) {
+		int side = sideOf(node);
+		int match = matched[side][slot(node)];
+		return match == UNMATCHED ? null : nodes[1 - side][match];
+	}
+
+	/**
+	 * Match two nodes of different trees with each other.
+	 *
+	 * @throws IllegalStateException if either node is already matched with another node.
+	 */
+	public void setMatched(TreeNode node, TreeNode match) {
+		int side = sideOf(node);
+		int matchSide = sideOf(match);
+		if(side == matchSide)
+			throw new IllegalArgumentException(node + " and " + match + " are in the same tree.");
+		int slot = slot(node);
+		int matchSlot = slot(match);
+		if(matched[side][slot] != UNMATCHED && matched[side][slot] != matchSlot)
+			throw new IllegalStateException(node + " is already matched to " + getMatched(node) + ", but tried to match again with " + match);
+		if(matched[matchSide][matchSlot] != UNMATCHED && matched[matchSide][matchSlot] != slot)
+			throw new IllegalStateException(match + " is already matched to " + getMatched(match) + ", but tried to match again with " + node);
+		matched[side][slot] = matchSlot;
+		matched[matchSide][matchSlot] = slot;
+	}
+
+	public List<TreeNode> getUnmatchedChildren(TreeNode node) {
+		List<TreeNode> unmatched = new ArrayList<>();
+		for(TreeNode child : node.children){
+			if(!isMatched(child))
+				unmatched.add(child);
+		}
+		return unmatched;
+	}
+
+	public int getChangeType(TreeNode node) {
+		return changeType[sideOf(node)][slot(node)];
+	}
+
+	/**
+	 * @param changeType one of {@link #NODE_NOT_CHANGED}, {@link #NODE_INSERTED} and {@link #NODE_DELETED}.
+	 */
+	public void setChangeType(TreeNode node, int changeType) {
+		this.changeType[sideOf(node)][slot(node)] = (byte)changeType;
+	}
+
+	public boolean isInserted(TreeNode node) {
+		return getChangeType(node) == NODE_INSERTED;
+	}
+
+	public boolean isDeleted(TreeNode node) {
+		return getChangeType(node) == NODE_DELETED;
+	}
+
+	/**
+	 * @return true if <code>node</code> is matched with a node whose parent is not matched with its parent.
+	 */
+	public boolean isMoved(TreeNode node) {
+		TreeNode match = getMatched(node);
+		if(node.getParent() != null && match != null) {
+			return match.getParent() != null && getMatched(match.getParent()) != node.getParent();
+		}
+		return false;
+	}
+
+	public int getOffset(TreeNode node) {
+		return offset[sideOf(node)][slot(node)];
+	}
+
+	public void setOffset(TreeNode node, int offset) {
+		this.offset[sideOf(node)][slot(node)] = offset;
+	}
+}
@@ -0,0 +1,191 @@
+package tree;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.CharBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.CharacterCodingException;
+import java.nio.charset.Charset;
+import java.nio.charset.CharsetDecoder;
+import java.nio.charset.CoderResult;
+import java.nio.charset.CodingErrorAction;
+
+/**
+ * Reads source files into a char array which is reused from file to file.
+ * A file is read with a single channel read, or memory-mapped if it is large,
+ * and decoded straight into the array. The array is usually longer than the content,
+ * so only its first {@link #getLength()} characters are the content.
+ * A loader is not thread-safe, and an array it returns is valid until the next load.
+ */
+public class SourceLoader {
+	private static final String ENCODING = System.getProperty("las.encoding");
+	private static final int MAP_THRESHOLD = 1 << 20;
+	private static final int MIN_CAPACITY = 1 << 13;
+	private static final Charset UTF_16BE = Charset.forName("UTF-16BE");
+	private static final Charset UTF_16LE = Charset.forName("UTF-16LE");
+	private static final Charset UTF_8 = Charset.forName("UTF-8");
+
+	private final Charset charset;
+	private Charset lastCharset;
+	private CharsetDecoder decoder;
+	private ByteBuffer bytes;
+	private char[] chars;
+	private int length;
+
+	/**
+	 * Create a loader decoding files with the charset given by property las.encoding,
+	 * or the platform default charset.
+	 */
+	public SourceLoader() {
+		this(getDefaultCharset());
+	}
+
+	/**
+	 * @param charset a charset for files without a byte order mark.
+	 */
+	public SourceLoader(Charset charset) {
+		this.charset = charset;
+		this.bytes = ByteBuffer.allocate(MIN_CAPACITY);
+		this.chars = new char[MIN_CAPACITY];
+		this.length = 0;
+	}
+
+	/**
+	 * @return the charset given by property las.encoding, or the platform default charset.
+	 */
+	public static Charset getDefaultCharset() {
+		return ENCODING == null ? Charset.defaultCharset() : Charset.forName(ENCODING);
+	}
+
+	/**
+	 * Load the content of a file. A byte order mark, if any, decides the charset and is skipped.
+	 *
+	 * @param f a source file.
+	 * @return the reused array holding the content of <code>f</code>.
+	 * @throws IOException
+	 */
+	public char[] load(File f) throws IOException {
+		return decode(read(f));
+	}
+
+	/**
+	 * Read the bytes of a file without decoding them.
+	 *
+	 * @param f a source file.
+	 * @return a buffer holding the bytes of <code>f</code>, valid until the next read.
+	 * @throws IOException
+	 */
+	public ByteBuffer read(File f) throws IOException {
+		try(RandomAccessFile file = new RandomAccessFile(f, "r")){
+			FileChannel channel = file.getChannel();
+			long size = channel.size();
+			if(size > Integer.MAX_VALUE)
+				throw new IOException("File is too large: " + f);
+			if(size > MAP_THRESHOLD)
+				return channel.map(FileChannel.MapMode.READ_ONLY, 0, size);
+			if(bytes.capacity() < size)
+				bytes = ByteBuffer.allocate(Math.max((int)size, bytes.capacity() * 2));
+			ByteBuffer in = bytes;
+			in.clear();
+			in.limit((int)size);
+			while(in.hasRemaining() && channel.read(in) >= 0);
+			in.flip();
+			return in;
+		}
+	}
+
+	/**
+	 * Decode bytes read by {@link #read(File)} as {@link #load(File)} does.
+	 *
+	 * @param in bytes of a source file, which are consumed.
+	 * @return the reused array holding the decoded content.
+	 * @throws CharacterCodingException
+	 */
+	public char[] decode(ByteBuffer in) throws CharacterCodingException {
+		Charset cs = detectCharset(in);
+		if(decoder == null || !cs.equals(lastCharset)){
+			//Malformed input is replaced, as a reader does.
+			decoder = cs.newDecoder()
+					.onMalformedInput(CodingErrorAction.REPLACE)
+					.onUnmappableCharacter(CodingErrorAction.REPLACE);
+			lastCharset = cs;
+		}
+		int needed = (int)Math.ceil(in.remaining() * (double)decoder.maxCharsPerByte());
+		//A much larger array is not kept for a small file.
+		if(chars.length < needed || chars.length > Math.max(needed * 2, MIN_CAPACITY))
+			chars = new char[Math.max(needed, MIN_CAPACITY)];
+		CharBuffer out = CharBuffer.wrap(chars);
+		decoder.reset();
+		CoderResult result = decoder.decode(in, out, true);
+		if(result.isError())
+			result.throwException();
+		result = decoder.flush(out);
+		if(result.isError())
+			result.throwException();
+		length = out.position();
+		return chars;
+	}
+
+	/**
+	 * Find the encoding of a file for a parser which reads the file itself, reading only its byte order mark.
+	 * The parser skips a UTF-8 mark, and a UTF-16 mark is consumed by decoding, so the parser reads
+	 * the same characters as {@link #load(File)}.
+	 *
+	 * @param f a source file.
+	 * @return the name of a charset decoding <code>f</code>.
+	 * @throws IOException
+	 */
+	public String getEncoding(File f) throws IOException {
+		byte[] mark = new byte[3];
+		int n = 0;
+		try(FileInputStream in = new FileInputStream(f)){
+			int read;
+			while(n < mark.length && (read = in.read(mark, n, mark.length - n)) >= 0){
+				n += read;
+			}
+		}
+		Charset cs = detectCharset(ByteBuffer.wrap(mark, 0, n));
+		return cs == UTF_16BE || cs == UTF_16LE ? "UTF-16" : cs.name();
+	}
+
+	/**
+	 * @return the number of characters loaded by the last load.
+	 */
+	public int getLength() {
+		return length;
+	}
+
+	/**
+	 * @return the charset for files without a byte order mark.
+	 */
+	public Charset getFallbackCharset() {
+		return charset;
+	}
+
+	/**
+	 * @return the charset used by the last load.
+	 */
+	public Charset getCharset() {
+		return lastCharset;
+	}
+
+	private Charset detectCharset(ByteBuffer in) {
+		int b0 = in.remaining() > 0 ? in.get(in.position()) & 0xFF : -1;
+		int b1 = in.remaining() > 1 ? in.get(in.position() + 1) & 0xFF : -1;
+		int b2 = in.remaining() > 2 ? in.get(in.position() + 2) & 0xFF : -1;
+		if(b0 == 0xEF && b1 == 0xBB && b2 == 0xBF){
+			in.position(in.position() + 3);
+			return UTF_8;
+		}else if(b0 == 0xFE && b1 == 0xFF){
+			in.position(in.position() + 2);
+			return UTF_16BE;
+		}else if(b0 == 0xFF && b1 == 0xFE){
+			in.position(in.position() + 2);
+			return UTF_16LE;
+		}
+		return charset;
+	}
+}
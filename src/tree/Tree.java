@@ -1,6 +1,7 @@
 package tree;
 
 import java.util.ArrayList;
+import java.util.Collections;
 import java.util.Comparator;
 import java.util.HashMap;
 import java.util.List;
@@ -10,12 +11,14 @@ import java.util.TreeSet;
 public class Tree {
 	public static final String SYM_OPEN = "{";
 	public static final String SYM_CLOSE = "}";
+	private static final long HASH_PRIME = 1099511628211L;
 
 	private String name;
 	private TreeNode root;
 	private int size;
 	private Map<Integer, List<TreeNode>> depthMap;
 	private List<TreeNode> leaves;
+	private volatile Map<Long, List<TreeNode>> hashMap;
 
 	public Tree(String name){
 		this(name, new TreeNode());
@@ -37,22 +40,64 @@ public class Tree {
 		return root.bfs(false);
 	}
 
-	public void computeHashString(){
+	public void computeHash(){
 		for(TreeNode child : root.children){
-			computeHashString(child);
+			computeHash(child);
 		}
 	}
 
-	public String computeHashString(TreeNode node){
-		StringBuffer sb = new StringBuffer();
-		sb.append(Tree.SYM_OPEN);
-		sb.append(node.getLabel());
+	/**
+	 * Compute a bottom-up (Merkle) hash of the subtree rooted at <code>node</code>
+	 * from its label and the hashes of its children, in order.
+	 *
+	 * @param node the root of subtree.
+	 * @return the 64-bit hash of the subtree.
+	 */
+	public long computeHash(TreeNode node){
+		long hash = LabelTable.getDefault().getHash(node.getLabelId());
 		for(TreeNode child : node.children){
-			sb.append(computeHashString(child));
+			hash = hash * HASH_PRIME + computeHash(child);
 		}
-		sb.append(Tree.SYM_CLOSE);
-		node.setHashString(sb.toString());
-		return node.getHashString();
+		hash = hash * HASH_PRIME + node.children.size();
+		node.setHash(mix(hash));
+		return node.getHash();
+	}
+
+	private static long mix(long hash){
+		//Finalization step of MurmurHash3 to spread child hashes over all bits.
+		hash ^= hash >>> 33;
+		hash *= 0xff51afd7ed558ccdL;
+		hash ^= hash >>> 33;
+		hash *= 0xc4ceb9fe1a85ec53L;
+		hash ^= hash >>> 33;
+		return hash;
+	}
+
+	/**
+	 * Compute the vector sum of every node in one pass, without building vectors.
+	 */
+	public void computeVectorSums(){
+		for(TreeNode child : root.children){
+			computeVectorSum(child);
+		}
+	}
+
+	/**
+	 * @return the number of labels <code>node</code> contributes to the vector of its parent.
+	 */
+	private int computeVectorSum(TreeNode node){
+		//Vector sums of the node and its first i children, following TreeVector.of().
+		int[] prefix = new int[node.children.size() + 1];
+		prefix[0] = 1;
+		for(int i=0; i<node.children.size(); i++){
+			prefix[i+1] = prefix[i] + computeVectorSum(node.children.get(i));
+		}
+		node.setVectorSum(prefix[node.children.size()]);
+		int propagated = 0;
+		for(int p=0; p<node.getPropagationCount(); p++){
+			propagated += prefix[node.getPropagatedChildren(p)];
+		}
+		return propagated;
 	}
 
 	public void computeDepth(){
@@ -68,10 +113,20 @@ public class Tree {
 		}
 	}
 
-	public List<TreeNode> getUnmatchedLeaves(){
+	/**
+	 * Drop references to AST nodes, so that the AST can be garbage collected while this tree is in use.
+	 */
+	public void releaseAST(){
+		root.releaseASTNode();
+		for(TreeNode node : dfs()){
+			node.releaseASTNode();
+		}
+	}
+
+	public List<TreeNode> getUnmatchedLeaves(Mapping mapping){
 		List<TreeNode> unmatched = new ArrayList<>();
 		for(TreeNode leaf : leaves){
-			if(!leaf.isMatched())
+			if(!mapping.isMatched(leaf))
 				unmatched.add(leaf);
 		}
 		return unmatched;
@@ -80,7 +135,7 @@ public class Tree {
 	public List<TreeNode> getAdjacentNodes(TreeNode node, int dist){
 		List<TreeNode> adjNodes = new ArrayList<>();
 		List<TreeNode> nodes = node.getParent() != null ? node.getParent().children : depthMap.get(node.getDepth());
-		int index = nodes.indexOf(node);
+		int index = node.getParent() != null ? node.indexInParent() : nodes.indexOf(node);
 		//Add nodes near the given node which belong to the same parent.
 		for (int j = index + 1; j <= index + dist && j < nodes.size(); j++) {
 			adjNodes.add(nodes.get(j));
@@ -91,13 +146,13 @@ public class Tree {
 		return adjNodes;
 	}
 
-	public List<TreeNode> getNearDepthNodes(List<TreeNode> nodes, int depth, int dist){
+	public List<TreeNode> getNearDepthNodes(Mapping mapping, List<TreeNode> nodes, int depth, int dist){
 		List<TreeNode> nearDepthNodes = new ArrayList<>();
 		//Add nodes above/below the given nodes.
 		List<TreeNode> adjParents = new ArrayList<>();
 		List<TreeNode> adjChildren = new ArrayList<>();
 		for (int i = 0; i < depth; i++) {
-			adjChildren = getChildren(adjChildren);
+			adjChildren = getChildren(mapping, adjChildren);
 			nearDepthNodes.addAll(adjChildren);
 			adjParents = getParents(adjParents, dist);
 			nearDepthNodes.addAll(adjParents);
@@ -130,10 +185,10 @@ public class Tree {
 		return adjParents;
 	}
 
-	private List<TreeNode> getChildren(List<TreeNode> nodes) {
+	private List<TreeNode> getChildren(Mapping mapping, List<TreeNode> nodes) {
 		List<TreeNode> adjChildren = new ArrayList<>();
 		for(TreeNode node : nodes){
-			adjChildren.addAll(node.getUnmatchedChildren());
+			adjChildren.addAll(mapping.getUnmatchedChildren(node));
 		}
 		return adjChildren;
 	}
@@ -173,4 +228,27 @@ public class Tree {
 	public List<TreeNode> getNodesAtDepth(int depth){
 		return depthMap.get(depth);
 	}
+
+	/**
+	 * @param hash a subtree hash.
+	 * @return non-leaf nodes whose subtrees have <code>hash</code> in preorder, or an empty list.
+	 */
+	public List<TreeNode> getNodesWithHash(long hash){
+		Map<Long, List<TreeNode>> hashMap = this.hashMap;
+		if(hashMap == null){
+			//Built on first use, after hashes are computed. Diffs sharing this tree may build it at once.
+			hashMap = new HashMap<>();
+			for(TreeNode node : dfs()){
+				if(!node.isLeaf()){
+					if(!hashMap.containsKey(node.getHash())){
+						hashMap.put(node.getHash(), new ArrayList<TreeNode>(1));
+					}
+					hashMap.get(node.getHash()).add(node);
+				}
+			}
+			this.hashMap = hashMap;
+		}
+		List<TreeNode> nodes = hashMap.get(hash);
+		return nodes == null ? Collections.<TreeNode>emptyList() : nodes;
+	}
 }
@@ -1,69 +1,298 @@
 package tree;
 
-import java.io.BufferedReader;
 import java.io.File;
-import java.io.FileInputStream;
 import java.io.IOException;
-import java.io.InputStreamReader;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.Hashtable;
+import java.util.List;
 import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Future;
 
 import org.eclipse.jdt.core.JavaCore;
 import org.eclipse.jdt.core.dom.AST;
 import org.eclipse.jdt.core.dom.ASTParser;
 import org.eclipse.jdt.core.dom.CompilationUnit;
+import org.eclipse.jdt.core.dom.FileASTRequestor;
 
 public class TreeBuilder {
 
+	private static final Map<String, String> COMPILER_OPTIONS = computeCompilerOptions();
+
+	private static Map<String, String> computeCompilerOptions() {
+		@SuppressWarnings("unchecked")
+		Hashtable<String, String> options = JavaCore.getOptions();
+		JavaCore.setComplianceOptions(JavaCore.VERSION_1_8, options);
+		return options;
+	}
+
 	public static Tree buildTreeFromFile(File f) throws IOException {
-		String source = readContent(f);
-		Tree tree = buildTreeFromSource(source);
+		return buildTreeFromFile(f, new SourceLoader());
+	}
+
+	/**
+	 * Build a tree of a file loaded by a given loader, whose buffers are reused from file to file.
+	 *
+	 * @param f a source file.
+	 * @param loader a loader used by the current thread only.
+	 * @return the tree of <code>f</code>.
+	 * @throws IOException
+	 */
+	public static Tree buildTreeFromFile(File f, SourceLoader loader) throws IOException {
+		return buildTreeFromFile(f, loader, JavaCodeVisitor.ENABLE_GUMTREE_AST);
+	}
+
+	/**
+	 * @param f a source file.
+	 * @param loader a loader used by the current thread only.
+	 * @param gumTreeAST whether to build a GumTree AST.
+	 * @return the tree of <code>f</code>.
+	 * @throws IOException
+	 */
+	public static Tree buildTreeFromFile(File f, SourceLoader loader, boolean gumTreeAST) throws IOException {
+		return buildTreeFromFile(f, loader, gumTreeAST, false, null);
+	}
+
+	/**
+	 * Build a tree of a file, or load it from a cache if the same content was built before.
+	 *
+	 * @param f a source file.
+	 * @param loader a loader used by the current thread only.
+	 * @param gumTreeAST whether to build a GumTree AST.
+	 * @param releaseAST whether nodes release their AST nodes once the tree is built.
+	 * @param cache a cache of trees, or null. Cached trees have no AST nodes, so a cache needs <code>releaseAST</code>.
+	 * @return the tree of <code>f</code>.
+	 * @throws IOException
+	 */
+	public static Tree buildTreeFromFile(File f, SourceLoader loader, boolean gumTreeAST, boolean releaseAST,
+			TreeCache cache) throws IOException {
+		checkCache(releaseAST, cache);
+		Tree tree;
+		if(cache == null){
+			tree = buildTreeFromCompilationUnit(getCompilationUnit(loader.load(f), loader.getLength()), gumTreeAST, releaseAST);
+		}else{
+			ByteBuffer content = loader.read(f);
+			String key = cache.key(content, loader.getFallbackCharset(), gumTreeAST);
+			CompactTree cached = cache.get(key);
+			if(cached != null){
+				tree = cached.toTree();
+			}else{
+				tree = buildTreeFromCompilationUnit(getCompilationUnit(loader.decode(content), loader.getLength()), gumTreeAST, true);
+				cache.put(key, CompactTree.of(tree));
+			}
+		}
 		tree.setName(f.getName());
 
 		return tree;
 	}
 
+	private static void checkCache(boolean releaseAST, TreeCache cache) {
+		if(cache != null && !releaseAST)
+			throw new IllegalArgumentException("Cached trees have no AST nodes, so a cache needs AST nodes released.");
+	}
+
 	public static Tree buildTreeFromFile(File f,  String[] classPath, String[] sourcePath) throws IOException {
-		String source = readContent(f);
-		Tree tree = new Tree("");
-		CompilationUnit cu = getCompilationUnit(source, classPath, sourcePath);
-		JavaCodeVisitor visitor = new JavaCodeVisitor(tree);
-		cu.accept(visitor);
-		tree.computeDepth();
-		tree.computeHashString();
+		SourceLoader loader = new SourceLoader();
+		char[] source = trim(loader.load(f), loader.getLength());
+		Tree tree = buildTreeFromCompilationUnit(getCompilationUnit(source, classPath, sourcePath));
 		tree.setName(f.getName());
 
 		return tree;
 	}
 
-	public static Tree buildTreeFromSource(String source) throws IOException {
-		Tree tree = new Tree("");
-		CompilationUnit cu = getCompilationUnit(source);
-		JavaCodeVisitor visitor = new JavaCodeVisitor(tree);
-		cu.accept(visitor);
-		tree.computeDepth();
-		tree.computeHashString();
+	/**
+	 * Build the trees of two versions of a file concurrently.
+	 * Trees do not share any state but the thread-safe label table, so they can be built on separate threads.
+	 *
+	 * @param before the file before a change.
+	 * @param after the file after a change.
+	 * @param executor an executor running the builds.
+	 * @return futures of the before and after trees, in this order.
+	 */
+	public static List<Future<Tree>> buildPairAsync(File before, File after, ExecutorService executor) {
+		return buildPairAsync(before, after, JavaCodeVisitor.ENABLE_GUMTREE_AST, false, null, executor);
+	}
 
-		return tree;
+	/**
+	 * Build the trees of two versions of a file concurrently, loading them from a cache if possible.
+	 *
+	 * @param before the file before a change.
+	 * @param after the file after a change.
+	 * @param gumTreeAST whether to build GumTree ASTs.
+	 * @param releaseAST whether nodes release their AST nodes once a tree is built.
+	 * @param cache a cache of trees, or null. Cached trees have no AST nodes, so a cache needs <code>releaseAST</code>.
+	 * @param executor an executor running the builds.
+	 * @return futures of the before and after trees, in this order.
+	 */
+	public static List<Future<Tree>> buildPairAsync(File before, File after, boolean gumTreeAST, boolean releaseAST,
+			TreeCache cache, ExecutorService executor) {
+		checkCache(releaseAST, cache);
+		List<Future<Tree>> trees = new ArrayList<>(2);
+		trees.add(executor.submit(buildTask(before, gumTreeAST, releaseAST, cache)));
+		trees.add(executor.submit(buildTask(after, gumTreeAST, releaseAST, cache)));
+
+		return trees;
+	}
+
+	private static Callable<Tree> buildTask(final File f, final boolean gumTreeAST, final boolean releaseAST,
+			final TreeCache cache) {
+		return new Callable<Tree>() {
+			@Override
+			public Tree call() throws IOException {
+				return buildTreeFromFile(f, new SourceLoader(), gumTreeAST, releaseAST, cache);
+			}
+		};
+	}
+
+	public static Tree buildTreeFromSource(String source) throws IOException {
+		return buildTreeFromCompilationUnit(getCompilationUnit(source));
 	}
 
 	public static Tree buildTreeFromCompilationUnit(CompilationUnit cu){
+		return buildTreeFromCompilationUnit(cu, JavaCodeVisitor.ENABLE_GUMTREE_AST);
+	}
+
+	public static Tree buildTreeFromCompilationUnit(CompilationUnit cu, boolean gumTreeAST){
+		return buildTreeFromCompilationUnit(cu, gumTreeAST, false);
+	}
+
+	/**
+	 * @param cu a compilation unit.
+	 * @param gumTreeAST whether to build a GumTree AST.
+	 * @param releaseAST whether nodes release their AST nodes once the tree is built.
+	 * @return the tree of <code>cu</code>.
+	 */
+	public static Tree buildTreeFromCompilationUnit(CompilationUnit cu, boolean gumTreeAST, boolean releaseAST){
 		Tree tree = new Tree("");
-		JavaCodeVisitor visitor = new JavaCodeVisitor(tree);
+		JavaCodeVisitor visitor = new JavaCodeVisitor(tree, gumTreeAST);
 		cu.accept(visitor);
 		tree.computeDepth();
-		tree.computeHashString();
+		tree.computeHash();
+		tree.computeVectorSums();
+		//Nodes keep what is needed for differencing, so the AST is not needed any more.
+		if(releaseAST)
+			tree.releaseAST();
 
 		return tree;
 	}
 
-	public static CompilationUnit getCompilationUnit(String source, String[] classPath, String[] sourcePath){
+	/**
+	 * Build trees of given files with a single parser, without resolving bindings.
+	 *
+	 * @param files source files.
+	 * @param requestor a requestor receiving each tree as soon as it is built.
+	 * @throws IOException
+	 */
+	public static void buildTrees(Collection<File> files, TreeRequestor requestor) throws IOException {
+		buildTrees(files, JavaCodeVisitor.ENABLE_GUMTREE_AST, false, null, requestor);
+	}
+
+	/**
+	 * Build trees of given files with a single parser, without resolving bindings.
+	 * Trees of cached files are loaded from a cache, and the other files are parsed in a batch.
+	 *
+	 * @param files source files.
+	 * @param gumTreeAST whether to build GumTree ASTs.
+	 * @param releaseAST whether nodes release their AST nodes once a tree is built.
+	 * @param cache a cache of trees, or null. Cached trees have no AST nodes, so a cache needs <code>releaseAST</code>.
+	 * @param requestor a requestor receiving each tree as soon as it is built.
+	 * @throws IOException
+	 */
+	public static void buildTrees(Collection<File> files, boolean gumTreeAST, boolean releaseAST, TreeCache cache,
+			TreeRequestor requestor) throws IOException {
+		checkCache(releaseAST, cache);
+		buildTrees(files, new String[0], new String[0], false, gumTreeAST, releaseAST, cache, requestor);
+	}
+
+	/**
+	 * Build trees of given files with a single parser and environment, resolving bindings.
+	 *
+	 * @param files source files.
+	 * @param classPath class path entries used to resolve bindings.
+	 * @param sourcePath source path entries used to resolve bindings.
+	 * @param requestor a requestor receiving each tree as soon as it is built.
+	 * @throws IOException
+	 */
+	public static void buildTrees(Collection<File> files, String[] classPath, String[] sourcePath, TreeRequestor requestor) throws IOException {
+		//Trees with bindings are not cached.
+		buildTrees(files, classPath, sourcePath, true, JavaCodeVisitor.ENABLE_GUMTREE_AST, false, null, requestor);
+	}
+
+	private static void buildTrees(Collection<File> files, String[] classPath, String[] sourcePath, boolean resolveBindings,
+			final boolean gumTreeAST, final boolean releaseAST, final TreeCache cache, final TreeRequestor requestor) throws IOException {
+		final SourceLoader loader = new SourceLoader();
+		final Map<String, File> fileMap = new HashMap<>();
+		//Cache keys of files to parse, by their paths.
+		final Map<String, String> keys = new HashMap<>();
+		List<String> paths = new ArrayList<>(files.size());
+		List<String> encodings = new ArrayList<>(files.size());
+		for(File f : files){
+			if(cache != null){
+				ByteBuffer content = loader.read(f);
+				String key = cache.key(content, loader.getFallbackCharset(), gumTreeAST);
+				CompactTree cached = cache.get(key);
+				if(cached != null){
+					Tree tree = cached.toTree();
+					tree.setName(f.getName());
+					requestor.acceptTree(f, tree);
+					continue;
+				}
+				keys.put(f.getPath(), key);
+			}
+			paths.add(f.getPath());
+			//The parser reads files itself, and a loader finds the charset it would decode them with.
+			encodings.add(loader.getEncoding(f));
+			fileMap.put(f.getPath(), f);
+		}
+		if(paths.isEmpty())
+			return;
+		final IOException[] error = new IOException[1];
+		ASTParser parser = newParser();
+		parser.setEnvironment(classPath, sourcePath, null, true);
+		parser.setResolveBindings(resolveBindings);
+		parser.createASTs(paths.toArray(new String[paths.size()]), encodings.toArray(new String[encodings.size()]),
+				new String[0], new FileASTRequestor() {
+			@Override
+			public void acceptAST(String sourceFilePath, CompilationUnit cu) {
+				File f = fileMap.get(sourceFilePath);
+				Tree tree = buildTreeFromCompilationUnit(cu, gumTreeAST, releaseAST);
+				String key = keys.get(sourceFilePath);
+				if(key != null && error[0] == null){
+					try{
+						cache.put(key, CompactTree.of(tree));
+					}catch(IOException e){
+						error[0] = e;
+					}
+				}
+				tree.setName(f.getName());
+				requestor.acceptTree(f, tree);
+			}
+		}, null);
+		if(error[0] != null)
+			throw error[0];
+	}
+
+	private static ASTParser newParser() {
 		ASTParser parser = ASTParser.newParser(AST.JLS8);
 		parser.setKind(ASTParser.K_COMPILATION_UNIT);
+		//Options are computed once, and the parser only reads them.
+		parser.setCompilerOptions(COMPILER_OPTIONS);
+		return parser;
+	}
+
+	public static CompilationUnit getCompilationUnit(String source, String[] classPath, String[] sourcePath){
+		return getCompilationUnit(source.toCharArray(), classPath, sourcePath);
+	}
+
+	public static CompilationUnit getCompilationUnit(char[] source, String[] classPath, String[] sourcePath){
+		ASTParser parser = newParser();
 		parser.setEnvironment(classPath, sourcePath, null, true);
-		Map options = JavaCore.getOptions();
-		JavaCore.setComplianceOptions(JavaCore.VERSION_1_8, options);
-		parser.setCompilerOptions(options);
-		parser.setSource(source.toCharArray());
+		parser.setSource(source);
 		parser.setResolveBindings(true);
 		parser.setUnitName("Temp.java");
 		CompilationUnit cu = (CompilationUnit)parser.createAST(null);
@@ -72,33 +301,41 @@ public class TreeBuilder {
 	}
 
 	public static CompilationUnit getCompilationUnit(File f) throws IOException {
-		return getCompilationUnit(readContent(f));
+		SourceLoader loader = new SourceLoader();
+		return getCompilationUnit(loader.load(f), loader.getLength());
 	}
 
 	public static CompilationUnit getCompilationUnit(String source) {
-		ASTParser parser = ASTParser.newParser(AST.JLS8);
-		parser.setKind(ASTParser.K_COMPILATION_UNIT);
-		Map options = JavaCore.getOptions();
-		JavaCore.setComplianceOptions(JavaCore.VERSION_1_8, options);
-		parser.setCompilerOptions(options);
-		parser.setSource(source.toCharArray());
+		return getCompilationUnit(source.toCharArray());
+	}
+
+	/**
+	 * @param source source code, which the parser uses without a copy.
+	 * @return a compilation unit of <code>source</code>.
+	 */
+	public static CompilationUnit getCompilationUnit(char[] source) {
+		ASTParser parser = newParser();
+		parser.setSource(source);
 		CompilationUnit cu = (CompilationUnit)parser.createAST(null);
 
 		return cu;
 	}
 
-	private static String readContent(File f) throws IOException {
-		StringBuffer sb = new StringBuffer();
-		String content;
-		BufferedReader br = new BufferedReader(new InputStreamReader(new FileInputStream(f)));
-		char[] cbuf = new char[500];
-		int len = 0;
-		while((len=br.read(cbuf))>-1){
-			sb.append(cbuf, 0, len);
-		}
-		br.close();
-		content = sb.toString();
-		return content;
+	/**
+	 * @param source an array starting with source code, such as one returned by a {@link SourceLoader}.
+	 * @param length the number of characters of the source code.
+	 * @return a compilation unit of the first <code>length</code> characters of <code>source</code>.
+	 */
+	public static CompilationUnit getCompilationUnit(char[] source, int length) {
+		return getCompilationUnit(trim(source, length));
+	}
+
+	/**
+	 * The parser reads a whole array, and offsets of the compilation unit would cover characters after
+	 * the source code, so those are not given to it.
+	 */
+	private static char[] trim(char[] source, int length) {
+		return source.length == length ? source : Arrays.copyOf(source, length);
 	}
 
 }
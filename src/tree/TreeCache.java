@@ -0,0 +1,108 @@
+package tree;
+
+import java.io.BufferedOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.Charset;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+
+/**
+ * A directory of trees in the binary format of {@link CompactTree}, keyed by the SHA-256 of
+ * source content and the configuration of tree building. A key does not depend on a file name or path,
+ * so the same content is parsed once however many versions of a history share it.
+ * A cache can be shared by threads and processes, as entries are written to a temporary file and renamed.
+ */
+public class TreeCache {
+	private static final String SUFFIX = ".tree";
+	private static final char[] HEX = "0123456789abcdef".toCharArray();
+
+	private final File dir;
+
+	public TreeCache(File dir) {
+		this.dir = dir;
+	}
+
+	/**
+	 * @param content bytes of a source file, which are not consumed.
+	 * @param charset the charset used to decode <code>content</code>.
+	 * @param gumTreeAST whether the tree is a GumTree AST.
+	 * @return the key of a tree built from <code>content</code> with the given configuration.
+	 */
+	public String key(ByteBuffer content, Charset charset, boolean gumTreeAST) {
+		MessageDigest digest;
+		try{
+			digest = MessageDigest.getInstance("SHA-256");
+		}catch(NoSuchAlgorithmException e){
+			//Every platform has SHA-256.
+			throw new IllegalStateException(e);
+		}
+		String configuration = CompactTree.FORMAT_VERSION + ";" + JavaCodeVisitor.getConfiguration(gumTreeAST) + ";" + charset.name() + ";";
+		digest.update(configuration.getBytes(Charset.forName("UTF-8")));
+		digest.update(content.duplicate());
+		byte[] hash = digest.digest();
+		char[] key = new char[hash.length * 2];
+		for(int i=0; i<hash.length; i++){
+			key[i*2] = HEX[(hash[i] >> 4) & 0xF];
+			key[i*2+1] = HEX[hash[i] & 0xF];
+		}
+		return new String(key);
+	}
+
+	/**
+	 * Read a cached tree. An entry which cannot be read, such as one truncated or corrupted, is deleted
+	 * and taken as not cached, so the tree is built and cached again.
+	 *
+	 * @param key a key given by {@link #key(ByteBuffer, Charset, boolean)}.
+	 * @return the tree of <code>key</code> read through a memory-mapped file, or null if it is not cached.
+	 */
+	public CompactTree get(String key) {
+		File f = file(key);
+		if(!f.isFile())
+			return null;
+		try(RandomAccessFile file = new RandomAccessFile(f, "r")){
+			FileChannel channel = file.getChannel();
+			return CompactTree.read(channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size()));
+		}catch(IOException e){
+			try{
+				Files.deleteIfExists(f.toPath());
+			}catch(IOException deleteError){
+				//The entry is replaced when the tree is cached again.
+			}
+			return null;
+		}
+	}
+
+	/**
+	 * @param key a key given by {@link #key(ByteBuffer, Charset, boolean)}.
+	 * @param tree the tree to cache.
+	 * @throws IOException
+	 */
+	public void put(String key, CompactTree tree) throws IOException {
+		File f = file(key);
+		File parent = f.getParentFile();
+		if(!parent.isDirectory() && !parent.mkdirs() && !parent.isDirectory())
+			throw new IOException("Cannot create cache directory " + parent + ".");
+		File tmp = File.createTempFile(key, ".tmp", parent);
+		try{
+			try(OutputStream out = new BufferedOutputStream(new FileOutputStream(tmp))){
+				tree.write(out);
+			}
+			Files.move(tmp.toPath(), f.toPath(), StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+		}finally{
+			Files.deleteIfExists(tmp.toPath());
+		}
+	}
+
+	private File file(String key) {
+		//Entries are spread over subdirectories named by the first two characters.
+		return new File(new File(dir, key.substring(0, 2)), key + SUFFIX);
+	}
+}
@@ -1,63 +1,112 @@
 package tree;
 
+import java.io.IOException;
+import java.io.ObjectInputStream;
+import java.io.ObjectOutputStream;
 import java.io.Serializable;
 import java.util.ArrayList;
 import java.util.List;
 
 import org.eclipse.jdt.core.dom.ASTNode;
+import org.eclipse.jdt.core.dom.BodyDeclaration;
 import org.eclipse.jdt.core.dom.CompilationUnit;
+import org.eclipse.jdt.core.dom.StructuralPropertyDescriptor;
 
 public class TreeNode implements Serializable {
-	private static final long serialVersionUID = -5799914737841118887L;
+	private static final long serialVersionUID = 933218924615680650L;
 	public static final String DELIM = "|#|";
-	public static final int NODE_NOT_CHANGED = 0;
-	public static final int NODE_INSERTED = 1;
-	public static final int NODE_DELETED = 2;
+	private static final boolean[] BODY_DECLARATIONS = new boolean[128];
+
+	static {
+		for(int type=1; type<BODY_DECLARATIONS.length; type++){
+			try{
+				BODY_DECLARATIONS[type] = BodyDeclaration.class.isAssignableFrom(ASTNode.nodeClassForType(type));
+			}catch(IllegalArgumentException e){
+				//Not a valid node type.
+			}
+		}
+	}
 
 	private int id;
 	private transient ASTNode astNode;
-	private String label;
-	private transient String hashString;
+	private transient int labelId;
+	private int type;
+	private int startPosition;
+	private int length;
+	private int location;
+	private int statementLocation;
+	private long hash;
 	private int depth;
-	private TreeVector vector;
-	private TreeNode matched;
+	private transient TreeVector vector;
+	private int vectorSum = -1;
+	private int propagatedChildren;
+	private int[] morePropagatedChildren;
 	private TreeNode parent;
+	//Index in the children of parent, see indexInParent().
+	private int index;
 	public List<TreeNode> children;
-	private int changeType;
 	private int lineNumber;
-	private int offset;
-	private transient Candidates candidates;
 
 	public TreeNode(){
 		this(-1, "root", null);
 	}
 
 	public TreeNode(int id, String label, ASTNode node){
+		this(id, LabelTable.getDefault().intern(label), node);
+	}
+
+	public TreeNode(int id, int labelId, ASTNode node){
 		super();
 		this.id = id;
 		this.astNode = node;
-		this.label = label;
-		this.hashString = "";
+		this.labelId = labelId;
+		this.type = node != null ? node.getNodeType() : -1;
+		this.startPosition = node != null ? node.getStartPosition() : -1;
+		this.length = node != null ? node.getLength() : 0;
+		this.location = node != null ? LocationTable.idOf(node.getLocationInParent()) : LocationTable.NO_LOCATION;
+		//An expression of an ExpressionStatement takes the place of the statement.
+		this.statementLocation = node != null && node.getParent() != null
+				&& node.getParent().getNodeType() == ASTNode.EXPRESSION_STATEMENT
+				? LocationTable.idOf(node.getParent().getLocationInParent()) : this.location;
+		this.hash = 0L;
 		this.depth = -1;
-		this.vector = new TreeVector(label);
-		this.matched = null;
+		this.vector = null;
+		this.propagatedChildren = -1;
 		this.parent = null;
 		this.children = new ArrayList<>();
 		this.lineNumber = computeLineNumber();
-		this.offset = 0;
-		this.candidates = new Candidates();
+	}
+
+	/**
+	 * Create a node which is not backed by an AST node, with attributes taken from a {@link CompactTree}
+	 * or a decoded edit script.
+	 */
+	public TreeNode(int id, int labelId, int type, int startPosition, int length, int lineNumber,
+			int location, int statementLocation){
+		this(id, labelId, null);
+		this.type = type;
+		this.startPosition = startPosition;
+		this.length = length;
+		this.lineNumber = lineNumber;
+		this.location = location;
+		this.statementLocation = statementLocation;
 	}
 
 	public boolean isLeaf(){
 		return children.size() == 0;
 	}
 
-	public boolean match(TreeNode node) {
+	/**
+	 * @param node a node of another tree.
+	 * @param mapping matches of this tree and the tree of <code>node</code>.
+	 * @return true if the subtrees of this node and <code>node</code> have the same hash.
+	 */
+	public boolean match(TreeNode node, Mapping mapping) {
 		if(node != null && this.getType() == node.getType()) {
 			//For Blocks, parent must be matched too, unless it's not a block.
 			if(this.getType() == ASTNode.BLOCK) {
 				boolean parentCheck = this.parent != null && node.getParent() != null &&
-						this.parent.isMatched() && this.parent.getMatched() == node.getParent();
+						mapping.getMatched(this.parent) == node.getParent();
 				boolean blockParent = this.parent != null && this.parent.getType() == ASTNode.BLOCK;
 				return (blockParent || parentCheck) && this.getHash() == node.getHash();
 			}
@@ -66,6 +115,25 @@ public class TreeNode implements Serializable {
 		return false;
 	}
 
+	/**
+	 * Check whether the subtree rooted at this node is structurally identical to the one rooted at <code>node</code>.
+	 * This can be used to rule out hash collisions after {@link #match(TreeNode)}.
+	 *
+	 * @param node a node to compare.
+	 * @return true if both subtrees have the same labels in the same shape.
+	 */
+	public boolean isIsomorphic(TreeNode node) {
+		if(this.hash != node.getHash()
+				|| this.children.size() != node.children.size()
+				|| this.labelId != node.getLabelId())
+			return false;
+		for(int i=0; i<children.size(); i++){
+			if(!children.get(i).isIsomorphic(node.children.get(i)))
+				return false;
+		}
+		return true;
+	}
+
 	public int getId() {
 		return id;
 	}
@@ -75,19 +143,23 @@ public class TreeNode implements Serializable {
 	}
 
 	public String getLabel() {
-		return label;
+		return LabelTable.getDefault().getLabel(labelId);
 	}
 
 	public void setLabel(String label) {
-		this.label = label;
+		this.labelId = LabelTable.getDefault().intern(label);
 	}
 
-	public String getHashString() {
-		return hashString;
+	public int getLabelId() {
+		return labelId;
 	}
 
-	public void setHashString(String hashString) {
-		this.hashString = hashString;
+	public long getHash() {
+		return hash;
+	}
+
+	public void setHash(long hash) {
+		this.hash = hash;
 	}
 
 	public TreeNode getParent() {
@@ -102,30 +174,79 @@ public class TreeNode implements Serializable {
 		return depth;
 	}
 
+	/**
+	 * @return the sum of counts in the vector of this node, without building the vector if it is precomputed.
+	 * @see Tree#computeVectorSums()
+	 */
+	public int getVectorSum() {
+		return vectorSum < 0 ? getVector().sum() : vectorSum;
+	}
+
+	public void setVectorSum(int vectorSum) {
+		this.vectorSum = vectorSum;
+	}
+
 	public void setDepth(int depth) {
 		this.depth = depth;
 	}
 
 	public int getType(){
-		return astNode != null ? astNode.getNodeType() : -1;
+		return type;
 	}
 
 	public int getStartPosition(){
-		return astNode.getStartPosition();
+		return startPosition;
 	}
 
 	public int getLength(){
-		return astNode.getLength();
+		return length;
 	}
 
 	public int getEndPosition(){
-		return astNode.getStartPosition() + astNode.getLength();
+		return startPosition + length;
+	}
+
+	public boolean isBodyDeclaration(){
+		return type > 0 && type < BODY_DECLARATIONS.length && BODY_DECLARATIONS[type];
 	}
 
+	/**
+	 * @return the location of the AST node in its parent.
+	 */
+	public StructuralPropertyDescriptor getLocationInParent(){
+		return LocationTable.get(location);
+	}
+
+	public int getLocationId(){
+		return location;
+	}
+
+	/**
+	 * @return the location of the AST node in its parent, or the location of its parent
+	 * if the parent is an ExpressionStatement.
+	 */
+	public StructuralPropertyDescriptor getStatementLocation(){
+		return LocationTable.get(statementLocation);
+	}
+
+	public int getStatementLocationId(){
+		return statementLocation;
+	}
+
+	/**
+	 * @return the AST node of this node, or null if it is released or this node is not built from an AST.
+	 */
 	public ASTNode getASTNode(){
 		return astNode;
 	}
 
+	/**
+	 * Drop the reference to the AST node. Attributes of the AST node used for differencing are kept.
+	 */
+	public void releaseASTNode(){
+		this.astNode = null;
+	}
+
 	public int computeLineNumber(){
 		if(astNode != null && astNode.getRoot() instanceof CompilationUnit){
 			return ((CompilationUnit)astNode.getRoot()).getLineNumber(astNode.getStartPosition());
@@ -134,64 +255,83 @@ public class TreeNode implements Serializable {
 		}
 	}
 
-	public int getHash(){
-		return hashString.hashCode();
-	}
-
-	public boolean isMatched() {
-		return matched != null;
-	}
-
-	public void setMatched(TreeNode matched){
-		if(this.matched != null && matched != this.matched){
-			System.err.println(this + " is already matched to "+this.matched+", but tried to match again with "+matched);
-			StackTraceElement[] trace = Thread.currentThread().getStackTrace();
-			for (StackTraceElement traceElement : trace)
-				System.err.println("\tat " + traceElement);
-			System.exit(1);
+	/**
+	 * @return the index of this node in the children of its parent, or -1 for the root.
+	 */
+	public int indexInParent() {
+		if(parent == null)
+			return -1;
+		List<TreeNode> siblings = parent.children;
+		//Children can be changed without addChild(), so the stored index is repaired if it is stale.
+		if(index < 0 || index >= siblings.size() || siblings.get(index) != this)
+			index = siblings.indexOf(this);
+		return index;
+	}
+
+	/**
+	 * The vector is built on first use, as most nodes are matched without computing similarity.
+	 *
+	 * @return the label vector of the subtree rooted at this node.
+	 */
+	public TreeVector getVector(){
+		TreeVector vector = this.vector;
+		if(vector == null){
+			vector = TreeVector.of(this);
+			this.vector = vector;
 		}
-		this.matched = matched;
+		return vector;
 	}
 
-	public void unmatch() {
-		this.matched = null;
+	/**
+	 * @return the label vector of this node if it is built, or null.
+	 */
+	TreeVector getBuiltVector(){
+		return vector;
 	}
 
-	public TreeNode getMatched(){
-		return matched;
+	/**
+	 * @return the number of times labels of this node are propagated to its parent.
+	 */
+	public int getPropagationCount(){
+		if(propagatedChildren < 0)
+			return 0;
+		return morePropagatedChildren == null ? 1 : morePropagatedChildren.length + 1;
 	}
 
-	public int indexInParent() {
-		if(parent == null)
-			return -1;
-		return parent.children.indexOf(this);
+	/**
+	 * @param index the index of a propagation.
+	 * @return the number of leading children whose labels were included in the propagation.
+	 */
+	public int getPropagatedChildren(int index){
+		return index == 0 ? propagatedChildren : morePropagatedChildren[index-1];
 	}
 
-	public TreeVector getVector(){
-		return vector;
+	public void addPropagation(int propagatedChildren){
+		if(this.propagatedChildren < 0){
+			this.propagatedChildren = propagatedChildren;
+		}else{
+			int count = morePropagatedChildren == null ? 0 : morePropagatedChildren.length;
+			int[] more = new int[count+1];
+			if(count > 0)
+				System.arraycopy(morePropagatedChildren, 0, more, 0, count);
+			more[count] = propagatedChildren;
+			morePropagatedChildren = more;
+		}
 	}
 
 	public double similarity(TreeNode node){
-		return this.vector.similarity(node.getVector());
+		return this.getVector().similarity(node.getVector());
 	}
 
 	public void addChild(TreeNode child){
+		child.index = children.size();
 		children.add(child);
 		child.setParent(this);
 	}
 
-	public List<TreeNode> getUnmatchedChildren() {
-		List<TreeNode> unmatched = new ArrayList<>();
-		for(TreeNode child : children){
-			if(!child.isMatched())
-				unmatched.add(child);
-		}
-		return unmatched;
-	}
-
 	@Override
 	public String toString() {
-		return label + "(" + lineNumber + ")";
+		return getLabel() + "(" + lineNumber + ")";
 	}
 
 	public String toTreeString(){
@@ -209,33 +349,10 @@ public class TreeNode implements Serializable {
 		return sb.toString();
 	}
 
-	public int getChangeType() {
-		return changeType;
-	}
-
-	public void setChangeType(int changeType) {
-		this.changeType = changeType;
-	}
-
 	public int getLineNumber(){
 		return lineNumber;
 	}
 
-	public boolean isInserted(){
-		return changeType == NODE_INSERTED;
-	}
-
-	public boolean isDeleted(){
-		return changeType == NODE_DELETED;
-	}
-
-	public boolean isMoved() {
-		if(parent != null && matched != null) {
-			return matched.getParent() != null && matched.getParent().getMatched() != parent;
-		}
-		return false;
-	}
-
 	@Override
 	public boolean equals(Object obj) {
 		if(obj instanceof TreeNode){
@@ -244,28 +361,6 @@ public class TreeNode implements Serializable {
 		return false;
 	}
 
-	public int getOffset() {
-		return offset;
-	}
-
-	public void setOffset(int offset) {
-		this.offset = offset;
-	}
-
-	public void addCandidate(TreeNode c, double similarity){
-		this.candidates.addCandidate(c, similarity);
-	}
-
-	public TreeNode getBestMatch(){
-		Candidate best = this.candidates.peek();
-		return best == null ? null : best.node;
-	}
-
-	public TreeNode nextMatch(){
-		this.candidates.remove();
-		Candidate next = this.candidates.peek();
-		return next == null ? null : next.node;
-	}
 
 	public TreeNode getLeft(){
 		if(this.parent == null){
@@ -329,4 +424,15 @@ public class TreeNode implements Serializable {
 		}
 		return visitedNodes;
 	}
+
+	private void writeObject(ObjectOutputStream out) throws IOException {
+		out.defaultWriteObject();
+		//Label ids are only valid within a process, so write the label itself.
+		out.writeObject(getLabel());
+	}
+
+	private void readObject(ObjectInputStream in) throws IOException, ClassNotFoundException {
+		in.defaultReadObject();
+		this.labelId = LabelTable.getDefault().intern((String)in.readObject());
+	}
 }
@@ -0,0 +1,17 @@
+package tree;
+
+import java.io.File;
+
+/**
+ * Receives trees built by {@link TreeBuilder#buildTrees(java.util.Collection, TreeRequestor)}.
+ */
+public interface TreeRequestor {
+
+	/**
+	 * Called as soon as the tree of a file is built.
+	 *
+	 * @param file a source file.
+	 * @param tree the tree built from <code>file</code>.
+	 */
+	public void acceptTree(File file, Tree tree);
+}
@@ -1,84 +1,213 @@
 package tree;
 
 import java.io.Serializable;
-import java.util.HashMap;
-import java.util.HashSet;
-import java.util.Map;
-import java.util.Set;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
 
+/**
+ * A label histogram of a subtree, kept as label ids in ascending order with their counts.
+ */
 public class TreeVector implements Serializable {
 
-	private static final long serialVersionUID = -8402268305119253330L;
-	private Map<String, Integer> vector;
-	private int sum;
+	private static final long serialVersionUID = -5474339506480531290L;
+	private final int[] labels;
+	private final int[] counts;
+	private final int sum;
 
-	public TreeVector(){
-		vector = new HashMap<String, Integer>();
-		sum = 0;
+	public TreeVector(int labelId){
+		this(new int[] { labelId }, new int[] { 1 }, 1);
 	}
 
-	public TreeVector(String label){
-		this();
-		vector.put(label, 1);
+	private TreeVector(int[] labels, int[] counts, int sum){
+		this.labels = labels;
+		this.counts = counts;
+		this.sum = sum;
 	}
 
-	public void update(TreeNode node){
-		if(vector.containsKey(node.getLabel())){
-			vector.put(node.getLabel(), vector.get(node.getLabel()));
-		}else{
-			vector.put(node.getLabel(), 1);
+	/**
+	 * Build the vector of the subtree rooted at <code>node</code>. Vectors already built for nodes
+	 * of the subtree are k-way merged with the sorted labels of the other nodes, so only labels
+	 * of nodes without vectors are collected and sorted.
+	 *
+	 * @param node the root of subtree.
+	 * @return the vector of <code>node</code>.
+	 */
+	public static TreeVector of(TreeNode node){
+		if(node.isLeaf())
+			return new TreeVector(node.getLabelId());
+		Collector collector = new Collector();
+		collector.collect(node, node.children.size());
+		Arrays.sort(collector.labels, 0, collector.size);
+		TreeVector collected = ofSorted(collector.labels, collector.size);
+		if(collector.vectors.isEmpty())
+			return collected;
+		collector.vectors.add(collected);
+		return merge(collector.vectors);
+	}
+
+	private static TreeVector ofSorted(int[] buffer, int size){
+		int distinct = 0;
+		for(int i=0; i<size; i++){
+			if(i == 0 || buffer[i] != buffer[i-1])
+				distinct++;
 		}
-		for(TreeNode child : node.children){
-			update(child);
+		int[] labels = new int[distinct];
+		int[] counts = new int[distinct];
+		int index = -1;
+		for(int i=0; i<size; i++){
+			if(i == 0 || buffer[i] != buffer[i-1])
+				labels[++index] = buffer[i];
+			counts[index]++;
 		}
+		return new TreeVector(labels, counts, size);
 	}
 
-	public Set<String> keySet(){
-		return vector.keySet();
+	/**
+	 * Merge vectors with a heap of their next labels, adding counts of the same label.
+	 */
+	private static TreeVector merge(List<TreeVector> vectors){
+		int k = vectors.size();
+		int capacity = 0;
+		int sum = 0;
+		for(TreeVector vector : vectors){
+			capacity += vector.labels.length;
+			sum += vector.sum;
+		}
+		int[] labels = new int[capacity];
+		int[] counts = new int[capacity];
+		int size = 0;
+		int[] positions = new int[k];
+		int[] heap = new int[k];
+		for(int i=0; i<k; i++){
+			heap[i] = i;
+		}
+		for(int i=k/2-1; i>=0; i--){
+			siftDown(heap, k, i, vectors, positions);
+		}
+		int heapSize = k;
+		while(heapSize > 0){
+			int run = heap[0];
+			TreeVector vector = vectors.get(run);
+			int position = positions[run]++;
+			int label = vector.labels[position];
+			if(size > 0 && labels[size-1] == label){
+				counts[size-1] += vector.counts[position];
+			}else{
+				labels[size] = label;
+				counts[size++] = vector.counts[position];
+			}
+			if(positions[run] == vector.labels.length)
+				heap[0] = heap[--heapSize];
+			if(heapSize > 0)
+				siftDown(heap, heapSize, 0, vectors, positions);
+		}
+		if(size < capacity){
+			labels = Arrays.copyOf(labels, size);
+			counts = Arrays.copyOf(counts, size);
+		}
+		return new TreeVector(labels, counts, sum);
 	}
 
-	public void update(TreeVector vec){
-		for(String key : vec.keySet()){
-			if(this.vector.containsKey(key)){
-				this.vector.put(key, this.getValue(key) + vec.getValue(key));
-			}else{
-				this.vector.put(key, vec.getValue(key));
+	private static void siftDown(int[] heap, int heapSize, int i, List<TreeVector> vectors, int[] positions){
+		int run = heap[i];
+		int label = vectors.get(run).labels[positions[run]];
+		while(2*i + 1 < heapSize){
+			int child = 2*i + 1;
+			int childLabel = vectors.get(heap[child]).labels[positions[heap[child]]];
+			if(child + 1 < heapSize){
+				int rightLabel = vectors.get(heap[child+1]).labels[positions[heap[child+1]]];
+				if(rightLabel < childLabel){
+					child++;
+					childLabel = rightLabel;
+				}
 			}
+			if(label <= childLabel)
+				break;
+			heap[i] = heap[child];
+			i = child;
 		}
+		heap[i] = run;
 	}
 
-	public int getValue(String key){
-		return vector.get(key);
+	/**
+	 * @return the number of distinct labels.
+	 */
+	public int size(){
+		return labels.length;
+	}
+
+	public int getLabel(int index){
+		return labels[index];
+	}
+
+	public int getCount(int index){
+		return counts[index];
+	}
+
+	public int getValue(int labelId){
+		int index = Arrays.binarySearch(labels, labelId);
+		return index < 0 ? 0 : counts[index];
 	}
 
 	public double similarity(TreeVector vec){
 		int commonNodes = 0;
-		Set<String> commonKeys = new HashSet<String>(this.keySet());
-		commonKeys.retainAll(vec.keySet());
-		for (String key : commonKeys) {
-			commonNodes += Math.min(this.getValue(key), vec.getValue(key));
+		int i = 0, j = 0;
+		while(i < labels.length && j < vec.labels.length){
+			if(labels[i] < vec.labels[j]){
+				i++;
+			}else if(labels[i] > vec.labels[j]){
+				j++;
+			}else{
+				commonNodes += Math.min(counts[i++], vec.counts[j++]);
+			}
 		}
 		int totalNodes = this.sum() + vec.sum();
 		return 2.0d*commonNodes/totalNodes;
 	}
 
 	public int sum(){
-		if(sum == 0){
-			for(Integer val : vector.values()){
-				sum += val;
-			}
-		}
 		return sum;
 	}
 
 	@Override
 	public String toString(){
 		StringBuffer sb = new StringBuffer("[");
-		for (String key : keySet()) {
+		for (int count : counts) {
 			sb.append(" ");
-			sb.append(vector.get(key));
+			sb.append(count);
 		}
 		sb.append(" ]");
 		return sb.toString();
 	}
+
+	private static class Collector {
+		int[] labels = new int[64];
+		int size = 0;
+		//Vectors of nodes which are added as a whole.
+		List<TreeVector> vectors = new ArrayList<>();
+
+		/**
+		 * Collect the label of <code>node</code> and labels propagated from its first <code>childCount</code> children.
+		 */
+		void collect(TreeNode node, int childCount){
+			if(size == labels.length)
+				labels = Arrays.copyOf(labels, size * 2);
+			labels[size++] = node.getLabelId();
+			for(int i=0; i<childCount; i++){
+				TreeNode child = node.children.get(i);
+				//The vector of a child is what it propagates, unless children were added after the propagation.
+				TreeVector vector = child.isLeaf() ? null : child.getBuiltVector();
+				if(vector != null && child.getPropagationCount() == 1
+						&& child.getPropagatedChildren(0) == child.children.size()){
+					vectors.add(vector);
+					continue;
+				}
+				//Children can be added after the labels of a node are propagated.
+				for(int p=0; p<child.getPropagationCount(); p++){
+					collect(child, child.getPropagatedChildren(p));
+				}
+			}
+		}
+	}
 }
@@ -0,0 +1,37 @@
+package main;
+
+import static org.junit.Assert.assertTrue;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+public class LASTest {
+
+	@Rule
+	public TemporaryFolder folder = new TemporaryFolder();
+
+	@Test
+	public void writesTextInUTF8() throws IOException {
+		File before = source("Before.java", "class A { String s = \"caf\u00e9\"; }");
+		File after = source("After.java", "class A { String s = \"caf\u00e9 au lait\"; }");
+		File output = new File(folder.getRoot(), "script.txt");
+		for(String format : new String[] { "text", "jsonl", "csv" }){
+			LAS.main(new String[] { "--output", output.getPath(), "--format", format, before.getPath(), after.getPath() });
+			String text = new String(Files.readAllBytes(output.toPath()), StandardCharsets.UTF_8);
+			assertTrue(text, text.contains("caf\u00e9"));
+		}
+	}
+
+	private File source(String name, String source) throws IOException {
+		File file = new File(folder.getRoot(), name);
+		//A byte order mark makes the file read as UTF-8 whatever the platform charset is.
+		Files.write(file.toPath(), ("\ufeff" + source).getBytes(StandardCharsets.UTF_8));
+		return file;
+	}
+}
@@ -0,0 +1,99 @@
+package script;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.io.IOException;
+
+import org.junit.Test;
+
+import script.model.EditScript;
+import script.model.EditScript.Phase;
+import tree.Tree;
+import tree.TreeBuilder;
+
+public class BudgetTest {
+	private static final String BEFORE = "class A {\n"
+			+ "	int f(int a){\n"
+			+ "		int b = a + 1;\n"
+			+ "		foo(b);\n"
+			+ "		return b;\n"
+			+ "	}\n"
+			+ "}\n";
+	private static final String AFTER = "class A {\n"
+			+ "	int f(int a, int c){\n"
+			+ "		int b = a + c;\n"
+			+ "		foo(b);\n"
+			+ "		bar(c);\n"
+			+ "		return b;\n"
+			+ "	}\n"
+			+ "}\n";
+
+	@Test
+	public void matchesWithoutBudget() throws IOException {
+		EditScript script = diff(DiffConfig.getDefault().toBuilder().build());
+		assertFalse(script.isDegraded());
+		assertTrue(script.similarMatch > 0);
+	}
+
+	@Test
+	public void stopsSimilarMatchAtSimilarityBudget() throws IOException {
+		EditScript script = diff(DiffConfig.getDefault().toBuilder().similarityBudget(1).build());
+		assertEquals(Phase.SIMILAR_MATCH, script.getDegradedPhase());
+		assertEquals("similarity budget of 1 computations", script.getDegradedReason());
+		//Similarities of the first node are finished, but no other node is evaluated.
+		assertEquals(1, script.similarityCount);
+		assertEquals(0, script.similarMatch);
+		//The similarity budget does not stop follow-up matching.
+		assertTrue(script.followupMatch > 0);
+	}
+
+	@Test
+	public void skipsSimilarMatchAboveNodeBudget() throws IOException {
+		EditScript script = diff(DiffConfig.getDefault().toBuilder().nodeBudget(1).build());
+		assertEquals(Phase.SIMILAR_MATCH, script.getDegradedPhase());
+		assertEquals("node budget of 1 nodes", script.getDegradedReason());
+		assertEquals(0, script.similarityCount);
+		assertTrue(script.size() > 0);
+	}
+
+	@Test
+	public void fallsBackToExactMatchAtTimeBudget() throws IOException {
+		StringBuilder before = new StringBuilder("class A {\n");
+		StringBuilder after = new StringBuilder("class A {\n");
+		for(int i=0; i<600; i++){
+			String method = BEFORE.substring(BEFORE.indexOf("int f"), BEFORE.lastIndexOf("}")).replace("int f(", "int f" + i + "(");
+			before.append(method);
+			//Every other method is changed, so that similar matching has work to do.
+			after.append(i % 2 == 0 ? method : method.replace("a + 1", "a + c").replace("foo(b)", "foo(b, " + i + ")"));
+		}
+		before.append("}\n");
+		after.append("}\n");
+		Tree beforeTree = TreeBuilder.buildTreeFromSource(before.toString());
+		Tree afterTree = TreeBuilder.buildTreeFromSource(after.toString());
+		EditScript unlimited = diff(DiffConfig.getDefault().toBuilder().timeBudget(3600000L).build(), beforeTree, afterTree);
+		assertFalse(unlimited.isDegraded());
+		//Matching takes longer than a millisecond for trees of this size.
+		EditScript script = diff(DiffConfig.getDefault().toBuilder().timeBudget(1).build(), beforeTree, afterTree);
+		assertTrue(script.isDegraded());
+		assertEquals("time budget of 1 ms", script.getDegradedReason());
+		assertTrue(script.getDegradedPhase() == Phase.SIMILAR_MATCH || script.getDegradedPhase() == Phase.FOLLOWUP_MATCH);
+		//Exact matching is done whatever the budget, and a script is generated from fewer matches.
+		assertEquals(unlimited.exactMatch, script.exactMatch);
+		assertTrue(script.similarMatch < unlimited.similarMatch);
+		assertTrue(script.size() > unlimited.size());
+	}
+
+	private static EditScript diff(DiffConfig config, Tree before, Tree after) {
+		try(DiffEngine engine = new DiffEngine(config)){
+			return engine.diff(before, after);
+		}
+	}
+
+	private static EditScript diff(DiffConfig config) throws IOException {
+		try(DiffEngine engine = new DiffEngine(config)){
+			return engine.diff(TreeBuilder.buildTreeFromSource(BEFORE), TreeBuilder.buildTreeFromSource(AFTER));
+		}
+	}
+}
@@ -0,0 +1,74 @@
+package script;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.io.IOException;
+import java.util.Random;
+
+import org.junit.Test;
+
+import script.model.EditScript;
+import tree.Tree;
+import tree.TreeBuilder;
+
+public class CandidateIndexTest {
+
+	@Test
+	public void retrievesCandidatesOfFullSearch() throws IOException {
+		assertSameScripts(false);
+	}
+
+	@Test
+	public void retrievesUnmatchedCandidatesOfFullSearch() throws IOException {
+		assertSameScripts(true);
+	}
+
+	private static void assertSameScripts(boolean skipMatched) throws IOException {
+		Random random = new Random(7);
+		for(int t=0; t<3; t++){
+			StringBuilder before = new StringBuilder("class A {\n");
+			StringBuilder after = new StringBuilder("class A {\n");
+			for(int i=0; i<60; i++){
+				before.append(method(i, random.nextInt(4)));
+				//Some methods are changed a little, and some are moved.
+				int change = random.nextInt(10);
+				if(change == 0)
+					after.insert(after.indexOf("\n") + 1, method(i, 4));
+				else if(change < 4)
+					after.append(method(i, random.nextInt(4)));
+				else
+					after.append(method(i, i % 4));
+			}
+			before.append("}\n");
+			after.append("}\n");
+			DiffConfig config = DiffConfig.getDefault().toBuilder().skipMatchedCandidates(skipMatched).build();
+			//Every search is done without the index if there are fewer indexed subtrees than this.
+			EditScript searched = diff(config.toBuilder().indexMinCandidates(Integer.MAX_VALUE).build(), before, after);
+			EditScript indexed = diff(config.toBuilder().indexMinCandidates(0).build(), before, after);
+			assertEquals(searched.toString(), indexed.toString());
+			assertEquals(searched.similarMatch, indexed.similarMatch);
+			assertEquals(searched.similarPairCount, indexed.similarPairCount);
+			assertTrue(searched.similarMatch > 0);
+			//Candidates which cannot be as similar as the threshold are not retrieved.
+			assertTrue(indexed.similarityCount < searched.similarityCount);
+		}
+	}
+
+	private static String method(int i, int variant) {
+		return "int m" + i + "(int a, int b){\n"
+				+ "	int c = a * " + variant + " + b;\n"
+				+ "	if(c > " + (i % 7) + "){ c = foo" + (i % 5) + "(c, a); }\n"
+				+ "	for(int k=0; k<b; k++){ c += bar(k" + (variant == 2 ? " + 1" : "") + "); }\n"
+				+ "	return c" + (variant == 3 ? " - a" : "") + ";\n"
+				+ "}\n";
+	}
+
+	private static EditScript diff(DiffConfig config, StringBuilder before, StringBuilder after) throws IOException {
+		Tree beforeTree = TreeBuilder.buildTreeFromSource(before.toString());
+		Tree afterTree = TreeBuilder.buildTreeFromSource(after.toString());
+		try(DiffEngine engine = new DiffEngine(config)){
+			return engine.diff(beforeTree, afterTree);
+		}
+	}
+}
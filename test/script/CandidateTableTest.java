@@ -0,0 +1,51 @@
+package script;
+
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
+
+import org.junit.Test;
+
+import tree.TreeNode;
+
+public class CandidateTableTest {
+
+	@Test
+	public void keepsFirstOfMostSimilarCandidates() {
+		CandidateTable table = new CandidateTable();
+		TreeNode x = node(3);
+		TreeNode first = node(1);
+		TreeNode second = node(2);
+		TreeNode third = node(4);
+		assertNull(table.getBestMatch(0, x));
+		table.add(0, x, first, 0.6d);
+		table.add(0, x, second, 0.8d);
+		//Equally similar candidates do not replace the best one, nor less similar ones.
+		table.add(0, x, third, 0.8d);
+		table.add(0, x, first, 0.7d);
+		assertSame(second, table.getBestMatch(0, x));
+		//Sides are kept apart.
+		assertNull(table.getBestMatch(1, x));
+	}
+
+	@Test
+	public void growsForLargeIds() {
+		CandidateTable table = new CandidateTable();
+		TreeNode small = node(1);
+		TreeNode large = node(100000);
+		TreeNode c = node(5);
+		table.add(1, small, c, 0.5d);
+		assertNull(table.getBestMatch(1, large));
+		table.add(1, large, c, 0.5d);
+		assertSame(c, table.getBestMatch(1, large));
+		assertSame(c, table.getBestMatch(1, small));
+	}
+
+	@Test(expected = IllegalArgumentException.class)
+	public void rejectsNodeWithoutId() {
+		new CandidateTable().add(0, new TreeNode(), node(1), 0.5d);
+	}
+
+	private static TreeNode node(int id) {
+		return new TreeNode(id, "SimpleName" + TreeNode.DELIM + "n" + id, null);
+	}
+}
@@ -0,0 +1,23 @@
+package script;
+
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import java.io.File;
+
+import org.junit.Test;
+
+public class DiffConfigTest {
+
+	@Test
+	public void rejectsCacheWithoutReleasedAST() {
+		DiffConfig.Builder builder = DiffConfig.getDefault().toBuilder().cacheDir(new File("cache")).releaseAST(false);
+		try{
+			builder.build();
+			fail("Built a configuration caching trees with AST nodes.");
+		}catch(IllegalArgumentException e){
+			//Expected.
+		}
+		assertTrue(builder.releaseAST(true).build().isReleaseAST());
+	}
+}
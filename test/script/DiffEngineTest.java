@@ -0,0 +1,84 @@
+package script;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotEquals;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+import org.junit.Test;
+
+import script.model.EditScript;
+import tree.Tree;
+import tree.TreeBuilder;
+
+public class DiffEngineTest {
+	private static final String BEFORE = "class A {\n"
+			+ "	int f(int a){\n"
+			+ "		int b = a + 1;\n"
+			+ "		if(b > 2){ foo(b); }\n"
+			+ "		return b;\n"
+			+ "	}\n"
+			+ "	void g(){ bar(\"s\"); }\n"
+			+ "}\n";
+	private static final String AFTER = "class A {\n"
+			+ "	void g(){ bar(\"t\"); }\n"
+			+ "	int f(int a, int c){\n"
+			+ "		int b = a + c;\n"
+			+ "		foo(b);\n"
+			+ "		if(b > 2){ }\n"
+			+ "		return b;\n"
+			+ "	}\n"
+			+ "}\n";
+
+	@Test
+	public void diffsConcurrentlyWithOwnConfigurations() throws Exception {
+		final Tree before = TreeBuilder.buildTreeFromSource(BEFORE);
+		final Tree after = TreeBuilder.buildTreeFromSource(AFTER);
+		DiffConfig config = DiffConfig.getDefault();
+		final DiffEngine[] engines = { new DiffEngine(config), new DiffEngine(config.toBuilder().splitMoves(true).build()) };
+		ExecutorService executor = Executors.newFixedThreadPool(4);
+		try{
+			EditScript[] expected = { engines[0].diff(before, after), engines[1].diff(before, after) };
+			//The configurations give different scripts, so a diff taking the other configuration would be found.
+			assertNotEquals(expected[0].toString(), expected[1].toString());
+			List<Future<EditScript>> futures = new ArrayList<>();
+			for(int i=0; i<40; i++){
+				final DiffEngine engine = engines[i % 2];
+				futures.add(executor.submit(new Callable<EditScript>() {
+					@Override
+					public EditScript call() {
+						//Trees are shared by all diffs.
+						return engine.diff(before, after);
+					}
+				}));
+			}
+			for(int i=0; i<futures.size(); i++){
+				EditScript script = futures.get(i).get();
+				assertEquals(expected[i % 2].toString(), script.toString());
+				//Counts are of each diff, not added up over diffs.
+				assertEquals(expected[i % 2].exactMatch, script.exactMatch);
+				assertEquals(expected[i % 2].similarMatch, script.similarMatch);
+				assertEquals(expected[i % 2].leafMatch, script.leafMatch);
+			}
+		}finally{
+			executor.shutdown();
+			engines[0].close();
+			engines[1].close();
+		}
+	}
+
+	@Test
+	public void keepsStaticCountsOfDefaultEngine() throws IOException {
+		EditScript script = ScriptGenerator.generateScript(TreeBuilder.buildTreeFromSource(BEFORE),
+				TreeBuilder.buildTreeFromSource(AFTER));
+		assertEquals(script.exactMatch, ScriptGenerator.exactMatch);
+		assertEquals(script.similarMatch, ScriptGenerator.similarMatch);
+		assertEquals(script.leafMatch, ScriptGenerator.leafMatch);
+	}
+}
@@ -0,0 +1,67 @@
+package script;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+
+import java.io.IOException;
+import java.util.List;
+
+import org.eclipse.jdt.core.dom.ASTNode;
+import org.junit.Test;
+
+import script.model.EditOp;
+import script.model.EditScript;
+import script.model.Move;
+import tree.Mapping;
+import tree.Tree;
+import tree.TreeBuilder;
+import tree.TreeNode;
+
+public class ExactMatchTest {
+
+	@Test
+	public void matchesSubtreeMovedFar() throws IOException {
+		StringBuilder methods = new StringBuilder();
+		for(int i=1; i<40; i++){
+			methods.append("int m").append(i).append("(int a){ return a + ").append(i).append("; }\n");
+		}
+		String moved = "void far(){ foo(1); bar(2); }\n";
+		Tree before = TreeBuilder.buildTreeFromSource("class A {\n" + moved + methods + "}\n");
+		Tree after = TreeBuilder.buildTreeFromSource("class A {\n" + methods + moved + "}\n");
+		EditScript script = diff(DiffConfig.getDefault().toBuilder().globalExactMatch(true).build(), before, after);
+		List<EditOp> ops = script.getEditOps();
+		assertEquals(ops.toString(), 1, ops.size());
+		assertTrue(ops.get(0) instanceof Move);
+		TreeNode method = before.getRoot().children.get(0).children.get(0).children.get(1);
+		assertEquals(ASTNode.METHOD_DECLARATION, method.getType());
+		assertSame(method, ops.get(0).getNode());
+		Mapping mapping = script.getMapping();
+		assertSame(after.getRoot().children.get(0).children.get(0).children.get(40), mapping.getMatched(method));
+		//Adjacent nodes of the method do not include its match, which is found as identical only by a global lookup.
+		EditScript local = diff(DiffConfig.getDefault().toBuilder().globalExactMatch(false).build(), before, after);
+		assertTrue(script.exactMatch > local.exactMatch);
+	}
+
+	@Test
+	public void matchesManyIdenticalSubtrees() throws IOException {
+		StringBuilder source = new StringBuilder("class A {\n");
+		for(int i=0; i<500; i++){
+			source.append("void m").append(i).append("(){ if(x){ foo(1); } }\n");
+		}
+		source.append("}\n");
+		Tree before = TreeBuilder.buildTreeFromSource(source.toString());
+		Tree after = TreeBuilder.buildTreeFromSource(source.toString());
+		EditScript script = diff(DiffConfig.getDefault(), before, after);
+		assertEquals(0, script.size());
+		for(TreeNode node : before.dfs()){
+			assertEquals(node.getId(), script.getMapping().getMatched(node).getId());
+		}
+	}
+
+	private static EditScript diff(DiffConfig config, Tree before, Tree after) {
+		try(DiffEngine engine = new DiffEngine(config)){
+			return engine.diff(before, after);
+		}
+	}
+}
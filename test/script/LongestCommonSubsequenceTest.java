@@ -0,0 +1,68 @@
+package script;
+
+import static org.junit.Assert.assertArrayEquals;
+
+import java.util.Arrays;
+import java.util.Random;
+
+import org.junit.Test;
+
+public class LongestCommonSubsequenceTest {
+
+	@Test
+	public void tracesAsFullTable() {
+		Random random = new Random(1);
+		LongestCommonSubsequence lcs = new LongestCommonSubsequence();
+		for(int t=0; t<500; t++){
+			//Every tenth pair needs more cells than a table kept whole.
+			int size = t % 10 == 0 ? 600 : 40;
+			int[] a = randomKeys(random, random.nextInt(size), 1 + t % 7);
+			int[] b = randomKeys(random, random.nextInt(size), 1 + t % 7);
+			assertArrayEquals(fullTable(a, b), lcs.trace(a, b));
+		}
+	}
+
+	@Test
+	public void tracesEmptySequences() {
+		LongestCommonSubsequence lcs = new LongestCommonSubsequence();
+		assertArrayEquals(new int[0], lcs.trace(new int[0], new int[] { 1 }));
+		assertArrayEquals(new int[] { LongestCommonSubsequence.UNVISITED }, lcs.trace(new int[] { 1 }, new int[0]));
+	}
+
+	@Test
+	public void stopsAtEndOfSequence() {
+		int[] trace = new LongestCommonSubsequence().trace(new int[] { 1, 2, 3 }, new int[] { 1 });
+		assertArrayEquals(new int[] { 0, LongestCommonSubsequence.UNVISITED, LongestCommonSubsequence.UNVISITED }, trace);
+	}
+
+	private static int[] randomKeys(Random random, int length, int keys) {
+		int[] a = new int[length];
+		for(int i=0; i<length; i++){
+			a[i] = random.nextInt(keys);
+		}
+		return a;
+	}
+
+	private static int[] fullTable(int[] a, int[] b) {
+		int m = a.length;
+		int n = b.length;
+		int[] result = new int[m];
+		Arrays.fill(result, LongestCommonSubsequence.UNVISITED);
+		int[][] table = new int[m + 1][n + 1];
+		for(int i=m-1; i>=0; i--){
+			for(int j=n-1; j>=0; j--){
+				table[i][j] = a[i] == b[j] ? table[i + 1][j + 1] + 1 : Math.max(table[i + 1][j], table[i][j + 1]);
+			}
+		}
+		int i = 0, j = 0;
+		while(i < m && j < n){
+			if(a[i] == b[j])
+				result[i++] = j++;
+			else if(table[i + 1][j] >= table[i][j + 1])
+				result[i++] = LongestCommonSubsequence.SKIPPED;
+			else
+				j++;
+		}
+		return result;
+	}
+}
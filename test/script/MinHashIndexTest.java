@@ -0,0 +1,94 @@
+package script;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+
+import org.eclipse.jdt.core.dom.ASTNode;
+import org.junit.Test;
+
+import script.model.EditScript;
+import tree.Tree;
+import tree.TreeBuilder;
+import tree.TreeNode;
+
+public class MinHashIndexTest {
+	private static final String SOURCE = "class A {\n"
+			+ "	int f(int a){ int b = a + 1; foo(b); return b; }\n"
+			+ "	int f(int a){ foo(b); int b = a + 1; return b; }\n"
+			+ "	void g(String s){ bar(s, \"t\"); while(s.isEmpty()){ s = next(); } }\n"
+			+ "}\n";
+
+	@Test
+	public void hashesSameLabelsToSameBuckets() throws IOException {
+		List<TreeNode> methods = methods(TreeBuilder.buildTreeFromSource(SOURCE));
+		MinHashIndex index = new MinHashIndex(64, 16);
+		//Statements are swapped, so the subtrees differ but have the same labels.
+		assertNotEquals(methods.get(0).getHash(), methods.get(1).getHash());
+		long[] keys = index.getBucketKeys(methods.get(0));
+		assertEquals(16, keys.length);
+		assertArrayEquals(keys, index.getBucketKeys(methods.get(1)));
+		long[] others = index.getBucketKeys(methods.get(2));
+		for(int band=0; band<keys.length; band++){
+			assertNotEquals(keys[band], others[band]);
+		}
+		//Keys of different bands differ.
+		Set<Long> distinct = new HashSet<>();
+		for(long key : keys){
+			distinct.add(key);
+		}
+		assertEquals(keys.length, distinct.size());
+	}
+
+	@Test(expected = IllegalArgumentException.class)
+	public void rejectsBandsNotDividingSignature() {
+		DiffConfig.getDefault().toBuilder().lsh(true, 64, 10).build();
+	}
+
+	@Test
+	public void scoresOnlyCandidatesSharingBuckets() throws IOException {
+		StringBuilder before = new StringBuilder("class A {\n");
+		StringBuilder after = new StringBuilder("class A {\n");
+		for(int i=0; i<40; i++){
+			//Names differ from method to method, so that few pairs of methods are alike.
+			String body = "(int a" + i + "){ int c" + i + " = a" + i + " * " + i + "; c" + i + " = foo" + i + "(c" + i + ", a" + i + "); return c" + i + "; }\n";
+			before.append("int m" + i + body);
+			//Methods are renamed, so they are matched by similarity.
+			after.append("int n" + i + body);
+		}
+		before.append("}\n");
+		after.append("}\n");
+		DiffConfig config = DiffConfig.getDefault().toBuilder().indexMinCandidates(Integer.MAX_VALUE).build();
+		EditScript all = diff(config, before.toString(), after.toString());
+		//Buckets are looked up for every type, however few subtrees it has.
+		EditScript bucketed = diff(config.toBuilder().indexMinCandidates(0).lsh(true, 64, 16).build(),
+				before.toString(), after.toString());
+		assertTrue(all.similarMatch > 0);
+		assertEquals(all.similarMatch, bucketed.similarMatch);
+		assertEquals(all.toString(), bucketed.toString());
+		assertTrue(bucketed.similarityCount < all.similarityCount);
+	}
+
+	private static EditScript diff(DiffConfig config, String before, String after) throws IOException {
+		try(DiffEngine engine = new DiffEngine(config)){
+			return engine.diff(TreeBuilder.buildTreeFromSource(before), TreeBuilder.buildTreeFromSource(after));
+		}
+	}
+
+	private static List<TreeNode> methods(Tree tree) {
+		List<TreeNode> methods = new ArrayList<>();
+		for(TreeNode node : tree.dfs()){
+			if(node.getType() == ASTNode.METHOD_DECLARATION)
+				methods.add(node);
+		}
+		assertEquals(3, methods.size());
+		return methods;
+	}
+}
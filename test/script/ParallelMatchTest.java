@@ -0,0 +1,69 @@
+package script;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Random;
+
+import org.junit.Test;
+
+import script.model.EditScript;
+import tree.Tree;
+import tree.TreeBuilder;
+
+public class ParallelMatchTest {
+
+	@Test
+	public void matchesAsOnSingleThread() throws IOException {
+		Random random = new Random(11);
+		//Enough changed methods for candidates to be evaluated in parallel, and enough matched nodes
+		//for leaves to be matched in parallel.
+		StringBuilder before = new StringBuilder("class A {\n");
+		List<String> methods = new ArrayList<>();
+		for(int i=0; i<200; i++){
+			before.append(method(i, random.nextInt(3)));
+			methods.add(method(i, 3 + random.nextInt(3)));
+		}
+		before.append("}\n");
+		//Some methods are moved.
+		for(int i=0; i<20; i++){
+			Collections.swap(methods, random.nextInt(methods.size()), random.nextInt(methods.size()));
+		}
+		StringBuilder after = new StringBuilder("class A {\n");
+		for(String method : methods){
+			after.append(method);
+		}
+		after.append("}\n");
+		Tree beforeTree = TreeBuilder.buildTreeFromSource(before.toString());
+		Tree afterTree = TreeBuilder.buildTreeFromSource(after.toString());
+		DiffConfig config = DiffConfig.getDefault();
+		EditScript serial = diff(config.toBuilder().parallelism(1).build(), beforeTree, afterTree);
+		EditScript parallel = diff(config.toBuilder().parallelism(4).build(), beforeTree, afterTree);
+		assertTrue(serial.similarMatch > 0);
+		assertTrue(serial.leafMatch > 0);
+		assertEquals(serial.toString(), parallel.toString());
+		assertEquals(serial.similarMatch, parallel.similarMatch);
+		assertEquals(serial.followupMatch, parallel.followupMatch);
+		assertEquals(serial.leafMatch, parallel.leafMatch);
+		assertEquals(serial.similarityCount, parallel.similarityCount);
+	}
+
+	private static String method(int i, int variant) {
+		return "int m" + i + "(int a, int b){\n"
+				+ "	int c = a * " + variant + " + b;\n"
+				+ "	if(c > " + (i % 7) + "){ c = foo" + (i % 5) + "(c, a, " + variant + "); }\n"
+				+ "	for(int k=0; k<b; k++){ c += bar(k, \"" + i + "\"); }\n"
+				+ "	return c;\n"
+				+ "}\n";
+	}
+
+	private static EditScript diff(DiffConfig config, Tree before, Tree after) {
+		try(DiffEngine engine = new DiffEngine(config)){
+			return engine.diff(before, after);
+		}
+	}
+}
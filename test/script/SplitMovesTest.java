@@ -0,0 +1,87 @@
+package script;
+
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.IdentityHashMap;
+import java.util.List;
+import java.util.Map;
+
+import org.junit.Test;
+
+import script.model.Delete;
+import script.model.EditOp;
+import script.model.EditScript;
+import script.model.Insert;
+import script.model.Move;
+import tree.Tree;
+import tree.TreeBuilder;
+import tree.TreeNode;
+
+public class SplitMovesTest {
+
+	@Test
+	public void splitsEveryMoveIntoDeleteAndInsert() throws IOException {
+		//Methods are reversed, and statements of each method are reordered.
+		StringBuilder before = new StringBuilder("class A {\n");
+		StringBuilder after = new StringBuilder("class A {\n");
+		for(int i=0; i<300; i++){
+			before.append(method(i, false));
+			after.insert(after.indexOf("\n") + 1, method(i, i % 3 == 0));
+		}
+		before.append("}\n");
+		after.append("}\n");
+		Tree beforeTree = TreeBuilder.buildTreeFromSource(before.toString());
+		Tree afterTree = TreeBuilder.buildTreeFromSource(after.toString());
+		EditScript moved;
+		EditScript split;
+		try(DiffEngine engine = new DiffEngine(DiffConfig.getDefault())){
+			moved = engine.diff(beforeTree, afterTree);
+		}
+		try(DiffEngine engine = new DiffEngine(DiffConfig.getDefault().toBuilder().splitMoves(true).build())){
+			split = engine.diff(beforeTree, afterTree);
+		}
+		List<Move> moves = new ArrayList<>();
+		for(EditOp op : allOps(moved)){
+			if(op instanceof Move)
+				moves.add((Move)op);
+		}
+		assertFalse(moves.isEmpty());
+		Map<TreeNode, EditOp> deletes = new IdentityHashMap<>();
+		Map<TreeNode, EditOp> inserts = new IdentityHashMap<>();
+		for(EditOp op : allOps(split)){
+			assertFalse(op instanceof Move);
+			//A node is deleted or inserted at most once.
+			if(op instanceof Delete)
+				assertNull(op.toString(), deletes.put(op.getNode(), op));
+			if(op instanceof Insert)
+				assertNull(op.toString(), inserts.put(op.getNode(), op));
+		}
+		for(Move move : moves){
+			//The whole subtree of a move is deleted, and the subtree of its match is inserted.
+			for(TreeNode node : move.getNode().dfs(true)){
+				assertTrue(node.toString(), deletes.containsKey(node));
+			}
+			for(TreeNode node : moved.getMapping().getMatched(move.getNode()).dfs(true)){
+				assertTrue(node.toString(), inserts.containsKey(node));
+			}
+		}
+	}
+
+	private static String method(int i, boolean reordered) {
+		String first = "int b = a + " + i + ";\n";
+		String second = "foo(a, \"" + i + "\");\n";
+		return "int m" + i + "(int a){\n" + (reordered ? second + first : first + second) + "return a;\n}\n";
+	}
+
+	private static List<EditOp> allOps(EditScript script) {
+		List<EditOp> ops = new ArrayList<>();
+		for(EditOp op : script.editOps()){
+			ops.addAll(op.getSubtreeEdit());
+		}
+		return ops;
+	}
+}
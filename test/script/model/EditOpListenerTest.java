@@ -0,0 +1,66 @@
+package script.model;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+
+import org.junit.Test;
+
+import script.DiffConfig;
+import script.DiffEngine;
+import tree.Tree;
+import tree.TreeBuilder;
+
+public class EditOpListenerTest {
+	private static final String BEFORE = "class A {\n"
+			+ "	int f(int a){\n"
+			+ "		int b = a + 1;\n"
+			+ "		if(b > 2){ foo(b); }\n"
+			+ "		return b;\n"
+			+ "	}\n"
+			+ "	void g(){ bar(\"s\"); }\n"
+			+ "}\n";
+	private static final String AFTER = "class A {\n"
+			+ "	void g(){ bar(\"t\"); }\n"
+			+ "	int f(int a, int c){\n"
+			+ "		int b = a + c;\n"
+			+ "		foo(b);\n"
+			+ "		return b;\n"
+			+ "	}\n"
+			+ "}\n";
+
+	@Test
+	public void passesOpsOfScript() throws IOException {
+		DiffConfig config = DiffConfig.getDefault();
+		//Ops are passed as they are generated, or when the script is done if they are changed afterwards.
+		for(DiffConfig c : new DiffConfig[] { config, config.toBuilder().replace(true).build(),
+				config.toBuilder().splitMoves(true).build() }){
+			Tree before = TreeBuilder.buildTreeFromSource(BEFORE);
+			Tree after = TreeBuilder.buildTreeFromSource(AFTER);
+			final List<EditOp> passed = new ArrayList<>();
+			EditScript kept;
+			EditScript streamed;
+			try(DiffEngine engine = new DiffEngine(c)){
+				kept = engine.diff(before, after);
+				streamed = engine.diff(before, after, new EditOpListener() {
+					@Override
+					public void editOpGenerated(EditOp op) {
+						passed.add(op);
+					}
+				});
+			}
+			assertTrue(kept.size() > 0);
+			assertEquals(0, streamed.size());
+			assertEquals(kept.exactMatch, streamed.exactMatch);
+			assertEquals(kept.similarMatch, streamed.similarMatch);
+			List<EditOp> expected = kept.getEditOps();
+			assertEquals(expected.size(), passed.size());
+			for(int i=0; i<expected.size(); i++){
+				assertEquals(expected.get(i).toOpString(), passed.get(i).toOpString());
+			}
+		}
+	}
+}
@@ -0,0 +1,72 @@
+package script.model;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.io.IOException;
+import java.io.StringWriter;
+
+import org.junit.Test;
+
+import script.DiffConfig;
+import script.DiffEngine;
+import tree.TreeBuilder;
+
+public class EditOpWriterTest {
+	private static final String BEFORE = "class A {\n"
+			+ "	int f(int a){\n"
+			+ "		int b = a + 1;\n"
+			+ "		if(b > 2){\n"
+			+ "			foo(b, \"x,\\\"y\\\"\");\n"
+			+ "		}\n"
+			+ "		return b;\n"
+			+ "	}\n"
+			+ "	void g(){ bar(\"s\"); }\n"
+			+ "}\n";
+	private static final String AFTER = "class A {\n"
+			+ "	void g(){ bar(\"t\\u00e9\"); }\n"
+			+ "	int f(int a, int c){\n"
+			+ "		int b = a + c;\n"
+			+ "		foo(b);\n"
+			+ "		return b;\n"
+			+ "	}\n"
+			+ "}\n";
+
+	@Test
+	public void writesTextAsToString() throws IOException {
+		for(DiffConfig config : new DiffConfig[] { DiffConfig.getDefault(),
+				DiffConfig.getDefault().toBuilder().replace(true).build(),
+				DiffConfig.getDefault().toBuilder().splitMoves(true).build() }){
+			EditScript script = diff(config);
+			StringBuilder expected = new StringBuilder();
+			for(EditOp op : script.getEditOps()){
+				expected.append(op.toString()).append(System.lineSeparator());
+			}
+			assertEquals(expected.toString(), write("text", script));
+		}
+	}
+
+	@Test
+	public void writesLineOfEachOp() throws IOException {
+		EditScript script = diff(DiffConfig.getDefault());
+		assertEquals(script.size(), write("jsonl", script).split(System.lineSeparator()).length);
+		String csv = write("csv", script);
+		assertTrue(csv.startsWith("op,depth,node_id,"));
+		//Labels with commas and quotes are quoted.
+		assertTrue(csv.contains(",\"StringLiteral|#|\"\"x,\\\"\"y\\\"\"\"\"\","));
+	}
+
+	private static EditScript diff(DiffConfig config) throws IOException {
+		try(DiffEngine engine = new DiffEngine(config)){
+			return engine.diff(TreeBuilder.buildTreeFromSource(BEFORE), TreeBuilder.buildTreeFromSource(AFTER));
+		}
+	}
+
+	private static String write(String format, EditScript script) throws IOException {
+		StringWriter out = new StringWriter();
+		EditOpWriter writer = EditOpWriter.create(format, out);
+		writer.write(script);
+		writer.flush();
+		return out.toString();
+	}
+}
@@ -0,0 +1,146 @@
+package script.model;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.fail;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.List;
+
+import org.junit.Test;
+
+import script.DiffConfig;
+import script.DiffEngine;
+import tree.LabelTable;
+import tree.TreeBuilder;
+
+public class EditScriptReaderTest {
+	private static final String BEFORE = "class A {\n"
+			+ "	int f(int a){\n"
+			+ "		int b = a + 1;\n"
+			+ "		if(b > 2){\n"
+			+ "			foo(b);\n"
+			+ "		}\n"
+			+ "		return b;\n"
+			+ "	}\n"
+			+ "	void g(){ bar(\"s\"); }\n"
+			+ "}\n";
+	private static final String AFTER = "class A {\n"
+			+ "	void g(){ bar(\"t\\u00e9\"); }\n"
+			+ "	int f(int a, int c){\n"
+			+ "		int b = a + c;\n"
+			+ "		foo(b);\n"
+			+ "		return b;\n"
+			+ "	}\n"
+			+ "}\n";
+
+	@Test
+	public void readsScriptsWritten() throws IOException {
+		EditScript first = diff(DiffConfig.getDefault());
+		EditScript second = diff(DiffConfig.getDefault().toBuilder().replace(true).build());
+		first.setDegraded(EditScript.Phase.SIMILAR_MATCH, "similarity budget of 1 computations");
+		byte[] bytes = write(first, second);
+		try(EditScriptReader reader = new EditScriptReader(new ByteArrayInputStream(bytes))){
+			assertSameScript(first, reader.read());
+			assertSameScript(second, reader.read());
+			assertNull(reader.read());
+		}
+	}
+
+	@Test
+	public void writesScriptsReadAsWritten() throws IOException {
+		byte[] bytes = write(diff(DiffConfig.getDefault()));
+		int labels = LabelTable.getDefault().size();
+		EditScript read;
+		try(EditScriptReader reader = new EditScriptReader(new ByteArrayInputStream(bytes))){
+			read = reader.read();
+		}
+		//Labels of a script read are not interned.
+		assertEquals(labels, LabelTable.getDefault().size());
+		assertArrayEquals(bytes, write(read));
+	}
+
+	@Test
+	public void writesOpsPassedAsListener() throws IOException {
+		EditScript script = diff(DiffConfig.getDefault());
+		ByteArrayOutputStream out = new ByteArrayOutputStream();
+		EditScriptWriter writer = new EditScriptWriter(out);
+		EditScript streamed;
+		try(DiffEngine engine = new DiffEngine(DiffConfig.getDefault())){
+			writer.beginScript();
+			streamed = engine.diff(TreeBuilder.buildTreeFromSource(BEFORE), TreeBuilder.buildTreeFromSource(AFTER), writer);
+			writer.endScript(streamed);
+		}
+		writer.flush();
+		assertEquals(0, streamed.size());
+		try(EditScriptReader reader = new EditScriptReader(new ByteArrayInputStream(out.toByteArray()))){
+			assertSameScript(script, reader.read());
+		}
+	}
+
+	@Test
+	public void rejectsTruncatedStream() throws IOException {
+		byte[] bytes = write(diff(DiffConfig.getDefault()));
+		for(int length : new int[] { 0, 7, bytes.length / 2, bytes.length - 1 }){
+			try(EditScriptReader reader = new EditScriptReader(new ByteArrayInputStream(Arrays.copyOf(bytes, length)))){
+				reader.read();
+				fail("Read a script of " + length + " bytes out of " + bytes.length + ".");
+			}catch(IOException e){
+				//Expected.
+			}
+		}
+	}
+
+	private static EditScript diff(DiffConfig config) throws IOException {
+		try(DiffEngine engine = new DiffEngine(config)){
+			return engine.diff(TreeBuilder.buildTreeFromSource(BEFORE), TreeBuilder.buildTreeFromSource(AFTER));
+		}
+	}
+
+	private static byte[] write(EditScript... scripts) throws IOException {
+		ByteArrayOutputStream out = new ByteArrayOutputStream();
+		EditScriptWriter writer = new EditScriptWriter(out);
+		for(EditScript script : scripts){
+			writer.write(script);
+		}
+		writer.flush();
+		return out.toByteArray();
+	}
+
+	private static void assertSameScript(EditScript expected, EditScript actual) {
+		List<EditOp> expectedOps = expected.getEditOps();
+		List<EditOp> actualOps = actual.getEditOps();
+		assertEquals(expectedOps.size(), actualOps.size());
+		for(int i=0; i<expectedOps.size(); i++){
+			assertSameOp(expectedOps.get(i), actualOps.get(i));
+		}
+		assertEquals(expected.toString(), actual.toString());
+		assertEquals(expected.exactMatch, actual.exactMatch);
+		assertEquals(expected.similarMatch, actual.similarMatch);
+		assertEquals(expected.followupMatch, actual.followupMatch);
+		assertEquals(expected.leafMatch, actual.leafMatch);
+		assertEquals(expected.exactMatchCount, actual.exactMatchCount);
+		assertEquals(expected.similarityCount, actual.similarityCount);
+		assertEquals(expected.similarPairCount, actual.similarPairCount);
+		assertEquals(expected.getDegradedPhase(), actual.getDegradedPhase());
+		assertEquals(expected.getDegradedReason(), actual.getDegradedReason());
+		assertNull(actual.getMapping());
+	}
+
+	private static void assertSameOp(EditOp expected, EditOp actual) {
+		assertEquals(expected.getClass(), actual.getClass());
+		assertEquals(expected.toString(), actual.toString());
+		assertEquals(expected.getPosition(), actual.getPosition());
+		assertEquals(expected.getNode().getType(), actual.getNode().getType());
+		assertEquals(expected.getNode().getStartPosition(), actual.getNode().getStartPosition());
+		assertEquals(expected.getNode().getLength(), actual.getNode().getLength());
+		assertEquals(expected.children.size(), actual.children.size());
+		for(int i=0; i<expected.children.size(); i++){
+			assertSameOp(expected.children.get(i), actual.children.get(i));
+		}
+	}
+}
@@ -0,0 +1,124 @@
+package script.model;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.ObjectInputStream;
+import java.io.ObjectOutputStream;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Iterator;
+import java.util.List;
+
+import org.junit.Test;
+
+import script.DiffConfig;
+import script.DiffEngine;
+import tree.Tree;
+import tree.TreeBuilder;
+import tree.TreeNode;
+
+public class EditScriptTest {
+	private static final String SOURCE = "class A { int f(){ return 1; } int g(){ return 2; } }";
+
+	@Test
+	public void keepsOpsInOrderAdded() throws IOException {
+		List<TreeNode> nodes = nodes();
+		EditScript script = new EditScript();
+		Delete d1 = new Delete(nodes.get(1));
+		Delete d2 = new Delete(nodes.get(2));
+		Insert i1 = new Insert(nodes.get(1));
+		script.addEditOp(d1);
+		script.addEditOp(d2);
+		script.addEditOp(i1);
+		assertEquals(Arrays.<EditOp>asList(d1, d2, i1), script.getEditOps());
+		script.removeEditOp(d2);
+		assertEquals(Arrays.<EditOp>asList(d1, i1), script.getEditOps());
+		assertSame(i1, script.getEditOp(Insert.class, nodes.get(1)));
+		assertNull(script.getEditOp(Delete.class, nodes.get(2)));
+	}
+
+	@Test
+	public void findsNextOpOfNodeAfterRemoval() throws IOException {
+		TreeNode node = nodes().get(1);
+		EditScript script = new EditScript();
+		Delete first = new Delete(node);
+		Delete second = new Delete(node);
+		Delete third = new Delete(node);
+		script.addEditOp(first);
+		script.addEditOp(second);
+		script.addEditOp(third);
+		assertSame(first, script.getEditOp(Delete.class, node));
+		script.removeEditOp(second);
+		assertSame(first, script.getEditOp(Delete.class, node));
+		script.removeEditOp(first);
+		assertSame(third, script.getEditOp(Delete.class, node));
+		script.removeEditOp(third);
+		assertNull(script.getEditOp(Delete.class, node));
+	}
+
+	@Test
+	public void removesOpsThroughView() throws IOException {
+		List<TreeNode> nodes = nodes();
+		EditScript script = new EditScript();
+		Delete d1 = new Delete(nodes.get(1));
+		Delete d2 = new Delete(nodes.get(2));
+		script.addEditOp(d1);
+		script.addEditOp(d2);
+		Iterator<EditOp> it = script.editOps().iterator();
+		assertSame(d1, it.next());
+		it.remove();
+		assertEquals(Arrays.<EditOp>asList(d2), script.getEditOps());
+		assertNull(script.getEditOp(Delete.class, nodes.get(1)));
+		assertSame(d2, script.getEditOp(Delete.class, nodes.get(2)));
+	}
+
+	@Test
+	public void findsOpsOfAncestors() throws IOException {
+		List<TreeNode> nodes = nodes();
+		TreeNode method = nodes.get(3);
+		TreeNode leaf = method;
+		while(!leaf.isLeaf()){
+			leaf = leaf.children.get(leaf.children.size() - 1);
+		}
+		EditScript script = new EditScript();
+		Insert outer = new Insert(method.getParent());
+		Insert inner = new Insert(method);
+		Delete other = new Delete(method);
+		script.addEditOp(inner);
+		script.addEditOp(other);
+		script.addEditOp(outer);
+		//Ops are in the order they are added, whatever the depth of their nodes.
+		assertEquals(Arrays.asList(inner, outer), script.getEditOpsAbove(Insert.class, leaf));
+		assertEquals(Arrays.asList(outer), script.getEditOpsAbove(Insert.class, method));
+		assertEquals(Collections.<Update>emptyList(), script.getEditOpsAbove(Update.class, leaf));
+	}
+
+	@Test
+	public void readsSerializedScript() throws IOException, ClassNotFoundException {
+		EditScript script;
+		try(DiffEngine engine = new DiffEngine(DiffConfig.getDefault())){
+			script = engine.diff(TreeBuilder.buildTreeFromSource(SOURCE),
+					TreeBuilder.buildTreeFromSource("class A { int g(){ return 2; } int f(){ return 3; } }"));
+		}
+		ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+		try(ObjectOutputStream out = new ObjectOutputStream(bytes)){
+			out.writeObject(script);
+		}
+		EditScript read;
+		try(ObjectInputStream in = new ObjectInputStream(new ByteArrayInputStream(bytes.toByteArray()))){
+			read = (EditScript)in.readObject();
+		}
+		assertEquals(script.size(), read.size());
+		assertEquals(script.toString(), read.toString());
+	}
+
+	private static List<TreeNode> nodes() throws IOException {
+		Tree tree = TreeBuilder.buildTreeFromSource(SOURCE);
+		return tree.dfs();
+	}
+}
@@ -0,0 +1,119 @@
+package tree;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+import java.util.List;
+
+import org.junit.Test;
+
+import script.DiffConfig;
+import script.DiffEngine;
+import script.model.EditScript;
+
+public class CompactTreeTest {
+	private static final String SOURCE = "package p;\n"
+			+ "public class A {\n"
+			+ "	private int x = 1;\n"
+			+ "	int f(int a){\n"
+			+ "		switch(a){\n"
+			+ "		case 1: x++; break;\n"
+			+ "		default: return \"s,\\\"q\".length();\n"
+			+ "		}\n"
+			+ "		return a + x;\n"
+			+ "	}\n"
+			+ "}\n";
+
+	@Test
+	public void copiesNodesOfTree() throws IOException {
+		Tree tree = TreeBuilder.buildTreeFromSource(SOURCE);
+		tree.setName("A.java");
+		assertSameTree(tree, CompactTree.of(tree).toTree());
+	}
+
+	@Test
+	public void readsTreeWritten() throws IOException {
+		Tree tree = TreeBuilder.buildTreeFromSource(SOURCE);
+		tree.setName("A.java");
+		CompactTree read = CompactTree.read(ByteBuffer.wrap(write(CompactTree.of(tree))));
+		assertEquals("A.java", read.getName());
+		assertEquals(tree.getSize(), read.getSize());
+		assertSameTree(tree, read.toTree());
+	}
+
+	@Test
+	public void rejectsTruncatedTree() throws IOException {
+		byte[] bytes = write(CompactTree.of(TreeBuilder.buildTreeFromSource(SOURCE)));
+		for(int length : new int[] { 0, 6, 20, bytes.length / 2, bytes.length - 1 }){
+			try{
+				CompactTree.read(ByteBuffer.wrap(Arrays.copyOf(bytes, length)));
+				fail("Read a tree of " + length + " bytes out of " + bytes.length + ".");
+			}catch(IOException e){
+				//Expected.
+			}
+		}
+	}
+
+	@Test
+	public void diffsTreesReadAsTreesBuilt() throws IOException {
+		String after = SOURCE.replace("x++; break;", "x += 2; break;").replace("return a + x;", "return x + a;");
+		EditScript built;
+		EditScript read;
+		try(DiffEngine engine = new DiffEngine(DiffConfig.getDefault())){
+			built = engine.diff(TreeBuilder.buildTreeFromSource(SOURCE), TreeBuilder.buildTreeFromSource(after));
+			read = engine.diff(readBack(TreeBuilder.buildTreeFromSource(SOURCE)), readBack(TreeBuilder.buildTreeFromSource(after)));
+		}
+		assertTrue(built.size() > 0);
+		assertEquals(built.toString(), read.toString());
+	}
+
+	@Test(expected = IOException.class)
+	public void rejectsOtherFormat() throws IOException {
+		byte[] bytes = write(CompactTree.of(TreeBuilder.buildTreeFromSource(SOURCE)));
+		bytes[0] = 'X';
+		CompactTree.read(ByteBuffer.wrap(bytes));
+	}
+
+	private static Tree readBack(Tree tree) throws IOException {
+		return CompactTree.read(ByteBuffer.wrap(write(CompactTree.of(tree)))).toTree();
+	}
+
+	private static byte[] write(CompactTree tree) throws IOException {
+		ByteArrayOutputStream out = new ByteArrayOutputStream();
+		tree.write(out);
+		return out.toByteArray();
+	}
+
+	private static void assertSameTree(Tree expected, Tree actual) {
+		assertEquals(expected.getName(), actual.getName());
+		assertEquals(expected.getSize(), actual.getSize());
+		assertEquals(expected.getHeight(), actual.getHeight());
+		List<TreeNode> expectedNodes = expected.dfs();
+		List<TreeNode> actualNodes = actual.dfs();
+		assertEquals(expectedNodes.size(), actualNodes.size());
+		for(int i=0; i<expectedNodes.size(); i++){
+			TreeNode e = expectedNodes.get(i);
+			TreeNode a = actualNodes.get(i);
+			assertEquals(e.getId(), a.getId());
+			assertEquals(e.getLabel(), a.getLabel());
+			assertEquals(e.getType(), a.getType());
+			assertEquals(e.getLineNumber(), a.getLineNumber());
+			assertEquals(e.getStartPosition(), a.getStartPosition());
+			assertEquals(e.getLength(), a.getLength());
+			assertEquals(e.getLocationId(), a.getLocationId());
+			assertEquals(e.getStatementLocationId(), a.getStatementLocationId());
+			assertEquals(e.getHash(), a.getHash());
+			assertEquals(e.getDepth(), a.getDepth());
+			assertEquals(e.getParent().getId(), a.getParent().getId());
+			assertEquals(e.children.size(), a.children.size());
+			assertEquals(e.getVectorSum(), a.getVectorSum());
+			assertEquals(e.getVector().toString(), a.getVector().toString());
+			assertEquals(1.0d, e.similarity(a), 0.0d);
+		}
+	}
+}
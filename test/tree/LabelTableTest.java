@@ -0,0 +1,74 @@
+package tree;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotEquals;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+import org.eclipse.jdt.core.dom.ASTNode;
+import org.junit.Test;
+
+public class LabelTableTest {
+	private static final LabelTable TABLE = LabelTable.getDefault();
+
+	@Test
+	public void returnsLabelsInterned() {
+		String large = new String(new char[200]).replace('\0', 'x');
+		for(String value : new String[] { "foo", "", "a|#|b", large, null }){
+			int id = TABLE.intern(ASTNode.SIMPLE_NAME, value);
+			String label = value == null ? "SimpleName" : "SimpleName" + TreeNode.DELIM + value;
+			assertEquals(label, TABLE.getLabel(id));
+			//A label given whole has the id of its type and value.
+			assertEquals(id, TABLE.intern(label));
+			assertEquals(id, TABLE.intern(ASTNode.SIMPLE_NAME, value));
+			assertEquals(LabelTable.hash(label), TABLE.getHash(id));
+		}
+		int root = TABLE.intern("root");
+		assertEquals("root", TABLE.getLabel(root));
+		assertEquals(root, TABLE.intern("root"));
+	}
+
+	@Test
+	public void separatesTypesAndValues() {
+		int name = TABLE.intern(ASTNode.SIMPLE_NAME, "foo");
+		assertNotEquals(name, TABLE.intern(ASTNode.STRING_LITERAL, "foo"));
+		assertNotEquals(name, TABLE.intern(ASTNode.SIMPLE_NAME, "bar"));
+		assertNotEquals(name, TABLE.intern(ASTNode.SIMPLE_NAME, null));
+	}
+
+	@Test
+	public void internsSameIdsFromThreads() throws Exception {
+		final int labels = 2000;
+		ExecutorService executor = Executors.newFixedThreadPool(4);
+		try{
+			List<Future<int[]>> futures = new ArrayList<>();
+			for(int t=0; t<4; t++){
+				futures.add(executor.submit(new Callable<int[]>() {
+					@Override
+					public int[] call() {
+						int[] ids = new int[labels];
+						for(int i=0; i<labels; i++){
+							ids[i] = TABLE.intern(ASTNode.STRING_LITERAL, "\"concurrent " + i + "\"");
+						}
+						return ids;
+					}
+				}));
+			}
+			int[] ids = futures.get(0).get();
+			for(Future<int[]> future : futures){
+				assertEquals(Arrays.toString(ids), Arrays.toString(future.get()));
+			}
+			for(int i=0; i<labels; i++){
+				assertEquals("StringLiteral" + TreeNode.DELIM + "\"concurrent " + i + "\"", TABLE.getLabel(ids[i]));
+			}
+		}finally{
+			executor.shutdown();
+		}
+	}
+}
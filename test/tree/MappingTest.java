@@ -0,0 +1,97 @@
+package tree;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotSame;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import java.io.IOException;
+import java.util.List;
+
+import org.junit.Test;
+
+import script.DiffConfig;
+import script.DiffEngine;
+import script.model.EditScript;
+
+public class MappingTest {
+	private static final String V1 = "class A {\n	int f(int a){ return a + 1; }\n	void g(){ foo(); }\n}\n";
+	private static final String V2 = "class A {\n	void g(){ foo(); bar(); }\n	int f(int a){ return a + 2; }\n}\n";
+	private static final String V3 = "class A {\n	void g(){ bar(); }\n	int f(int b){ return b + 2; }\n}\n";
+
+	@Test
+	public void rejectsDoubleMatches() throws IOException {
+		Tree before = TreeBuilder.buildTreeFromSource(V1);
+		Tree after = TreeBuilder.buildTreeFromSource(V2);
+		List<TreeNode> x = before.dfs();
+		List<TreeNode> y = after.dfs();
+		Mapping mapping = new Mapping(before, after);
+		mapping.setMatched(x.get(1), y.get(1));
+		//Matching the same pair again is allowed.
+		mapping.setMatched(y.get(1), x.get(1));
+		assertSame(y.get(1), mapping.getMatched(x.get(1)));
+		assertSame(x.get(1), mapping.getMatched(y.get(1)));
+		try{
+			mapping.setMatched(x.get(1), y.get(2));
+			fail("Matched a node twice.");
+		}catch(IllegalStateException e){
+			//Expected.
+		}
+		try{
+			mapping.setMatched(x.get(2), y.get(1));
+			fail("Matched a node of the other tree twice.");
+		}catch(IllegalStateException e){
+			//Expected.
+		}
+		//Failed matches change nothing.
+		assertFalse(mapping.isMatched(x.get(2)));
+		assertFalse(mapping.isMatched(y.get(2)));
+		assertSame(y.get(1), mapping.getMatched(x.get(1)));
+	}
+
+	@Test
+	public void rejectsNodesOfSameTree() throws IOException {
+		Tree before = TreeBuilder.buildTreeFromSource(V1);
+		Tree after = TreeBuilder.buildTreeFromSource(V2);
+		Mapping mapping = new Mapping(before, after);
+		try{
+			mapping.setMatched(before.dfs().get(1), before.dfs().get(2));
+			fail("Matched nodes of the same tree.");
+		}catch(IllegalArgumentException e){
+			//Expected.
+		}
+		try{
+			mapping.isMatched(TreeBuilder.buildTreeFromSource(V3).dfs().get(1));
+			fail("Looked up a node of another tree.");
+		}catch(IllegalArgumentException e){
+			//Expected.
+		}
+		try{
+			new Mapping(before, before);
+			fail("Mapped a tree to itself.");
+		}catch(IllegalArgumentException e){
+			//Expected.
+		}
+	}
+
+	@Test
+	public void keepsTreesForOtherDiffs() throws IOException {
+		Tree v1 = TreeBuilder.buildTreeFromSource(V1);
+		Tree v2 = TreeBuilder.buildTreeFromSource(V2);
+		Tree v3 = TreeBuilder.buildTreeFromSource(V3);
+		try(DiffEngine engine = new DiffEngine(DiffConfig.getDefault())){
+			EditScript first = engine.diff(v1, v2);
+			//The after tree of a diff is the before tree of the next.
+			EditScript second = engine.diff(v2, v3);
+			EditScript again = engine.diff(v1, v2);
+			assertTrue(first.size() > 0);
+			assertTrue(second.size() > 0);
+			assertEquals(first.toString(), again.toString());
+			assertNotSame(first.getMapping(), again.getMapping());
+			EditScript fresh = engine.diff(TreeBuilder.buildTreeFromSource(V2), TreeBuilder.buildTreeFromSource(V3));
+			assertEquals(fresh.toString(), second.toString());
+		}
+	}
+}
@@ -0,0 +1,194 @@
+package tree;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import script.DiffConfig;
+import script.DiffEngine;
+import script.model.EditScript;
+
+public class TreeBuilderTest {
+	private static final String SOURCE = "class A { int x; }\n";
+
+	@Rule
+	public TemporaryFolder folder = new TemporaryFolder();
+
+	@Test
+	public void coversFileWithCompilationUnit() throws IOException {
+		File f = source("A.java", SOURCE);
+		SourceLoader loader = new SourceLoader(StandardCharsets.UTF_8);
+		assertCoversSource(TreeBuilder.buildTreeFromFile(f, loader));
+		//The array of the loader is larger after a larger file.
+		source("B.java", SOURCE + new String(new char[20000]).replace('\0', ' '));
+		TreeBuilder.buildTreeFromFile(new File(folder.getRoot(), "B.java"), loader);
+		assertCoversSource(TreeBuilder.buildTreeFromFile(f, loader));
+	}
+
+	@Test
+	public void coversFilesParsedInBatch() throws IOException {
+		final List<Tree> trees = new ArrayList<>();
+		TreeBuilder.buildTrees(Arrays.asList(source("A.java", SOURCE), source("B.java", SOURCE)), new TreeRequestor() {
+			@Override
+			public void acceptTree(File f, Tree tree) {
+				trees.add(tree);
+			}
+		});
+		assertEquals(2, trees.size());
+		for(Tree tree : trees){
+			assertCoversSource(tree);
+		}
+	}
+
+	@Test
+	public void buildsSameTreesInBatchAsOneByOne() throws IOException {
+		final Map<File, Tree> trees = new HashMap<>();
+		List<File> files = Arrays.asList(source("A.java", SOURCE),
+				source("B.java", "class B {\n	void f(){ g(1, \"s\"); }\n}\n"),
+				source("C.java", "class C extends B {\n	int x = 2;\n}\n"));
+		TreeBuilder.buildTrees(files, new TreeRequestor() {
+			@Override
+			public void acceptTree(File f, Tree tree) {
+				trees.put(f, tree);
+			}
+		});
+		assertEquals(files.size(), trees.size());
+		for(File f : files){
+			Tree expected = TreeBuilder.buildTreeFromFile(f);
+			Tree actual = trees.get(f);
+			List<TreeNode> expectedNodes = expected.dfs();
+			List<TreeNode> actualNodes = actual.dfs();
+			assertEquals(f.getName(), expected.getSize(), actual.getSize());
+			for(int i=0; i<expectedNodes.size(); i++){
+				assertEquals(expectedNodes.get(i).getLabel(), actualNodes.get(i).getLabel());
+				assertEquals(expectedNodes.get(i).getHash(), actualNodes.get(i).getHash());
+				assertEquals(expectedNodes.get(i).getStartPosition(), actualNodes.get(i).getStartPosition());
+				assertEquals(expectedNodes.get(i).getLineNumber(), actualNodes.get(i).getLineNumber());
+			}
+		}
+	}
+
+	@Test
+	public void buildsPairAsOneByOne() throws Exception {
+		File before = source("A.java", "class A {\n	String f(int a){ return g(a); }\n}\n");
+		File after = source("B.java", "class A {\n	String f(long a){ return g(a, 1); }\n}\n");
+		ExecutorService executor = Executors.newFixedThreadPool(2);
+		try{
+			for(boolean gumTreeAST : new boolean[] { false, true }){
+				List<Future<Tree>> pair = TreeBuilder.buildPairAsync(before, after, gumTreeAST, false, null, executor);
+				assertEquals(2, pair.size());
+				SourceLoader loader = new SourceLoader();
+				assertSameHashes(TreeBuilder.buildTreeFromFile(before, loader, gumTreeAST), pair.get(0).get());
+				assertSameHashes(TreeBuilder.buildTreeFromFile(after, loader, gumTreeAST), pair.get(1).get());
+			}
+		}finally{
+			executor.shutdown();
+		}
+	}
+
+	@Test
+	public void buildsCachedTreesWithOptionsGiven() throws IOException {
+		TreeCache cache = new TreeCache(folder.newFolder("cache"));
+		final List<Tree> trees = new ArrayList<>();
+		TreeRequestor requestor = new TreeRequestor() {
+			@Override
+			public void acceptTree(File f, Tree tree) {
+				trees.add(tree);
+			}
+		};
+		File f = source("A.java", SOURCE);
+		//The first build parses the file and caches its tree, and the second one reads the tree cached.
+		TreeBuilder.buildTrees(Arrays.asList(f), false, true, cache, requestor);
+		TreeBuilder.buildTrees(Arrays.asList(f), false, true, cache, requestor);
+		assertEquals(2, trees.size());
+		for(Tree tree : trees){
+			assertCoversSource(tree);
+			assertNull(tree.getRoot().children.get(0).getASTNode());
+		}
+		Tree kept = TreeBuilder.buildTreeFromFile(f, new SourceLoader(StandardCharsets.UTF_8), false, false, null);
+		assertNotNull(kept.getRoot().children.get(0).getASTNode());
+	}
+
+	@Test
+	public void rejectsCacheWithoutReleasedAST() throws IOException {
+		TreeCache cache = new TreeCache(folder.newFolder("cache"));
+		try{
+			TreeBuilder.buildTreeFromFile(source("A.java", SOURCE), new SourceLoader(), false, false, cache);
+			fail("Built a tree with AST nodes for a cache.");
+		}catch(IllegalArgumentException e){
+			//Expected.
+		}
+	}
+
+	@Test
+	public void keepsAttributesOfReleasedAST() throws IOException {
+		String before = "class A {\n	int x;\n	int f(int a){ x = a; foo(a); return a + 1; }\n}\n";
+		String after = "class A {\n	int f(int a){ foo(a); x = a; return a; }\n	int x;\n}\n";
+		Tree kept = TreeBuilder.buildTreeFromCompilationUnit(TreeBuilder.getCompilationUnit(before), false, false);
+		Tree released = TreeBuilder.buildTreeFromCompilationUnit(TreeBuilder.getCompilationUnit(before), false, true);
+		List<TreeNode> keptNodes = kept.dfs();
+		List<TreeNode> releasedNodes = released.dfs();
+		assertEquals(keptNodes.size(), releasedNodes.size());
+		for(int i=0; i<keptNodes.size(); i++){
+			TreeNode k = keptNodes.get(i);
+			TreeNode r = releasedNodes.get(i);
+			assertNotNull(k.getASTNode());
+			assertNull(r.getASTNode());
+			assertEquals(k.getType(), r.getType());
+			assertEquals(k.getStartPosition(), r.getStartPosition());
+			assertEquals(k.getLength(), r.getLength());
+			assertEquals(k.getLineNumber(), r.getLineNumber());
+			assertEquals(k.isBodyDeclaration(), r.isBodyDeclaration());
+			assertEquals(k.getASTNode().getLocationInParent(), r.getLocationInParent());
+			assertEquals(k.getStatementLocation(), r.getStatementLocation());
+		}
+		try(DiffEngine engine = new DiffEngine(DiffConfig.getDefault())){
+			EditScript expected = engine.diff(kept,
+					TreeBuilder.buildTreeFromCompilationUnit(TreeBuilder.getCompilationUnit(after), false, false));
+			EditScript actual = engine.diff(released,
+					TreeBuilder.buildTreeFromCompilationUnit(TreeBuilder.getCompilationUnit(after), false, true));
+			assertTrue(expected.size() > 0);
+			assertEquals(expected.toString(), actual.toString());
+		}
+	}
+
+	private static void assertSameHashes(Tree expected, Tree actual) {
+		List<TreeNode> expectedNodes = expected.dfs();
+		List<TreeNode> actualNodes = actual.dfs();
+		assertEquals(expectedNodes.size(), actualNodes.size());
+		for(int i=0; i<expectedNodes.size(); i++){
+			assertEquals(expectedNodes.get(i).getHash(), actualNodes.get(i).getHash());
+		}
+	}
+
+	private static void assertCoversSource(Tree tree) {
+		TreeNode unit = tree.getRoot().children.get(0);
+		assertEquals(0, unit.getStartPosition());
+		assertEquals(SOURCE.length(), unit.getLength());
+	}
+
+	private File source(String name, String source) throws IOException {
+		File f = new File(folder.getRoot(), name);
+		Files.write(f.toPath(), source.getBytes(StandardCharsets.UTF_8));
+		return f;
+	}
+}
@@ -0,0 +1,121 @@
+package tree;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.charset.Charset;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+public class TreeCacheTest {
+	private static final String SOURCE = "class A { int f(){ return 1; } }";
+
+	@Rule
+	public TemporaryFolder folder = new TemporaryFolder();
+
+	@Test
+	public void readsTreeCached() throws IOException {
+		TreeCache cache = new TreeCache(folder.getRoot());
+		String key = key(cache);
+		assertNull(cache.get(key));
+		Tree tree = TreeBuilder.buildTreeFromSource(SOURCE);
+		cache.put(key, CompactTree.of(tree));
+		CompactTree cached = cache.get(key);
+		assertNotNull(cached);
+		assertEquals(tree.getSize(), cached.getSize());
+	}
+
+	@Test
+	public void deletesTruncatedEntry() throws IOException {
+		TreeCache cache = new TreeCache(folder.getRoot());
+		String key = key(cache);
+		cache.put(key, CompactTree.of(TreeBuilder.buildTreeFromSource(SOURCE)));
+		File entry = entry(key);
+		try(RandomAccessFile file = new RandomAccessFile(entry, "rw")){
+			file.setLength(file.length() / 2);
+		}
+		assertNull(cache.get(key));
+		assertFalse(entry.exists());
+	}
+
+	@Test
+	public void deletesCorruptedEntry() throws IOException {
+		TreeCache cache = new TreeCache(folder.getRoot());
+		String key = key(cache);
+		cache.put(key, CompactTree.of(TreeBuilder.buildTreeFromSource(SOURCE)));
+		File entry = entry(key);
+		try(RandomAccessFile file = new RandomAccessFile(entry, "rw")){
+			file.write(0);
+		}
+		assertNull(cache.get(key));
+		assertFalse(entry.exists());
+	}
+
+	@Test
+	public void deletesEntryOfHugeSize() throws IOException {
+		TreeCache cache = new TreeCache(folder.getRoot());
+		String key = key(cache);
+		cache.put(key, CompactTree.of(TreeBuilder.buildTreeFromSource(SOURCE)));
+		//The size follows the magic number, the version and the empty name.
+		corrupt(key, 12, Integer.MAX_VALUE - 1);
+		assertNull(cache.get(key));
+		assertFalse(entry(key).exists());
+	}
+
+	@Test
+	public void deletesEntryOfSiblingCycle() throws IOException {
+		TreeCache cache = new TreeCache(folder.getRoot());
+		String key = key(cache);
+		Tree tree = TreeBuilder.buildTreeFromSource(SOURCE);
+		cache.put(key, CompactTree.of(tree));
+		//Node 1 is the only child of the root, and is made its own next sibling.
+		corrupt(key, nextSiblings(key, tree.getSize()) + 4, 1);
+		assertNull(cache.get(key));
+		assertFalse(entry(key).exists());
+	}
+
+	@Test
+	public void deletesEntryOfChildOutOfRange() throws IOException {
+		TreeCache cache = new TreeCache(folder.getRoot());
+		String key = key(cache);
+		Tree tree = TreeBuilder.buildTreeFromSource(SOURCE);
+		cache.put(key, CompactTree.of(tree));
+		//First children follow parents, and the first child of the root is made a node which does not exist.
+		corrupt(key, nextSiblings(key, tree.getSize()) - (tree.getSize() + 1) * 4, tree.getSize() + 1);
+		assertNull(cache.get(key));
+		assertFalse(entry(key).exists());
+	}
+
+	/**
+	 * @return the offset of next siblings in the entry of a tree of <code>size</code> nodes,
+	 * counted back from the end as labels come before them.
+	 */
+	private int nextSiblings(String key, int size) throws IOException {
+		long length = entry(key).length();
+		//Propagations of nodes propagated more than once, hashes and ten int arrays come after next siblings.
+		return (int)(length - 4 - (size + 1) * 8 - 10 * (size + 1) * 4);
+	}
+
+	private void corrupt(String key, long offset, int value) throws IOException {
+		try(RandomAccessFile file = new RandomAccessFile(entry(key), "rw")){
+			file.seek(offset);
+			file.writeInt(value);
+		}
+	}
+
+	private static String key(TreeCache cache) {
+		return cache.key(ByteBuffer.wrap(SOURCE.getBytes(Charset.forName("UTF-8"))), Charset.forName("UTF-8"), false);
+	}
+
+	private File entry(String key) {
+		return new File(new File(folder.getRoot(), key.substring(0, 2)), key + ".tree");
+	}
+}
@@ -0,0 +1,101 @@
+package tree;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+
+import org.eclipse.jdt.core.dom.ASTNode;
+import org.junit.Test;
+
+public class TreeTest {
+	private static final String SOURCE = "class A {\n"
+			+ "	int f(int a){ return a + 1; }\n"
+			+ "	int f(int a){ return a + 1; }\n"
+			+ "	int f(int a){ return 1 + a; }\n"
+			+ "	int f(int b){ return b + 1; }\n"
+			+ "}\n";
+
+	@Test
+	public void hashesIdenticalSubtreesEqually() throws IOException {
+		List<TreeNode> methods = methods(TreeBuilder.buildTreeFromSource(SOURCE));
+		assertEquals(methods.get(0).getHash(), methods.get(1).getHash());
+		assertTrue(methods.get(0).isIsomorphic(methods.get(1)));
+		//Subtrees of another tree are hashed the same.
+		List<TreeNode> others = methods(TreeBuilder.buildTreeFromSource(SOURCE));
+		for(int i=0; i<methods.size(); i++){
+			assertEquals(methods.get(i).getHash(), others.get(i).getHash());
+		}
+	}
+
+	@Test
+	public void hashesOrderAndLabelsOfChildren() throws IOException {
+		List<TreeNode> methods = methods(TreeBuilder.buildTreeFromSource(SOURCE));
+		//Operands swapped.
+		assertNotEquals(methods.get(0).getHash(), methods.get(2).getHash());
+		//A name changed.
+		assertNotEquals(methods.get(0).getHash(), methods.get(3).getHash());
+		//Labels of the roots are the same, so the hashes differ by their children.
+		assertEquals(methods.get(0).getLabelId(), methods.get(2).getLabelId());
+	}
+
+	@Test
+	public void findsPositionsOfSiblings() throws IOException {
+		Tree tree = TreeBuilder.buildTreeFromSource(SOURCE);
+		for(TreeNode node : tree.dfs()){
+			List<TreeNode> siblings = node.getParent().children;
+			int index = siblings.indexOf(node);
+			assertEquals(index, node.indexInParent());
+			assertSame(index > 0 ? siblings.get(index - 1) : null, node.getLeft());
+			assertSame(index < siblings.size() - 1 ? siblings.get(index + 1) : null, node.getRight());
+		}
+		assertEquals(-1, tree.getRoot().indexInParent());
+		assertNull(tree.getRoot().getLeft());
+	}
+
+	@Test
+	public void findsPositionsAfterChildrenChanged() {
+		TreeNode parent = node(1);
+		TreeNode first = node(2);
+		TreeNode second = node(3);
+		TreeNode third = node(4);
+		parent.addChild(first);
+		parent.addChild(second);
+		parent.addChild(third);
+		assertEquals(2, third.indexInParent());
+		//Children changed without addChild().
+		parent.children.remove(first);
+		assertEquals(0, second.indexInParent());
+		assertEquals(1, third.indexInParent());
+		assertSame(second, third.getLeft());
+		assertNull(second.getLeft());
+		parent.children.add(0, first);
+		assertEquals(0, first.indexInParent());
+		assertEquals(2, third.indexInParent());
+		assertSame(first, second.getLeft());
+		assertSame(third, second.getRight());
+	}
+
+	private static TreeNode node(int id) {
+		return new TreeNode(id, "SimpleName" + TreeNode.DELIM + "n" + id, null);
+	}
+
+	private static List<TreeNode> methods(Tree tree) {
+		TreeNode type = tree.getRoot().children.get(0);
+		while(type.getType() != ASTNode.TYPE_DECLARATION){
+			type = type.children.get(0);
+		}
+		List<TreeNode> methods = new ArrayList<>();
+		for(TreeNode child : type.children){
+			if(child.getType() == ASTNode.METHOD_DECLARATION)
+				methods.add(child);
+		}
+		assertEquals(4, methods.size());
+		return methods;
+	}
+}
@@ -0,0 +1,129 @@
+package tree;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
+
+import java.io.IOException;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+import org.eclipse.jdt.core.dom.ASTNode;
+import org.junit.Test;
+
+public class TreeVectorTest {
+	private static final String BEFORE = "class A {\n"
+			+ "	int f(int a){\n"
+			+ "		int b = a + 1;\n"
+			+ "		if(b > 2){ foo(b, b); }\n"
+			+ "		return b;\n"
+			+ "	}\n"
+			+ "	void g(){ bar(\"s\"); bar(\"s\"); }\n"
+			+ "}\n";
+	//Statements of a case are added to the case after its labels are propagated.
+	private static final String SWITCH = "class B {\n"
+			+ "	void h(int a){\n"
+			+ "		switch(a){\n"
+			+ "		case 1: foo(a); break;\n"
+			+ "		case 2:\n"
+			+ "		default: bar(a); foo(a);\n"
+			+ "		}\n"
+			+ "	}\n"
+			+ "}\n";
+	private static final String AFTER = "class A {\n"
+			+ "	void g(){ bar(\"t\"); }\n"
+			+ "	int f(int a, int c){\n"
+			+ "		int b = a + c;\n"
+			+ "		foo(b, c);\n"
+			+ "		return b;\n"
+			+ "	}\n"
+			+ "}\n";
+
+	@Test
+	public void computesSimilarityAsMapsOfLabels() throws IOException {
+		List<TreeNode> before = TreeBuilder.buildTreeFromSource(BEFORE).dfs();
+		List<TreeNode> after = TreeBuilder.buildTreeFromSource(AFTER).dfs();
+		for(TreeNode x : before){
+			for(TreeNode y : after){
+				assertEquals(x + " and " + y, similarity(histogram(x), histogram(y)), x.similarity(y), 1e-12);
+			}
+		}
+	}
+
+	@Test
+	public void buildsVectorsOnFirstUse() throws IOException {
+		List<TreeNode> nodes = TreeBuilder.buildTreeFromSource(BEFORE).dfs();
+		for(TreeNode node : nodes){
+			assertNull(node.getBuiltVector());
+		}
+		TreeNode method = nodes.get(nodes.size() - 1).getParent();
+		while(method.getType() != ASTNode.METHOD_DECLARATION){
+			method = method.getParent();
+		}
+		TreeVector vector = method.getVector();
+		assertSame(vector, method.getBuiltVector());
+		assertSame(vector, method.getVector());
+		//Vectors of other nodes are still not built.
+		for(TreeNode node : nodes){
+			if(node != method)
+				assertNull(node.getBuiltVector());
+		}
+	}
+
+	@Test
+	public void buildsSameVectorsInAnyOrder() throws IOException {
+		String source = SWITCH + BEFORE;
+		List<TreeNode> topDown = TreeBuilder.buildTreeFromSource(source).dfs();
+		List<TreeNode> bottomUp = TreeBuilder.buildTreeFromSource(source).dfs();
+		//Descendants first, so that vectors of children are merged.
+		for(int i=bottomUp.size()-1; i>=0; i--){
+			bottomUp.get(i).getVector();
+		}
+		for(int i=0; i<topDown.size(); i++){
+			TreeVector expected = topDown.get(i).getVector();
+			TreeVector actual = bottomUp.get(i).getVector();
+			assertEquals(expected.size(), actual.size());
+			for(int j=0; j<expected.size(); j++){
+				assertEquals(expected.getLabel(j), actual.getLabel(j));
+				assertEquals(expected.getCount(j), actual.getCount(j));
+			}
+			assertEquals(expected.sum(), actual.sum());
+			assertEquals(expected.sum(), topDown.get(i).getVectorSum());
+		}
+	}
+
+	/**
+	 * @return counts of labels in the subtree rooted at <code>node</code>.
+	 */
+	private static Map<String, Integer> histogram(TreeNode node) {
+		Map<String, Integer> histogram = new HashMap<>();
+		for(TreeNode n : node.dfs(true)){
+			Integer count = histogram.get(n.getLabel());
+			histogram.put(n.getLabel(), count == null ? 1 : count + 1);
+		}
+		return histogram;
+	}
+
+	/**
+	 * Dice similarity of label counts, as computed over maps of labels before vectors were kept as arrays.
+	 */
+	private static double similarity(Map<String, Integer> x, Map<String, Integer> y) {
+		int commonNodes = 0;
+		Set<String> commonKeys = new HashSet<String>(x.keySet());
+		commonKeys.retainAll(y.keySet());
+		for(String key : commonKeys){
+			commonNodes += Math.min(x.get(key), y.get(key));
+		}
+		int totalNodes = 0;
+		for(int count : x.values()){
+			totalNodes += count;
+		}
+		for(int count : y.values()){
+			totalNodes += count;
+		}
+		return 2.0d*commonNodes/totalNodes;
+	}
+}